@@ -0,0 +1,31 @@
+package server;
+
+import utils.Bench;
+import utils.CodecBenchmarks;
+
+import java.io.IOException;
+
+/**
+ * Runs the benchmarks of StratoNet. From the Project - 01 directory:
+ * <pre>
+ * javac -d out/bench $(find src bench -name '*.java')
+ * java -cp out/bench server.BenchMain --baseline=bench/baseline.txt
+ * </pre>
+ * The baseline is recorded with --save=bench/baseline.txt, on a quiet machine with several CPUs and with the default
+ * settings, once a change to a hot path has been measured. It is not saved if a result spreads over more than the
+ * tolerance, and such a result is flagged as NOISY rather than compared with the baseline.
+ */
+public class BenchMain {
+
+    public static void main(String[] args) {
+        Bench bench = new Bench();
+        try {
+            CodecBenchmarks.register(bench);
+            ServerBenchmarks.register(bench);
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.exit(2);
+        }
+        System.exit(bench.run(BenchMain.class, args));
+    }
+}
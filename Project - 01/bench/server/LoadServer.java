@@ -0,0 +1,72 @@
+package server;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Runs the server of a load test in a JVM of its own, so that the CPU and the heap it reports are those of the server
+ * alone. The load test drives it through its standard input: "stats" prints a line of the form
+ * "STATS cpu-ns heap-used heap-peak gc-count gc-ms threads", "reset" resets the peak of the heap, and "quit", or the
+ * end of the input, terminates the server. The options are those of ServerMain.
+ */
+public class LoadServer {
+
+    static final String READY = "READY";
+    static final String STATS = "STATS";
+
+    public static void main(String[] args) {
+        StratoNet server = new StratoNet(ServerConfig.fromArgs(args));
+        // The blocking mode accepts its clients on the thread that initializes it.
+        Thread main = new Thread(server::initialize, "StratoNet-load-server");
+        main.setDaemon(true);
+        main.start();
+        System.out.println(READY);
+
+        try (BufferedReader commands = new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8))) {
+            String command;
+            while ((command = commands.readLine()) != null && !command.equals("quit")) {
+                if (command.equals("stats"))
+                    System.out.println(stats());
+                else if (command.equals("reset"))
+                    ManagementFactory.getMemoryPoolMXBeans().forEach(MemoryPoolMXBean::resetPeakUsage);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        server.terminate();
+        System.exit(0);
+    }
+
+    /**
+     * @return the CPU time of the process in nanoseconds, the used and the peak heap in bytes, the number and the time
+     * of the garbage collections and the number of live threads.
+     */
+    private static String stats() {
+        long cpu = -1;
+        if (ManagementFactory.getOperatingSystemMXBean() instanceof com.sun.management.OperatingSystemMXBean)
+            cpu = ((com.sun.management.OperatingSystemMXBean) ManagementFactory.getOperatingSystemMXBean())
+                    .getProcessCpuTime();
+        long used = 0;
+        long peak = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                used += pool.getUsage().getUsed();
+                peak += pool.getPeakUsage().getUsed();
+            }
+        }
+        long collections = 0;
+        long collectionTime = 0;
+        for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+            collections += Math.max(0, collector.getCollectionCount());
+            collectionTime += Math.max(0, collector.getCollectionTime());
+        }
+        return STATS + " " + cpu + " " + used + " " + peak + " " + collections + " " + collectionTime + " "
+                + ManagementFactory.getThreadMXBean().getThreadCount();
+    }
+}
@@ -0,0 +1,518 @@
+package server;
+
+import user.AsyncStratoNetClient;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.net.ServerSocket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.TreeMap;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+import static utils.Utilities.*;
+
+/**
+ * Loads a StratoNet server with many concurrent scripted clients and reports the throughput of the sessions, the
+ * latency of each phase of a session and the CPU and heap the server used. The NASA APIs are replaced by a
+ * NasaStandIn, and the server runs in a JVM of its own, through LoadServer, so that its CPU and heap are not mixed
+ * with those of the clients.
+ * <p>
+ * Every session connects, authenticates, asks for the weather, asks for a few images, each of a date of a fixed set of
+ * dates, and disconnects. The given number of clients run sessions back to back until the given number of sessions
+ * has been run, the clients being started evenly over the ramp so that they do not all connect at the same instant.
+ * <p>
+ * Options, given as --option=value:
+ * <p>
+ * --clients, the number of concurrent clients; --sessions, the number of measured sessions; --warmup, the number of
+ * sessions run before them, whose results are thrown away; --weather and --images, the number of queries of each kind
+ * per session; --dates, the number of distinct dates the images are asked for; --ramp, the time in milliseconds the
+ * clients are started over; --timeout, the time in seconds a query is given; --server-jvm, the JVM options of the
+ * server, separated by spaces; --verbose=true, to print the output of the server.
+ * <p>
+ * --mode, --executor, --single-port, --workers, --event-loops, --cache-mb, --thumbnail-threads and --admin-port are
+ * passed to the server, and --latency, --jitter, --error-rate, --image-kb and --sols to the NASA stand-in.
+ * --mode=all runs the test once for every mode of the server, each on two ports and on a single port, with a new
+ * server for each run.
+ * <p>
+ * The test exits with 1 if any query of a measured session failed, a failed disconnection included, and with 2 if an
+ * option is malformed.
+ */
+public class LoadTest {
+
+    private static final String RULE = "-".repeat(97);
+    private static final String USERNAME = "load";
+    private static final String PASSWORD = "load-password";
+    private static final List<String> SERVER_OPTIONS = Arrays.asList("mode", "executor", "single-port", "workers",
+            "event-loops", "cache-mb", "thumbnail-threads", "admin-port");
+    private static final List<String> STAND_IN_OPTIONS = Arrays.asList("latency", "jitter", "error-rate", "image-kb",
+            "sols");
+
+    /**
+     * The latencies and the failures of one phase of the sessions.
+     */
+    private static final class Phase {
+        private final String name;
+        private final Queue<Long> latencies = new ConcurrentLinkedQueue<>();
+        private final LongAdder failures = new LongAdder();
+        private final Map<String, LongAdder> reasons = new ConcurrentHashMap<>();
+
+        private Phase(String name) {
+            this.name = name;
+        }
+
+        private void record(long latency, Throwable e) {
+            if (e == null) {
+                latencies.add(latency);
+                return;
+            }
+            failures.increment();
+            reasons.computeIfAbsent(reasonOf(e), reason -> new LongAdder()).increment();
+        }
+    }
+
+    /**
+     * The phases of the sessions of one pass, the warmup or the measured one.
+     */
+    private static final class Pass {
+        private final Phase auth = new Phase("auth");
+        private final Phase weather = new Phase("weather");
+        private final Phase image = new Phase("image");
+        private final Phase disconnect = new Phase("disconnect");
+        private final Phase session = new Phase("session");
+        private final AtomicInteger started = new AtomicInteger();
+        private final int sessions;
+
+        private Pass(int sessions) {
+            this.sessions = sessions;
+        }
+
+        private List<Phase> phases() {
+            return Arrays.asList(auth, weather, image, disconnect, session);
+        }
+    }
+
+    private int clients = 1000;
+    private int sessions = 3000;
+    private int warmup;
+    private int weatherQueries = 1;
+    private int imageQueries = 2;
+    private int dates = 64;
+    private long ramp = 1000;
+    private long timeout = CLIENT_REQUEST_TIMEOUT;
+    private boolean singlePort;
+    private boolean verbose;
+    private final List<String> serverJVM = new ArrayList<>();
+    private final List<String> serverArgs = new ArrayList<>();
+    private String[] standInArgs = new String[0];
+
+    private int commandPort;
+    private int filePort;
+    private ScheduledExecutorService driver;
+    private final BlockingQueue<long[]> stats = new LinkedBlockingQueue<>();
+
+    public static void main(String[] args) {
+        List<LoadTest> tests = new ArrayList<>();
+        try {
+            for (String[] run : expandModes(args))
+                tests.add(fromArgs(run));
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.exit(2);
+            return;
+        }
+        Map<String, Boolean> results = new LinkedHashMap<>();
+        for (LoadTest test : tests)
+            results.put(String.join(" ", test.serverArgs), test.run());
+        if (results.size() > 1) {
+            for (Map.Entry<String, Boolean> result : results.entrySet())
+                System.out.println((result.getValue() ? "PASSED " : "FAILED ") + result.getKey());
+        }
+        System.exit(results.containsValue(false) ? 1 : 0);
+    }
+
+    /**
+     * Given command line arguments, returns the arguments of every run they describe: the arguments themselves, or,
+     * for --mode=all, the arguments of a run for every mode of the server on two ports and on a single port.
+     *
+     * @param args the arguments, each of the form --option=value.
+     * @return the arguments of every run.
+     */
+    static List<String[]> expandModes(String[] args) {
+        List<String> common = new ArrayList<>();
+        boolean all = false;
+        for (String arg : args) {
+            if (arg.equals("--mode=all"))
+                all = true;
+            else if (!arg.startsWith("--single-port="))
+                common.add(arg);
+        }
+        if (!all)
+            return Collections.singletonList(args);
+
+        List<String[]> runs = new ArrayList<>();
+        for (ServerConfig.Mode mode : ServerConfig.Mode.values()) {
+            for (boolean singlePort : new boolean[]{false, true}) {
+                List<String> run = new ArrayList<>(common);
+                run.add("--mode=" + mode.name().toLowerCase());
+                run.add("--single-port=" + singlePort);
+                runs.add(run.toArray(new String[0]));
+            }
+        }
+        return runs;
+    }
+
+    /**
+     * Given command line arguments, returns the load test they describe.
+     *
+     * @param args the arguments, each of the form --option=value.
+     * @return the load test.
+     * @throws IllegalArgumentException if an option is unknown or malformed.
+     */
+    static LoadTest fromArgs(String[] args) {
+        LoadTest test = new LoadTest();
+        List<String> standIn = new ArrayList<>();
+        for (String arg : args) {
+            int separator = arg.indexOf('=');
+            if (!arg.startsWith("--") || separator < 0)
+                throw new IllegalArgumentException("Malformed option: " + arg + " | expected --option=value");
+            String option = arg.substring(2, separator);
+            String value = arg.substring(separator + 1);
+            if (SERVER_OPTIONS.contains(option)) {
+                test.serverArgs.add(arg);
+                if (option.equals("single-port"))
+                    test.singlePort = Boolean.parseBoolean(value);
+                continue;
+            }
+            if (STAND_IN_OPTIONS.contains(option)) {
+                standIn.add(arg);
+                continue;
+            }
+            switch (option) {
+                case "clients":
+                    test.clients = positive(option, value);
+                    break;
+                case "sessions":
+                    test.sessions = positive(option, value);
+                    break;
+                case "warmup":
+                    test.warmup = value.equals("0") ? 0 : positive(option, value);
+                    break;
+                case "weather":
+                    test.weatherQueries = value.equals("0") ? 0 : positive(option, value);
+                    break;
+                case "images":
+                    test.imageQueries = value.equals("0") ? 0 : positive(option, value);
+                    break;
+                case "dates":
+                    test.dates = positive(option, value);
+                    break;
+                case "ramp":
+                    test.ramp = value.equals("0") ? 0 : positive(option, value);
+                    break;
+                case "timeout":
+                    test.timeout = positive(option, value) * 1000L;
+                    break;
+                case "server-jvm":
+                    test.serverJVM.addAll(Arrays.asList(value.trim().split("\\s+")));
+                    break;
+                case "verbose":
+                    test.verbose = Boolean.parseBoolean(value);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option: " + arg);
+            }
+        }
+        test.standInArgs = standIn.toArray(new String[0]);
+        // Fails early on a malformed option of the stand-in.
+        NasaStandIn.fromArgs(test.standInArgs);
+        return test;
+    }
+
+    private static int positive(String option, String value) {
+        try {
+            int number = Integer.parseInt(value);
+            if (number > 0)
+                return number;
+        } catch (NumberFormatException ignored) {
+        }
+        throw new IllegalArgumentException("--" + option + " must be a positive number, given: " + value);
+    }
+
+    /**
+     * Starts the stand-in and the server, runs the warmup and the measured sessions and prints the report.
+     *
+     * @return true if every query of every measured session completed, the disconnections included.
+     */
+    boolean run() {
+        NasaStandIn standIn = NasaStandIn.fromArgs(standInArgs);
+        Process server = null;
+        AtomicInteger count = new AtomicInteger();
+        driver = Executors.newScheduledThreadPool(2, runnable -> {
+            Thread thread = new Thread(runnable, "StratoNet-load-driver-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        try {
+            standIn.start();
+            Path directory = Files.createTempDirectory("stratonet-load");
+            server = startServer(standIn, directory);
+            PrintStream commands = new PrintStream(server.getOutputStream(), true, StandardCharsets.UTF_8);
+            System.out.printf("Server [%s] | NASA stand-in [%s] | %d clients, %d sessions of %d weather and %d image "
+                            + "queries%n", String.join(" ", serverArgs), String.join(" ", standInArgs), clients,
+                    sessions, weatherQueries, imageQueries);
+
+            if (warmup > 0) {
+                Pass pass = runPass(warmup);
+                System.out.printf("Warmup: %d of %d sessions completed%n", pass.session.latencies.size(), warmup);
+            }
+            commands.println("reset");
+            long[] before = readStats(commands);
+            long start = System.nanoTime();
+            Pass pass = runPass(sessions);
+            long elapsed = System.nanoTime() - start;
+            long[] after = readStats(commands);
+            report(pass, elapsed, before, after);
+            System.out.println("Server log: " + directory.resolve("server.log"));
+
+            commands.println("quit");
+            server.waitFor(10, TimeUnit.SECONDS);
+            return pass.phases().stream().allMatch(phase -> phase.failures.sum() == 0);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } finally {
+            if (server != null)
+                server.destroy();
+            standIn.stop();
+            driver.shutdownNow();
+        }
+    }
+
+    /**
+     * Starts the server in a new JVM, with a clients file holding the credentials of the load, and waits until it is
+     * ready.
+     */
+    private Process startServer(NasaStandIn standIn, Path directory) throws IOException, InterruptedException {
+        Path clientsFile = directory.resolve(CLIENTS_FILE);
+        Files.write(clientsFile, Arrays.asList(USERNAME, PASSWORD), StandardCharsets.UTF_8);
+        commandPort = freePort();
+        filePort = freePort();
+
+        List<String> command = new ArrayList<>();
+        command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+        command.addAll(serverJVM);
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add(LoadServer.class.getName());
+        command.addAll(serverArgs);
+        command.add("--command-port=" + commandPort);
+        command.add("--file-port=" + filePort);
+        command.add("--clients=" + clientsFile);
+        command.add("--store-dir=" + directory.resolve(IMAGE_STORE_DIRECTORY));
+        command.add("--apod-url=" + standIn.getApodURL());
+        command.add("--insight-url=" + standIn.getInsightURL());
+
+        Process server = new ProcessBuilder(command)
+                .redirectError(directory.resolve("server.log").toFile())
+                .start();
+        CountDownLatch ready = new CountDownLatch(1);
+        Thread reader = new Thread(() -> readServer(server, ready), "StratoNet-load-server-output");
+        reader.setDaemon(true);
+        reader.start();
+        if (!ready.await(30, TimeUnit.SECONDS))
+            throw new IOException("The server did not start, see " + directory.resolve("server.log"));
+        return server;
+    }
+
+    /**
+     * Reads the output of the server until it exits, the output other than the statistics is dropped unless the
+     * test is verbose.
+     */
+    private void readServer(Process server, CountDownLatch ready) {
+        try (BufferedReader output = new BufferedReader(new InputStreamReader(server.getInputStream(),
+                StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = output.readLine()) != null) {
+                if (line.equals(LoadServer.READY)) {
+                    ready.countDown();
+                } else if (line.startsWith(LoadServer.STATS + " ")) {
+                    stats.add(Arrays.stream(line.substring(LoadServer.STATS.length() + 1).split(" "))
+                            .mapToLong(Long::parseLong).toArray());
+                } else if (verbose) {
+                    System.out.println("    " + line);
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private long[] readStats(PrintStream commands) throws IOException, InterruptedException {
+        commands.println("stats");
+        long[] line = stats.poll(10, TimeUnit.SECONDS);
+        if (line == null)
+            throw new IOException("The server did not report its statistics");
+        return line;
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    /**
+     * Runs the given number of sessions on the concurrent clients, and waits until every session is over.
+     */
+    private Pass runPass(int sessions) {
+        Pass pass = new Pass(sessions);
+        int clients = Math.min(this.clients, sessions);
+        List<CompletableFuture<Void>> slots = new ArrayList<>();
+        for (int i = 0; i < clients; i++) {
+            CompletableFuture<Void> slot = new CompletableFuture<>();
+            slots.add(slot);
+            driver.schedule(() -> runSession(pass, slot), ramp * i / clients, TimeUnit.MILLISECONDS);
+        }
+        CompletableFuture.allOf(slots.toArray(new CompletableFuture<?>[0])).join();
+        return pass;
+    }
+
+    /**
+     * Runs the next session of a pass on a new client, then goes on with the next one until the pass has run all of
+     * its sessions. A phase that fails ends its session.
+     *
+     * @param pass the pass the session belongs to.
+     * @param slot the future completed once the pass has started all of its sessions.
+     */
+    private void runSession(Pass pass, CompletableFuture<Void> slot) {
+        int index = pass.started.getAndIncrement();
+        if (index >= pass.sessions) {
+            slot.complete(null);
+            return;
+        }
+        AsyncStratoNetClient client;
+        try {
+            client = new AsyncStratoNetClient(DEFAULT_SERVER_ADDRESS, commandPort, filePort, singlePort, timeout,
+                    CLIENT_MAX_IN_FLIGHT, CLIENT_MAX_QUEUED);
+        } catch (IOException e) {
+            pass.session.record(0, e);
+            driver.execute(() -> runSession(pass, slot));
+            return;
+        }
+
+        long start = System.nanoTime();
+        CompletableFuture<?> session = timed(pass.auth, () -> client.authenticate(USERNAME, PASSWORD));
+        for (int i = 0; i < weatherQueries; i++)
+            session = session.thenCompose(previous -> timed(pass.weather, client::weather));
+        for (int i = 0; i < imageQueries; i++) {
+            String date = LocalDate.of(2020, 1, 1).plusDays((index * imageQueries + i) % dates).toString();
+            session = session.thenCompose(previous -> timed(pass.image, () -> client.image(date)));
+        }
+        session = session.thenCompose(previous -> timed(pass.disconnect, client::disconnect));
+        session.whenCompleteAsync((result, e) -> {
+            client.close();
+            pass.session.record(System.nanoTime() - start, e);
+            runSession(pass, slot);
+        }, driver);
+    }
+
+    /**
+     * Makes a call and records its latency, or its failure, in the given phase.
+     */
+    private static <T> CompletableFuture<T> timed(Phase phase, Supplier<CompletableFuture<T>> call) {
+        long start = System.nanoTime();
+        return call.get().whenComplete((result, e) -> phase.record(System.nanoTime() - start, e));
+    }
+
+    /**
+     * Prints the throughput of the sessions, the percentiles of the latency of every phase, the failures and the
+     * resources the server used.
+     *
+     * @param pass    the measured pass.
+     * @param elapsed the number of nanoseconds the pass took.
+     * @param before  the statistics of the server before the pass.
+     * @param after   the statistics of the server after the pass.
+     */
+    private void report(Pass pass, long elapsed, long[] before, long[] after) {
+        double seconds = elapsed / 1e9;
+        int completed = pass.session.latencies.size();
+        System.out.println(RULE);
+        System.out.printf("| Completed %d of %d sessions in %.2f s | %.1f sessions/s%n", completed, pass.sessions,
+                seconds, completed / seconds);
+        System.out.printf("| %-12s %8s %8s %10s %10s %10s %10s%n", "Phase", "Count", "Failed", "p50 ms", "p99 ms",
+                "p999 ms", "max ms");
+        for (Phase phase : pass.phases()) {
+            List<Long> sorted = new ArrayList<>(phase.latencies);
+            Collections.sort(sorted);
+            System.out.printf("| %-12s %8d %8d %10.1f %10.1f %10.1f %10.1f%n", phase.name, sorted.size(),
+                    phase.failures.sum(), percentile(sorted, 50), percentile(sorted, 99), percentile(sorted, 99.9),
+                    percentile(sorted, 100));
+        }
+        // A failed session fails in one of its phases, so the reasons of the sessions are not printed again.
+        for (Phase phase : pass.phases().subList(0, pass.phases().size() - 1)) {
+            for (Map.Entry<String, LongAdder> reason : new TreeMap<>(phase.reasons).entrySet())
+                System.out.println("|   " + phase.name + " failed " + reason.getValue().sum() + " times: "
+                        + reason.getKey());
+        }
+
+        double cpu = (after[0] - before[0]) / 1e9;
+        System.out.printf("| Server CPU: %.2f s, %.2f cores of %d, %.2f ms per session%n", cpu, cpu / seconds,
+                Runtime.getRuntime().availableProcessors(), completed == 0 ? 0 : cpu * 1000 / completed);
+        System.out.printf("| Server heap: %.1f MB used, %.1f MB peak | GC: %d collections, %d ms | %d threads%n",
+                after[1] / 1048576.0, after[2] / 1048576.0, after[3] - before[3], after[4] - before[4], after[5]);
+        System.out.printf("| Load JVM: %d threads, %.1f MB heap used%n", ManagementFactory.getThreadMXBean()
+                .getThreadCount(), ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed() / 1048576.0);
+        System.out.println(RULE);
+    }
+
+    /**
+     * @return the given percentile of the sorted latencies, in milliseconds, or 0 if there are none.
+     */
+    private static double percentile(List<Long> sorted, double percentile) {
+        if (sorted.isEmpty())
+            return 0;
+        int index = (int) Math.ceil(percentile / 100.0 * sorted.size()) - 1;
+        return sorted.get(Math.max(0, index)) / 1e6;
+    }
+
+    /**
+     * @return the cause of a failed call, without the dates and the urls, so that the same failure of different calls
+     * is counted once.
+     */
+    private static String reasonOf(Throwable e) {
+        while (e instanceof CompletionException && e.getCause() != null)
+            e = e.getCause();
+        String message = String.valueOf(e.getMessage()).replaceAll("https?://\\S+", "<url>")
+                .replaceAll("[0-9]{4}-[0-9]{2}-[0-9]{2}", "<date>");
+        return e.getClass().getSimpleName() + ": " + message;
+    }
+}
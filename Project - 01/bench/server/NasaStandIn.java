@@ -0,0 +1,272 @@
+package server;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A local stand-in for the NASA APIs, so that the server can be loaded without reaching api.nasa.gov. It serves the
+ * APOD JSON at /apod?date=yyyy-mm-dd, the image of each date at /image/yyyy-mm-dd.jpg and the InSight JSON at /insight,
+ * and the server is pointed at it with --apod-url and --insight-url.
+ * <p>
+ * Each response is delayed by the latency, give or take up to the jitter, and fails with a 503 at the error rate. The
+ * delayed responses are sent from a scheduler rather than from sleeping threads, so a slow stand-in does not run out of
+ * threads. The image of a date is made of random bytes seeded by the date, so every run serves the same images.
+ * <p>
+ * Options, given as --option=value: --port (0 picks a free port), --latency and --jitter (in milliseconds),
+ * --error-rate (from 0 to 1), --image-kb (the size of the images) and --sols (the number of sols of the InSight feed).
+ */
+public class NasaStandIn {
+
+    private int port;
+    private long latency;
+    private long jitter;
+    private double errorRate;
+    private int imageSize = 512 * 1024;
+    private int sols = 7;
+
+    private HttpServer http;
+    private ExecutorService handlers;
+    private ScheduledExecutorService responders;
+    private byte[] insight;
+    private final Map<String, byte[]> images = new ConcurrentHashMap<>();
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+
+    public static void main(String[] args) {
+        NasaStandIn standIn = fromArgs(args);
+        try {
+            standIn.start();
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.exit(2);
+        }
+        System.out.println("NASA stand-in listening | --apod-url=" + standIn.getApodURL() + " --insight-url="
+                + standIn.getInsightURL());
+    }
+
+    /**
+     * Given command line arguments, returns the stand-in they describe. The arguments that are not options of the
+     * stand-in are ignored.
+     *
+     * @param args the arguments, each of the form --option=value.
+     * @return the stand-in, not yet started.
+     * @throws IllegalArgumentException if an option of the stand-in is malformed.
+     */
+    public static NasaStandIn fromArgs(String[] args) {
+        NasaStandIn standIn = new NasaStandIn();
+        for (String arg : args) {
+            int separator = arg.indexOf('=');
+            if (!arg.startsWith("--") || separator < 0)
+                continue;
+            String option = arg.substring(2, separator);
+            String value = arg.substring(separator + 1);
+            try {
+                switch (option) {
+                    case "port":
+                        standIn.port = Integer.parseInt(value);
+                        break;
+                    case "latency":
+                        standIn.latency = Long.parseLong(value);
+                        break;
+                    case "jitter":
+                        standIn.jitter = Long.parseLong(value);
+                        break;
+                    case "error-rate":
+                        standIn.errorRate = Double.parseDouble(value);
+                        break;
+                    case "image-kb":
+                        standIn.imageSize = Integer.parseInt(value) * 1024;
+                        break;
+                    case "sols":
+                        standIn.sols = Integer.parseInt(value);
+                        break;
+                    default:
+                        break;
+                }
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Malformed option: " + arg);
+            }
+        }
+        if (standIn.port < 0 || standIn.latency < 0 || standIn.jitter < 0 || standIn.errorRate < 0
+                || standIn.errorRate > 1 || standIn.imageSize < 4 || standIn.sols < 0)
+            throw new IllegalArgumentException("Invalid stand-in options: " + String.join(" ", args));
+        return standIn;
+    }
+
+    /**
+     * Starts serving on the loopback address.
+     *
+     * @throws IOException if the port could not be bound.
+     */
+    public void start() throws IOException {
+        insight = insightJSON(sols).getBytes(StandardCharsets.UTF_8);
+        AtomicInteger count = new AtomicInteger();
+        handlers = Executors.newFixedThreadPool(4, runnable -> {
+            Thread thread = new Thread(runnable, "StratoNet-standin-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        responders = Executors.newScheduledThreadPool(4, runnable -> {
+            Thread thread = new Thread(runnable, "StratoNet-standin-responder-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        http = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 1024);
+        http.setExecutor(handlers);
+        http.createContext("/apod", exchange -> respond(exchange, this::apod));
+        http.createContext("/image/", exchange -> respond(exchange, this::image));
+        http.createContext("/insight", exchange -> respond(exchange, uri -> insight));
+        http.start();
+    }
+
+    /**
+     * Stops serving and prints the number of requests served.
+     */
+    public void stop() {
+        if (http != null)
+            http.stop(0);
+        if (handlers != null)
+            handlers.shutdownNow();
+        if (responders != null)
+            responders.shutdownNow();
+        System.out.println(this);
+    }
+
+    public String getApodURL() {
+        return getBaseURL() + "/apod?date=";
+    }
+
+    public String getInsightURL() {
+        return getBaseURL() + "/insight";
+    }
+
+    private String getBaseURL() {
+        return "http://" + http.getAddress().getHostString() + ":" + http.getAddress().getPort();
+    }
+
+    private interface Body {
+        byte[] of(URI uri);
+    }
+
+    /**
+     * Sends the response of a request once the latency has passed, or a 503 at the error rate.
+     */
+    private void respond(HttpExchange exchange, Body body) {
+        requests.increment();
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        long delay = Math.max(0, latency + (jitter == 0 ? 0 : random.nextLong(-jitter, jitter + 1)));
+        boolean failed = random.nextDouble() < errorRate;
+        responders.schedule(() -> {
+            URI uri = exchange.getRequestURI();
+            try {
+                byte[] bytes = failed ? null : body.of(uri);
+                if (bytes == null) {
+                    errors.increment();
+                    exchange.sendResponseHeaders(failed ? 503 : 404, -1);
+                    return;
+                }
+                exchange.getResponseHeaders().set("Content-Type", uri.getPath().startsWith("/image/") ? "image/jpeg"
+                        : "application/json");
+                exchange.sendResponseHeaders(200, bytes.length);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(bytes);
+                }
+            } catch (IOException e) {
+                // The server gave up on the request.
+            } finally {
+                exchange.close();
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    private byte[] apod(URI uri) {
+        String date = parameter(uri.getQuery(), "date");
+        if (date == null)
+            return null;
+        String image = getBaseURL() + "/image/" + date + ".jpg";
+        return ("{\"date\":\"" + date + "\",\"explanation\":\"A stand-in picture of the day for " + date
+                + ".\",\"hdurl\":\"" + image + "\",\"media_type\":\"image\",\"service_version\":\"v1\","
+                + "\"title\":\"Stand-in " + date + "\",\"url\":\"" + image + "\"}").getBytes(StandardCharsets.UTF_8);
+    }
+
+    private byte[] image(URI uri) {
+        String name = uri.getPath().substring("/image/".length());
+        if (!name.endsWith(".jpg"))
+            return null;
+        return images.computeIfAbsent(name, key -> {
+            byte[] bytes = new byte[imageSize];
+            new Random(key.hashCode()).nextBytes(bytes);
+            // The start and end markers of a JPEG image.
+            bytes[0] = (byte) 0xFF;
+            bytes[1] = (byte) 0xD8;
+            bytes[imageSize - 2] = (byte) 0xFF;
+            bytes[imageSize - 1] = (byte) 0xD9;
+            return bytes;
+        });
+    }
+
+    private static String parameter(String query, String name) {
+        if (query == null)
+            return null;
+        for (String parameter : query.split("&")) {
+            if (parameter.startsWith(name + "="))
+                return parameter.substring(name.length() + 1);
+        }
+        return null;
+    }
+
+    /**
+     * @return an InSight feed of the given number of sols, laid out as the real feed is.
+     */
+    private static String insightJSON(int sols) {
+        Random random = new Random(sols);
+        StringBuilder json = new StringBuilder("{");
+        StringBuilder keys = new StringBuilder();
+        for (int sol = 675; sol < 675 + sols; sol++) {
+            int count = 150_000 + random.nextInt(30_000);
+            json.append('"').append(sol).append("\":{")
+                    .append("\"AT\":").append(sensor(random, -62.3, 15, count)).append(',')
+                    .append("\"HWS\":").append(sensor(random, 4.9, 3, count)).append(',')
+                    .append("\"PRE\":").append(sensor(random, 721.0, 20, count)).append(',')
+                    .append("\"First_UTC\":\"2020-10-19T00:24:03Z\",\"Last_UTC\":\"2020-10-20T01:03:37Z\",")
+                    .append("\"Season\":\"fall\"},");
+            keys.append(keys.length() == 0 ? "" : ",").append('"').append(sol).append('"');
+        }
+        return json.append("\"sol_keys\":[").append(keys).append("]}").toString();
+    }
+
+    private static String sensor(Random random, double average, double spread, int count) {
+        return String.format(Locale.ROOT, "{\"av\":%.3f,\"ct\":%d,\"mn\":%.3f,\"mx\":%.3f}",
+                average + (random.nextDouble() - 0.5) * spread, count, average - spread, average + spread);
+    }
+
+    @Override
+    public String toString() {
+        return "NasaStandIn{" +
+                "requests=" + requests.sum() +
+                ", errors=" + errors.sum() +
+                ", latency=" + latency +
+                ", jitter=" + jitter +
+                ", errorRate=" + errorRate +
+                ", imageSize=" + imageSize +
+                '}';
+    }
+}
@@ -0,0 +1,121 @@
+package server;
+
+import utils.Bench;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static utils.Utilities.*;
+
+/**
+ * The benchmarks of the hot paths of the server: parsing the responses of the NASA APIs, authenticating the clients,
+ * verifying their tokens and computing the checksums of the images. The data is generated from fixed seeds, and the
+ * API responses are read from the captured responses in the bench directory.
+ */
+final class ServerBenchmarks {
+
+    static final int CLIENTS = 10_000;
+    static final int IMAGE_SIZE = 4 * 1024 * 1024;
+    private static final long SEED = 416;
+
+    private ServerBenchmarks() {
+    }
+
+    /**
+     * Adds the benchmarks of the server to a suite.
+     *
+     * @param bench the suite.
+     * @throws IOException if a captured response could not be read or the clients file could not be written.
+     */
+    static void register(Bench bench) throws IOException {
+        registerParsing(bench);
+        registerAuthentication(bench);
+        registerImages(bench);
+    }
+
+    private static void registerParsing(Bench bench) throws IOException {
+        byte[] apod = Files.readAllBytes(Bench.resource("apod.json"));
+        bench.add("apod.parseImageURL", () -> NasaApi.parseImageURL(new ByteArrayInputStream(apod)));
+
+        byte[] insight = Files.readAllBytes(Bench.resource("insight.json"));
+        bench.add("insight.parsePressures", () -> NasaApi.parsePressures(new ByteArrayInputStream(insight)));
+    }
+
+    /**
+     * The usernames, passwords and tokens are looked up in a fixed shuffled order, so that the lookups do not always
+     * hit the same entries.
+     */
+    private static void registerAuthentication(Bench bench) throws IOException {
+        Random random = new Random(SEED);
+        List<String> lines = new ArrayList<>();
+        String[] usernames = new String[CLIENTS];
+        String[] passwords = new String[CLIENTS];
+        for (int i = 0; i < CLIENTS; i++) {
+            usernames[i] = "client" + i;
+            passwords[i] = Long.toString(random.nextLong() & Long.MAX_VALUE, 36);
+            lines.add(usernames[i]);
+            lines.add(passwords[i]);
+        }
+        Path clientsFile = Files.createTempFile("stratonet-bench-clients", ".txt");
+        clientsFile.toFile().deleteOnExit();
+        Files.write(clientsFile, lines, StandardCharsets.UTF_8);
+        CredentialIndex credentials = new CredentialIndex(clientsFile);
+        if (credentials.size() != CLIENTS)
+            throw new IOException("Expected " + CLIENTS + " clients, read " + credentials.size());
+
+        int[] order = shuffled(random, CLIENTS);
+        int[] next = new int[1];
+        bench.add("credentials.containsUsername", () -> {
+            int i = order[next[0]++ % CLIENTS];
+            return credentials.containsUsername(usernames[i]);
+        });
+        bench.add("credentials.authenticate", () -> {
+            int i = order[next[0]++ % CLIENTS];
+            return credentials.authenticate(usernames[i], passwords[i]);
+        });
+
+        // The sessions never expire during the run, and are not swept since the registry is not closed.
+        SessionRegistry sessions = new SessionRegistry(Long.MAX_VALUE / 2);
+        InetAddress IP = InetAddress.getLoopbackAddress();
+        String[] tokens = new String[CLIENTS];
+        for (int i = 0; i < CLIENTS; i++)
+            tokens[i] = sessions.register(usernames[i], IP, COMMAND_PORT + i);
+        bench.add("session.verify", () -> {
+            int i = order[next[0]++ % CLIENTS];
+            return sessions.verify(tokens[i], IP, COMMAND_PORT + i);
+        });
+    }
+
+    private static void registerImages(Bench bench) {
+        byte[] bytes = new byte[IMAGE_SIZE];
+        new Random(SEED).nextBytes(bytes);
+        ApodImage image = new ApodImage("2020-01-01", "https://apod.nasa.gov/apod/image/2001/bench.jpg", bytes);
+
+        bench.add("image.digestOf", () -> ApodImage.digestOf(image.getData()));
+        bench.add("image.checksumOf", () -> image.checksumOf(IMAGE_CHUNK_SIZE, IMAGE_CHUNK_SIZE));
+        // The hash the images were verified with before the CRC32C digests, kept for comparison.
+        bench.add("image.arraysHashCode", () -> Arrays.hashCode(bytes));
+    }
+
+    private static int[] shuffled(Random random, int size) {
+        int[] order = new int[size];
+        for (int i = 0; i < size; i++)
+            order[i] = i;
+        for (int i = size - 1; i > 0; i--) {
+            int j = random.nextInt(i + 1);
+            int swap = order[i];
+            order[i] = order[j];
+            order[j] = swap;
+        }
+        return order;
+    }
+}
@@ -0,0 +1,409 @@
+package utils;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+/**
+ * A small harness that measures the hot paths of StratoNet in the time each call takes. Every benchmark runs in a JVM
+ * of its own, so that the code compiled for one benchmark does not slow down the next one, and is measured as a number
+ * of warmup iterations, which are thrown away, followed by a number of measured iterations. An iteration calls the
+ * benchmark in a loop for a fixed time, and the time per call of the iteration is the time of the loop divided by the
+ * number of calls. Each benchmark is run in several JVMs in a row, and the median of the fork medians is reported,
+ * along with the fastest and the slowest iteration of every fork.
+ * <p>
+ * The results can be saved as a baseline, and a later run can be compared with the baseline, in which case a benchmark
+ * that got slower than the baseline by more than the tolerance fails the run. A result whose slowest iteration is
+ * further from its fastest one than the tolerance, relative to its median, is too noisy to tell a regression from the
+ * noise of the machine: it is flagged as NOISY and left out of the comparison, and the results are not saved as a
+ * baseline if any of them is noisy.
+ * <p>
+ * Options, given as --option=value: --filter (a regex the names of the benchmarks are matched against), --warmup and
+ * --iterations (the number of iterations), --time (the duration of an iteration in milliseconds), --forks (the number
+ * of JVMs each benchmark runs in, 0 runs every benchmark in this JVM), --save (the file the results are saved to),
+ * --baseline (the file the results are compared with) and --tolerance (the allowed slowdown and spread, 0.25 by
+ * default).
+ */
+public final class Bench {
+
+    /**
+     * The code being measured. Whatever it returns is kept, so that the JIT compiler cannot drop the computation.
+     */
+    public interface Operation {
+        Object run() throws Exception;
+    }
+
+    /**
+     * The time per call of a benchmark, in nanoseconds.
+     */
+    public static final class Result {
+        private final String name;
+        private final double median;
+        private final double min;
+        private final double max;
+
+        Result(String name, double median, double min, double max) {
+            this.name = name;
+            this.median = median;
+            this.min = min;
+            this.max = max;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public double getMedian() {
+            return median;
+        }
+
+        /**
+         * @return the gap between the slowest and the fastest iteration, relative to the median.
+         */
+        public double getSpread() {
+            return (max - min) / median;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.ROOT, "%-40s %14.1f %14.1f %14.1f", name, median, min, max);
+        }
+    }
+
+    private static final String RESULT_PREFIX = "RESULT ";
+    private static final String COLUMNS = String.format(Locale.ROOT, "%-40s %14s %14s %14s",
+            "# Benchmark", "ns/op (median)", "min", "max");
+
+    // Written by every call, so that what the benchmarks return is never unused.
+    private static volatile Object sink;
+
+    private final Map<String, Operation> benchmarks = new LinkedHashMap<>();
+    private Pattern filter = Pattern.compile(".*");
+    private int warmup = 5;
+    private int iterations = 15;
+    private long time = 500;
+    private int forks = 3;
+    private String save;
+    private String baseline;
+    private double tolerance = 0.25;
+    private String only;
+
+    /**
+     * Adds a benchmark to the suite. The setup of the benchmark, such as the data it works on, is done before it is
+     * added, with fixed seeds so that every run measures the same work.
+     *
+     * @param name      the name of the benchmark, unique in the suite.
+     * @param operation the code being measured.
+     */
+    public void add(String name, Operation operation) {
+        if (benchmarks.put(name, operation) != null)
+            throw new IllegalArgumentException("Duplicate benchmark " + name);
+    }
+
+    /**
+     * Given the command line arguments, runs the benchmarks of the suite and prints their results.
+     *
+     * @param mainClass the class whose main method builds the suite, which the forked JVMs are started with.
+     * @param args      the command line arguments.
+     * @return the exit code of the run: 0 if it went fine, 1 if a benchmark regressed against the baseline, 2 if the
+     * arguments are invalid or a benchmark failed.
+     */
+    public int run(Class<?> mainClass, String[] args) {
+        try {
+            parse(args);
+        } catch (IllegalArgumentException e) {
+            System.out.println("INVALID OPTION: " + e.getMessage());
+            return 2;
+        }
+
+        // A forked JVM runs a single benchmark and reports its result to the parent.
+        if (only != null) {
+            Operation operation = benchmarks.get(only);
+            if (operation == null)
+                return 2;
+            try {
+                System.out.println(RESULT_PREFIX + encode(measure(only, operation)));
+                return 0;
+            } catch (Exception e) {
+                e.printStackTrace();
+                return 2;
+            }
+        }
+
+        System.out.println(header());
+        if (Runtime.getRuntime().availableProcessors() < 2)
+            System.out.println("# Only 1 CPU: the compiler and the collector run on the measured CPU, expect noise");
+        System.out.println(COLUMNS);
+        List<Result> results = new ArrayList<>();
+        for (Map.Entry<String, Operation> benchmark : benchmarks.entrySet()) {
+            if (!filter.matcher(benchmark.getKey()).find())
+                continue;
+            try {
+                Result result = forks == 0 ? measure(benchmark.getKey(), benchmark.getValue())
+                        : forks(mainClass, benchmark.getKey());
+                results.add(result);
+                System.out.println(isNoisy(result) ? result + "  NOISY" : result);
+            } catch (Exception e) {
+                System.out.println("Benchmark " + benchmark.getKey() + " failed: " + e.getMessage());
+                return 2;
+            }
+        }
+
+        try {
+            if (save != null && !save(Paths.get(save), results))
+                return 2;
+            if (baseline != null)
+                return compare(load(Paths.get(baseline)), results) ? 0 : 1;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return 2;
+        }
+        return 0;
+    }
+
+    private void parse(String[] args) {
+        for (String arg : args) {
+            int separator = arg.indexOf('=');
+            if (!arg.startsWith("--") || separator < 0)
+                throw new IllegalArgumentException(arg);
+            String option = arg.substring(2, separator);
+            String value = arg.substring(separator + 1);
+            try {
+                switch (option) {
+                    case "filter":
+                        filter = Pattern.compile(value);
+                        break;
+                    case "warmup":
+                        warmup = Integer.parseInt(value);
+                        break;
+                    case "iterations":
+                        iterations = Integer.parseInt(value);
+                        break;
+                    case "time":
+                        time = Long.parseLong(value);
+                        break;
+                    case "forks":
+                        forks = Integer.parseInt(value);
+                        break;
+                    case "save":
+                        save = value;
+                        break;
+                    case "baseline":
+                        baseline = value;
+                        break;
+                    case "tolerance":
+                        tolerance = Double.parseDouble(value);
+                        break;
+                    case "only":
+                        only = value;
+                        break;
+                    default:
+                        throw new IllegalArgumentException(arg);
+                }
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException(arg);
+            }
+        }
+        if (warmup < 0 || iterations < 1 || time < 1 || forks < 0 || tolerance < 0)
+            throw new IllegalArgumentException(String.join(" ", args));
+    }
+
+    /**
+     * Runs the warmup and the measured iterations of a benchmark in this JVM.
+     */
+    private Result measure(String name, Operation operation) throws Exception {
+        for (int i = 0; i < warmup; i++)
+            iteration(operation);
+        double[] times = new double[iterations];
+        for (int i = 0; i < iterations; i++)
+            times[i] = iteration(operation);
+        Arrays.sort(times);
+        return new Result(name, times[times.length / 2], times[0], times[times.length - 1]);
+    }
+
+    /**
+     * Calls the operation for the duration of an iteration, in batches so that reading the clock does not weigh on
+     * the fast operations, and returns the time per call.
+     */
+    private double iteration(Operation operation) throws Exception {
+        long duration = TimeUnit.MILLISECONDS.toNanos(time);
+        long calls = 0;
+        int batch = 1;
+        long start = System.nanoTime();
+        long elapsed;
+        do {
+            for (int i = 0; i < batch; i++)
+                sink = operation.run();
+            calls += batch;
+            elapsed = System.nanoTime() - start;
+            if (batch < 1 << 16 && elapsed < duration / 100)
+                batch <<= 1;
+        } while (elapsed < duration);
+        return (double) elapsed / calls;
+    }
+
+    /**
+     * Runs a benchmark in the given number of JVMs in a row, and combines their results: the median of the medians of
+     * the forks, between the fastest and the slowest iteration of them all.
+     */
+    private Result forks(Class<?> mainClass, String name) throws IOException, InterruptedException {
+        double[] medians = new double[forks];
+        double min = Double.MAX_VALUE;
+        double max = 0;
+        for (int i = 0; i < forks; i++) {
+            Result result = fork(mainClass, name);
+            medians[i] = result.median;
+            min = Math.min(min, result.min);
+            max = Math.max(max, result.max);
+        }
+        Arrays.sort(medians);
+        return new Result(name, medians[medians.length / 2], min, max);
+    }
+
+    private boolean isNoisy(Result result) {
+        return result.getSpread() > tolerance;
+    }
+
+    /**
+     * Runs a benchmark in a new JVM started with the same classpath and JVM options as this one, and reads its result.
+     */
+    private Result fork(Class<?> mainClass, String name) throws IOException, InterruptedException {
+        List<String> command = new ArrayList<>();
+        command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+        command.addAll(ManagementFactory.getRuntimeMXBean().getInputArguments());
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add(mainClass.getName());
+        command.add("--warmup=" + warmup);
+        command.add("--iterations=" + iterations);
+        command.add("--time=" + time);
+        command.add("--only=" + name);
+
+        Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+        Result result = null;
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream(),
+                StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.startsWith(RESULT_PREFIX))
+                    result = decode(line.substring(RESULT_PREFIX.length()));
+                else
+                    System.out.println("    " + line);
+            }
+        }
+        if (process.waitFor() != 0 || result == null)
+            throw new IOException("the forked JVM exited with " + process.exitValue());
+        return result;
+    }
+
+    private static String encode(Result result) {
+        return String.format(Locale.ROOT, "%s %.1f %.1f %.1f", result.name, result.median, result.min, result.max);
+    }
+
+    private static Result decode(String line) {
+        String[] fields = line.trim().split("\\s+");
+        return new Result(fields[0], Double.parseDouble(fields[1]), Double.parseDouble(fields[2]),
+                Double.parseDouble(fields[3]));
+    }
+
+    /**
+     * @return the comment lines that describe the machine and the settings the results were measured with.
+     */
+    private String header() {
+        return "# " + LocalDate.now() + " | Java " + System.getProperty("java.version") + " ("
+                + System.getProperty("java.vm.name") + ") | " + System.getProperty("os.name") + " "
+                + System.getProperty("os.arch") + " | " + Runtime.getRuntime().availableProcessors() + " CPUs"
+                + System.lineSeparator() + "# warmup=" + warmup + " iterations=" + iterations + " time=" + time
+                + "ms forks=" + forks + " tolerance=" + tolerance;
+    }
+
+    /**
+     * Saves the results as a baseline, unless one of them is too noisy to be compared with.
+     *
+     * @return true if the results are saved.
+     */
+    private boolean save(Path path, List<Result> results) throws IOException {
+        boolean noisy = false;
+        for (Result result : results) {
+            if (isNoisy(result)) {
+                System.out.println(String.format(Locale.ROOT, "%s spreads over %.0f%% of its median", result.name,
+                        result.getSpread() * 100));
+                noisy = true;
+            }
+        }
+        if (noisy) {
+            System.out.println("Results not saved to " + path + ": some spread over more than the tolerance of "
+                    + Math.round(tolerance * 100) + "%, measure them on a quieter machine or with more iterations");
+            return false;
+        }
+        List<String> lines = new ArrayList<>();
+        lines.add(header());
+        lines.add(COLUMNS);
+        for (Result result : results)
+            lines.add(result.toString());
+        Path parent = path.toAbsolutePath().getParent();
+        if (parent != null)
+            Files.createDirectories(parent);
+        Files.write(path, lines, StandardCharsets.UTF_8);
+        System.out.println("Results saved to " + path);
+        return true;
+    }
+
+    private static Map<String, Result> load(Path path) throws IOException {
+        Map<String, Result> results = new LinkedHashMap<>();
+        for (String line : Files.readAllLines(path, StandardCharsets.UTF_8)) {
+            if (!line.isBlank() && !line.startsWith("#")) {
+                Result result = decode(line);
+                results.put(result.name, result);
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Compares the results with the baseline and prints the change of every benchmark. A benchmark whose result or
+     * baseline is noisy is flagged instead of being compared.
+     *
+     * @return true if no benchmark got slower than the baseline by more than the tolerance.
+     */
+    private boolean compare(Map<String, Result> baseline, List<Result> results) {
+        boolean passed = true;
+        System.out.println("Compared with " + this.baseline + " | tolerance " + Math.round(tolerance * 100) + "%");
+        for (Result result : results) {
+            Result base = baseline.get(result.name);
+            if (base == null) {
+                System.out.println(String.format(Locale.ROOT, "%-40s %14s", result.name, "new"));
+                continue;
+            }
+            double change = result.median / base.median - 1;
+            boolean noisy = isNoisy(result) || isNoisy(base);
+            boolean regressed = !noisy && change > tolerance;
+            passed &= !regressed;
+            System.out.println(String.format(Locale.ROOT, "%-40s %+13.1f%% %s", result.name, change * 100,
+                    noisy ? "NOISY" : regressed ? "REGRESSED" : "").stripTrailing());
+        }
+        return passed;
+    }
+
+    /**
+     * @param name the name of a file the benchmarks work on, such as a captured API response.
+     * @return the path of the file, in the directory given by the bench.resources property, bench by default.
+     */
+    public static Path resource(String name) {
+        return Paths.get(System.getProperty("bench.resources", "bench"), name);
+    }
+}
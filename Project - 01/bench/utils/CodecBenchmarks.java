@@ -0,0 +1,79 @@
+package utils;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.nio.ByteBuffer;
+
+import static utils.Utilities.*;
+
+/**
+ * The benchmarks of the frames every request and reply goes through, on both the client and the server. The encoding
+ * and decoding once done by getAuthRequestByteArray, getQueryRequestByteArray, queryMessage and clientQueryResponse
+ * is done by FrameCodec, so it is FrameCodec that is measured.
+ */
+public final class CodecBenchmarks {
+
+    private static final String USERNAME = "Abdul";
+    private static final String TOKEN = "AbdQm9yZWFsaXNfU3RyYXRvTmV0";
+    private static final String IMAGE_QUERY = "2020-01-01@256q80" + DIGEST_SEPARATOR + "0a1b2c3d";
+
+    private CodecBenchmarks() {
+    }
+
+    /**
+     * Adds the benchmarks of the frames to a suite.
+     *
+     * @param bench the suite.
+     */
+    public static void register(Bench bench) {
+        ByteBuffer out = ByteBuffer.allocate(FRAME_BUFFER_SIZE);
+        bench.add("frame.putAuthRequest", () -> {
+            out.clear();
+            FrameCodec.putMessage(out, Auth_Phase, Auth_Request, NO_REQUEST_ID, USERNAME);
+            return out;
+        });
+        bench.add("frame.putImageQuery", () -> {
+            out.clear();
+            FrameCodec.putQuery(out, Query_Phase, Query_Image, 42, IMAGE_QUERY, TOKEN);
+            return out;
+        });
+        bench.add("frame.putChunkHeader", () -> {
+            out.clear();
+            FrameCodec.putChunkHeader(out, Query_Phase, Query_Image_Chunk, 42, IMAGE_CHUNK_SIZE, 3L * IMAGE_CHUNK_SIZE,
+                    4L * 1024 * 1024, 0x5eed5eed);
+            return out;
+        });
+
+        FrameCodec codec = new FrameCodec();
+        ByteArrayOutputStream stream = new ByteArrayOutputStream(FRAME_BUFFER_SIZE);
+        bench.add("frame.writeImageQuery", () -> {
+            stream.reset();
+            codec.writeQuery(stream, Query_Phase, Query_Image, 42, IMAGE_QUERY, TOKEN);
+            return stream;
+        });
+
+        ByteBuffer query = ByteBuffer.allocate(FrameCodec.queryFrameLength(IMAGE_QUERY, TOKEN));
+        FrameCodec.putQuery(query, Query_Phase, Query_Image, 42, IMAGE_QUERY, TOKEN);
+        bench.add("frame.decodeImageQuery", () -> {
+            query.position(0);
+            return FrameCodec.decodeQuery(query);
+        });
+
+        ByteArrayInputStream queryStream = new ByteArrayInputStream(query.array());
+        DataInputStream in = new DataInputStream(queryStream);
+        bench.add("frame.readImageQuery", () -> {
+            queryStream.reset();
+            return codec.readQuery(in);
+        });
+
+        ByteBuffer reply = ByteBuffer.allocate(FrameCodec.CHUNK_HEADER_SIZE + FrameCodec.messageFrameLength(TOKEN));
+        FrameCodec.putChunkHeader(reply, Query_Phase, Query_Image_Chunk, 42, 0, 0, 4L * 1024 * 1024, 0);
+        FrameCodec.putMessage(reply, Auth_Phase, Auth_Success, NO_REQUEST_ID, TOKEN);
+        bench.add("frame.decodeReplies", () -> {
+            reply.position(0);
+            FrameCodec.decodeFrame(reply);
+            return FrameCodec.decodeFrame(reply);
+        });
+    }
+}
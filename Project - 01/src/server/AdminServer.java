@@ -0,0 +1,105 @@
+package server;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Serves the metrics of the server as plain text on the admin port, so that they can be scraped without a JMX client.
+ * Every connection is sent the metrics once and closed: a connection that starts with an HTTP GET, such as one made by
+ * curl or Prometheus, is answered with an HTTP response, any other with the bare text. The port is bound to the
+ * loopback address only, since the metrics are not meant for the clients of the server.
+ */
+class AdminServer {
+
+    private static final int READ_TIMEOUT = 1000;
+    private static final int MAX_REQUEST_SIZE = 8 * 1024;
+
+    private final ServerMetrics metrics;
+    private final ServerSocket serverSocket;
+    private final Thread acceptor;
+
+    /**
+     * Binds the admin port and starts serving it.
+     *
+     * @param metrics the metrics to be served.
+     * @param port    the admin port.
+     * @throws IOException if the port could not be bound.
+     */
+    AdminServer(ServerMetrics metrics, int port) throws IOException {
+        this.metrics = metrics;
+        this.serverSocket = new ServerSocket();
+        serverSocket.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+        this.acceptor = new Thread(this::acceptConnections, "StratoNet-admin");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        System.out.println("Metrics served on " + serverSocket.getLocalSocketAddress());
+    }
+
+    /**
+     * Serves the connections one at a time until the admin port is closed, each of them is short-lived.
+     */
+    private void acceptConnections() {
+        while (!serverSocket.isClosed()) {
+            try (Socket socket = serverSocket.accept()) {
+                serve(socket);
+            } catch (IOException e) {
+                if (!serverSocket.isClosed())
+                    e.printStackTrace();
+            }
+        }
+    }
+
+    private void serve(Socket socket) throws IOException {
+        socket.setSoTimeout(READ_TIMEOUT);
+        boolean http = isHttpRequest(socket.getInputStream());
+        byte[] body = metrics.format().getBytes(StandardCharsets.UTF_8);
+        OutputStream out = socket.getOutputStream();
+        if (http) {
+            out.write(("HTTP/1.0 200 OK\r\nContent-Type: text/plain; version=0.0.4; charset=utf-8\r\n"
+                    + "Content-Length: " + body.length + "\r\nConnection: close\r\n\r\n")
+                    .getBytes(StandardCharsets.US_ASCII));
+        }
+        out.write(body);
+        out.flush();
+    }
+
+    /**
+     * Reads the request of a connection up to the end of its headers, if it sends any.
+     *
+     * @return true if the connection sent an HTTP GET, false if it sent nothing in time or anything else.
+     */
+    private static boolean isHttpRequest(InputStream in) throws IOException {
+        StringBuilder request = new StringBuilder();
+        try {
+            int c;
+            while (request.length() < MAX_REQUEST_SIZE && (c = in.read()) != -1) {
+                request.append((char) c);
+                if (request.length() == 4 && !request.toString().equals("GET "))
+                    return false;
+                if (request.length() >= 4 && request.lastIndexOf("\r\n\r\n") == request.length() - 4)
+                    break;
+            }
+        } catch (SocketTimeoutException e) {
+            // A bare connection, such as one made by netcat, does not send anything.
+        }
+        return request.toString().startsWith("GET ");
+    }
+
+    /**
+     * Stops serving the admin port.
+     */
+    void close() {
+        try {
+            serverSocket.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
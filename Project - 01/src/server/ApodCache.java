@@ -0,0 +1,201 @@
+package server;
+
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A bounded in-memory cache of the images of the day, keyed by their date, or by the key of their variant, and shared
+ * by every session. The cache holds
+ * at most a given number of image bytes and evicts the least recently used images first. The image of a past date
+ * never changes, so it may stay in the cache for long, while the image of the current date expires quickly.
+ * <p>
+ * Hits take no lock: an image records when it was last used, and the images are only ordered by that time when the
+ * cache is over its budget, under a lock that is held for the eviction only. The order is therefore approximate, an
+ * image used while the eviction runs may still be evicted.
+ */
+class ApodCache {
+
+    /**
+     * The time zone the APOD API publishes its images in.
+     */
+    private static final ZoneId APOD_ZONE = ZoneId.of("America/New_York");
+
+    private static final class Entry {
+        private final ApodImage image;
+        private final long expiresAt;
+        private volatile long lastUsed;
+        /**
+         * The time of last use the eviction orders the entries by, read once so that it does not change while they
+         * are sorted.
+         */
+        private long evictionOrder;
+
+        private Entry(ApodImage image, long expiresAt) {
+            this.image = image;
+            this.expiresAt = expiresAt;
+            this.lastUsed = System.nanoTime();
+        }
+    }
+
+    private final Map<String, Entry> entries;
+    private final Object evictionLock;
+    private final long byteBudget;
+    private final long pastTimeToLive;
+    private final long todayTimeToLive;
+    private final LongAdder hits;
+    private final LongAdder misses;
+    private final LongAdder evictions;
+    private final LongAdder expirations;
+    private final AtomicLong usedBytes;
+
+    /**
+     * Creates an empty cache.
+     *
+     * @param byteBudget      the maximum number of image bytes the cache may hold.
+     * @param pastTimeToLive  the time in milliseconds the image of a past date stays in the cache.
+     * @param todayTimeToLive the time in milliseconds the image of the current date stays in the cache.
+     */
+    ApodCache(long byteBudget, long pastTimeToLive, long todayTimeToLive) {
+        this.entries = new ConcurrentHashMap<>();
+        this.evictionLock = new Object();
+        this.byteBudget = byteBudget;
+        this.pastTimeToLive = pastTimeToLive;
+        this.todayTimeToLive = todayTimeToLive;
+        this.hits = new LongAdder();
+        this.misses = new LongAdder();
+        this.evictions = new LongAdder();
+        this.expirations = new LongAdder();
+        this.usedBytes = new AtomicLong();
+    }
+
+    /**
+     * Given a date, returns the cached image of that date.
+     *
+     * @param date the date of the image as follows: yyyy-mm-dd.
+     * @return the cached image, or null if the image is not cached or has expired.
+     */
+    ApodImage get(String date) {
+        Entry entry = entries.get(date);
+        if (entry != null && entry.expiresAt < System.currentTimeMillis()) {
+            if (entries.remove(date, entry)) {
+                usedBytes.addAndGet(-entry.image.getSize());
+                expirations.increment();
+            }
+            entry = null;
+        }
+        if (entry == null) {
+            misses.increment();
+            return null;
+        }
+        entry.lastUsed = System.nanoTime();
+        hits.increment();
+        return entry.image;
+    }
+
+    /**
+     * Adds an image to the cache, evicting the least recently used images until the cache fits in its byte budget.
+     * An image that is larger than the whole budget is not cached.
+     *
+     * @param image the image to be cached.
+     */
+    void put(ApodImage image) {
+        if (image.getSize() > byteBudget)
+            return;
+        Entry entry = new Entry(image, System.currentTimeMillis() + timeToLive(image.getDate()));
+
+        Entry previous = entries.put(image.getDate(), entry);
+        long delta = image.getSize() - (previous == null ? 0 : previous.image.getSize());
+        if (usedBytes.addAndGet(delta) > byteBudget)
+            evict();
+    }
+
+    /**
+     * Evicts the least recently used images until the cache fits in its byte budget. An image that is replaced or
+     * expires while the eviction runs is left to the call that removes it.
+     */
+    private void evict() {
+        synchronized (evictionLock) {
+            if (usedBytes.get() <= byteBudget)
+                return;
+            List<Entry> eldest = new ArrayList<>(entries.values());
+            for (Entry candidate : eldest)
+                candidate.evictionOrder = candidate.lastUsed;
+            eldest.sort(Comparator.comparingLong(candidate -> candidate.evictionOrder));
+            for (Entry evicted : eldest) {
+                if (usedBytes.get() <= byteBudget)
+                    break;
+                if (entries.remove(evicted.image.getDate(), evicted)) {
+                    usedBytes.addAndGet(-evicted.image.getSize());
+                    evictions.increment();
+                }
+            }
+        }
+    }
+
+    /**
+     * Given a date, returns how long its image may stay in the cache.
+     */
+    private long timeToLive(String date) {
+        return isPastDate(date) ? pastTimeToLive : todayTimeToLive;
+    }
+
+    /**
+     * Given a date, returns true if the date is before the current date of the APOD API. The image of such a date
+     * never changes, nor do its variants.
+     *
+     * @param date the date of an image as follows: yyyy-mm-dd, or the key of one of its variants.
+     * @return true if the date is a past date and false if it is the current date or cannot be parsed.
+     */
+    static boolean isPastDate(String date) {
+        try {
+            return LocalDate.parse(ImageVariant.dateOf(date)).isBefore(LocalDate.now(APOD_ZONE));
+        } catch (DateTimeParseException e) {
+            return false;
+        }
+    }
+
+    long getHits() {
+        return hits.sum();
+    }
+
+    long getMisses() {
+        return misses.sum();
+    }
+
+    long getEvictions() {
+        return evictions.sum();
+    }
+
+    long getExpirations() {
+        return expirations.sum();
+    }
+
+    long getUsedBytes() {
+        return usedBytes.get();
+    }
+
+    int size() {
+        return entries.size();
+    }
+
+    @Override
+    public String toString() {
+        return "ApodCache{" +
+                "images=" + size() +
+                ", usedBytes=" + getUsedBytes() +
+                ", byteBudget=" + byteBudget +
+                ", hits=" + getHits() +
+                ", misses=" + getMisses() +
+                ", evictions=" + getEvictions() +
+                ", expirations=" + getExpirations() +
+                '}';
+    }
+}
@@ -0,0 +1,143 @@
+package server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.zip.CRC32C;
+
+import static utils.Utilities.*;
+
+/**
+ * An object to hold an image of the day retrieved from the APOD API, along with the digest the client verifies it
+ * with. The digest is the CRC32C checksum of the whole image and is computed once, when the image is retrieved, so
+ * that the client is able to compute it chunk by chunk as the image arrives. The bytes of the image are either on the
+ * heap or in the memory mapping of an ImageStore segment, and are never copied when the image is sent. An image of an
+ * ImageStore segment is sent by the kernel straight from the segment file.
+ */
+class ApodImage {
+
+    private final String date;
+    private final String imageURL;
+    private final ByteBuffer data;
+    private final String digest;
+    private final FileChannel file;
+    private final long filePosition;
+
+    ApodImage(String date, String imageURL, byte[] bytes) {
+        this(date, imageURL, ByteBuffer.wrap(bytes), digestOf(ByteBuffer.wrap(bytes)));
+    }
+
+    ApodImage(String date, String imageURL, ByteBuffer data, String digest) {
+        this(date, imageURL, data, digest, null, 0);
+    }
+
+    /**
+     * @param data         the bytes of the image.
+     * @param file         the file the bytes of the image are kept in, or null if they are only in memory.
+     * @param filePosition the position of the first byte of the image in the file.
+     */
+    ApodImage(String date, String imageURL, ByteBuffer data, String digest, FileChannel file, long filePosition) {
+        this.date = date;
+        this.imageURL = imageURL;
+        this.data = data.asReadOnlyBuffer();
+        this.digest = digest;
+        this.file = file;
+        this.filePosition = filePosition;
+    }
+
+    /**
+     * Writes a range of the bytes of the image into a blocking channel. The bytes of an image kept in a file are
+     * transferred from the file by the kernel, with sendfile when the channel is a socket, the others are written from
+     * their buffer.
+     *
+     * @param target the channel to write into.
+     * @param offset the offset of the first byte to be written.
+     * @param count  the number of bytes to be written.
+     * @throws IOException if the channel could not be written.
+     */
+    void transferTo(WritableByteChannel target, long offset, long count) throws IOException {
+        long sent = 0;
+        if (file != null) {
+            try {
+                long transferred = 1;
+                while (sent < count && transferred > 0) {
+                    transferred = file.transferTo(filePosition + offset + sent, count - sent, target);
+                    sent += transferred;
+                }
+            } catch (ClosedChannelException e) {
+                // The segment has been compacted or dropped since the lookup, its memory mapping is still valid.
+                if (!target.isOpen())
+                    throw e;
+            }
+            if (sent == count)
+                return;
+        }
+        ByteBuffer range = getData();
+        range.position((int) (offset + sent)).limit((int) (offset + count));
+        while (range.hasRemaining())
+            target.write(range);
+    }
+
+    /**
+     * Computes the CRC32C checksum of a range of the bytes of the image, which the client verifies the chunk holding
+     * the range with. CRC32C is computed by the processor, so the range is read at about the speed it is copied.
+     *
+     * @param offset the offset of the first byte of the range.
+     * @param count  the number of bytes in the range.
+     * @return the checksum of the range.
+     */
+    int checksumOf(long offset, int count) {
+        ByteBuffer range = getData();
+        range.position((int) offset).limit((int) offset + count);
+        CRC32C checksum = new CRC32C();
+        checksum.update(range);
+        return (int) checksum.getValue();
+    }
+
+    /**
+     * Given the bytes of an image, computes its digest.
+     *
+     * @param data the bytes of the image, from the position of the buffer to its limit, which are left unchanged.
+     * @return the digest of the image.
+     */
+    static String digestOf(ByteBuffer data) {
+        CRC32C checksum = new CRC32C();
+        checksum.update(data.duplicate());
+        return toDigest(checksum.getValue());
+    }
+
+    String getDate() {
+        return date;
+    }
+
+    String getImageURL() {
+        return imageURL;
+    }
+
+    /**
+     * @return a read-only view of the bytes of the image, positioned at the first byte.
+     */
+    ByteBuffer getData() {
+        return data.duplicate();
+    }
+
+    String getDigest() {
+        return digest;
+    }
+
+    int getSize() {
+        return data.remaining();
+    }
+
+    @Override
+    public String toString() {
+        return "ApodImage{" +
+                "date='" + date + '\'' +
+                ", imageURL='" + imageURL + '\'' +
+                ", size=" + getSize() +
+                ", digest='" + digest + '\'' +
+                '}';
+    }
+}
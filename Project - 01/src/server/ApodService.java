@@ -0,0 +1,135 @@
+package server;
+
+import java.io.IOException;
+
+/**
+ * Serves the images of the day to every session of the server. An image is looked up in the in-memory cache first,
+ * then in the on-disk image store, and is retrieved from the APOD API only if it is found in neither of them. Sessions
+ * that ask for the same date while it is being retrieved share the same call to the API. A downscaled variant of an
+ * image is transcoded from the original image once and is then cached and stored under its own key, next to the
+ * original image.
+ */
+class ApodService {
+
+    private final ApodCache cache;
+    private final ImageStore store;
+    private final NasaApi nasaApi;
+    private final ThumbnailService thumbnails;
+    private final SingleFlight<String, ApodImage> flights;
+
+    /**
+     * @param cache      the in-memory cache of the images.
+     * @param store      the on-disk store of the images, or null to keep the images in memory only.
+     * @param nasaApi    the NASA APIs the images are retrieved from.
+     * @param thumbnails the service that transcodes the variants of the images.
+     */
+    ApodService(ApodCache cache, ImageStore store, NasaApi nasaApi, ThumbnailService thumbnails) {
+        this.cache = cache;
+        this.store = store;
+        this.nasaApi = nasaApi;
+        this.thumbnails = thumbnails;
+        this.flights = new SingleFlight<>();
+    }
+
+    /**
+     * Given the message of an image query, returns the variant of the image of the day it asks for.
+     *
+     * @param query the date of the image as follows: yyyy-mm-dd, optionally followed by the size and the quality of a
+     *              downscaled variant as follows: yyyy-mm-dd@500 or yyyy-mm-dd@500q80.
+     * @return the image of the day, or its downscaled variant.
+     * @throws IOException if the query is malformed, or the image is not cached nor stored and could not be retrieved
+     *                     from the API or transcoded.
+     */
+    ApodImage getImage(String query) throws IOException {
+        ImageVariant variant = ImageVariant.parse(query);
+        if (variant == null)
+            throw new IOException("Malformed image query: " + query);
+        ApodImage image = lookup(variant.getKey());
+        if (image != null)
+            return image;
+
+        if (!variant.isOriginal()) {
+            // A variant larger than its image is kept under the key of the largest variant the image has.
+            variant = variant.clampTo(thumbnails.longestSideOf(getImage(variant.getDate())));
+            image = lookup(variant.getKey());
+            if (image != null)
+                return image;
+        }
+
+        ImageVariant target = variant;
+        return flights.execute(target.getKey(),
+                () -> target.isOriginal() ? retrieveImage(target.getKey()) : transcodeImage(target));
+    }
+
+    /**
+     * Looks an image up in the cache, then in the image store.
+     *
+     * @return the image kept under the given key, or null if it is kept in neither of them.
+     */
+    private ApodImage lookup(String key) {
+        ApodImage image = cache.get(key);
+        if (image != null || store == null)
+            return image;
+        // Stored images are served from their segment file, so they are not added to the cache.
+        return store.get(key);
+    }
+
+    /**
+     * Retrieves the image of the given date from the APOD API and keeps it for the next requests.
+     */
+    private ApodImage retrieveImage(String date) throws IOException {
+        // A call that has just completed may have kept the image after it was looked up, in the cache or in the store.
+        ApodImage image = lookup(date);
+        if (image != null)
+            return image;
+
+        return keep(date, nasaApi.getImageOfTheDay(date));
+    }
+
+    /**
+     * Transcodes the given variant from the original image and keeps it for the next requests.
+     */
+    private ApodImage transcodeImage(ImageVariant variant) throws IOException {
+        ApodImage image = lookup(variant.getKey());
+        if (image != null)
+            return image;
+
+        return keep(variant.getKey(), thumbnails.transcode(getImage(variant.getDate()), variant));
+    }
+
+    /**
+     * Keeps an image under the given key, in the image store if it may not change anymore and in the cache otherwise.
+     */
+    private ApodImage keep(String key, ApodImage image) {
+        // Only the images of past dates are stored since the image of the current date may still change. A stored
+        // image is served from its segment file, so it is not kept in the cache as well.
+        if (store != null && ApodCache.isPastDate(key)) {
+            try {
+                store.put(key, image);
+                ApodImage stored = store.get(key);
+                if (stored != null)
+                    return stored;
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        cache.put(image);
+        return image;
+    }
+
+    ApodCache getCache() {
+        return cache;
+    }
+
+    ImageStore getStore() {
+        return store;
+    }
+
+    ThumbnailService getThumbnails() {
+        return thumbnails;
+    }
+
+    SingleFlight<String, ApodImage> getFlights() {
+        return flights;
+    }
+}
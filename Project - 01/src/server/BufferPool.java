@@ -0,0 +1,61 @@
+package server;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * A pool of direct buffers of a fixed size, owned by a single event loop to encode the frames it writes. A buffer is
+ * taken from the pool when a frame is queued and given back once the frame has been written, so the event loop does
+ * not allocate a new buffer for each frame. The pool is only used from the thread of its event loop, so it needs no
+ * synchronization.
+ */
+class BufferPool {
+
+    private final int bufferSize;
+    private final int maxPooled;
+    private final ArrayDeque<ByteBuffer> buffers;
+
+    /**
+     * @param bufferSize the size of each buffer of the pool.
+     * @param maxPooled  the maximum number of idle buffers the pool keeps.
+     */
+    BufferPool(int bufferSize, int maxPooled) {
+        this.bufferSize = bufferSize;
+        this.maxPooled = maxPooled;
+        this.buffers = new ArrayDeque<>(maxPooled);
+    }
+
+    /**
+     * Returns a cleared buffer that is able to hold the given number of bytes. Frames that are larger than the
+     * buffers of the pool get a heap buffer of their own, which is not given back to the pool.
+     *
+     * @param length the number of bytes the buffer must be able to hold.
+     * @return a cleared buffer.
+     */
+    ByteBuffer acquire(int length) {
+        if (length > bufferSize)
+            return ByteBuffer.allocate(length);
+        ByteBuffer buffer = buffers.poll();
+        if (buffer == null)
+            return ByteBuffer.allocateDirect(bufferSize);
+        buffer.clear();
+        return buffer;
+    }
+
+    /**
+     * Gives a written buffer back to the pool. Buffers that do not come from the pool, such as the read-only buffers
+     * of the images, are ignored.
+     *
+     * @param buffer the buffer to be given back.
+     */
+    void release(ByteBuffer buffer) {
+        if (!buffer.isDirect() || buffer.isReadOnly() || buffer.capacity() != bufferSize)
+            return;
+        if (buffers.size() < maxPooled)
+            buffers.push(buffer);
+    }
+
+    int size() {
+        return buffers.size();
+    }
+}
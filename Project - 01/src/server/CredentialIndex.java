@@ -0,0 +1,156 @@
+package server;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The credentials of the clients that are allowed to connect, shared by every session of the server. The clients file
+ * is read once when the index is created, and read again only when the file changes on disk. The credentials are held
+ * in an immutable map that is replaced as a whole on every change, so lookups never lock nor touch the disk.
+ */
+class CredentialIndex {
+
+    private final Path clientsFile;
+    private volatile Map<String, String> passwords;
+    private Thread watcher;
+
+    /**
+     * Creates an index holding the credentials found in the given clients file.
+     *
+     * @param clientsFile the file holding a username line followed by a password line for each client.
+     */
+    CredentialIndex(Path clientsFile) {
+        this.clientsFile = clientsFile.toAbsolutePath();
+        this.passwords = Collections.emptyMap();
+        reload();
+    }
+
+    /**
+     * Given a username, returns true if the username is valid and false otherwise.
+     *
+     * @param username the username to be validated.
+     * @return returns true if the username is valid and false otherwise.
+     */
+    boolean containsUsername(String username) {
+        return passwords.containsKey(username);
+    }
+
+    /**
+     * Given a username and a password, returns true if the password is valid and false otherwise.
+     *
+     * @param username the username corresponding to the password to check.
+     * @param password the password to be checked.
+     * @return returns true if the password is valid and false otherwise.
+     */
+    boolean authenticate(String username, String password) {
+        String expected = passwords.get(username);
+        return expected != null && expected.equals(password);
+    }
+
+    int size() {
+        return passwords.size();
+    }
+
+    /**
+     * Adds a new client to the clients file and to the index.
+     *
+     * @param username the clients username
+     * @param password the clients password.
+     * @throws IOException if the clients file could not be written.
+     */
+    synchronized void addClient(String username, String password) throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(clientsFile.toFile(), "rw")) {
+            StringBuilder lines = new StringBuilder();
+            // The last line of the file may not be terminated.
+            if (file.length() > 0) {
+                file.seek(file.length() - 1);
+                if (file.read() != '\n')
+                    lines.append(System.lineSeparator());
+            }
+            lines.append(username).append(System.lineSeparator()).append(password).append(System.lineSeparator());
+            file.seek(file.length());
+            file.write(lines.toString().getBytes(StandardCharsets.UTF_8));
+        }
+        HashMap<String, String> updated = new HashMap<>(passwords);
+        updated.put(username, password);
+        passwords = Collections.unmodifiableMap(updated);
+    }
+
+    /**
+     * Reads the clients file again and replaces the index with its content. The current index is kept if the file
+     * could not be read.
+     */
+    synchronized void reload() {
+        HashMap<String, String> loaded = new HashMap<>();
+        try (BufferedReader reader = Files.newBufferedReader(clientsFile, StandardCharsets.UTF_8)) {
+            String username;
+            String password;
+            while ((username = reader.readLine()) != null && (password = reader.readLine()) != null) {
+                loaded.put(username, password);
+            }
+        } catch (IOException e) {
+            System.out.println("An error occurred while reading " + clientsFile + ", keeping "
+                    + passwords.size() + " clients.");
+            e.printStackTrace();
+            return;
+        }
+        passwords = Collections.unmodifiableMap(loaded);
+    }
+
+    /**
+     * Starts a daemon thread that reloads the index every time the clients file is created or modified.
+     */
+    void watch() {
+        WatchService watchService;
+        try {
+            watchService = clientsFile.getFileSystem().newWatchService();
+            clientsFile.getParent().register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_MODIFY);
+        } catch (IOException e) {
+            System.out.println("Could not watch " + clientsFile + ", changes will not be loaded.");
+            e.printStackTrace();
+            return;
+        }
+
+        watcher = new Thread(() -> {
+            try {
+                while (true) {
+                    WatchKey key = watchService.take();
+                    boolean changed = false;
+                    for (WatchEvent<?> event : key.pollEvents()) {
+                        if (clientsFile.getFileName().equals(event.context()))
+                            changed = true;
+                    }
+                    if (changed) {
+                        reload();
+                        System.out.println("Clients reloaded from " + clientsFile + " | " + size() + " clients");
+                    }
+                    if (!key.reset())
+                        return;
+                }
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                // The server is shutting down.
+            } finally {
+                try {
+                    watchService.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }, "StratoNet-clients-watcher");
+        watcher.setDaemon(true);
+        watcher.start();
+    }
+
+    /**
+     * Stops watching the clients file.
+     */
+    void close() {
+        if (watcher != null)
+            watcher.interrupt();
+    }
+}
@@ -0,0 +1,113 @@
+package server;
+
+import java.io.IOException;
+import java.nio.channels.*;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import static utils.Utilities.*;
+
+/**
+ * A single selector thread of the event loop server. Every channel registered to an event loop is read from and
+ * written to only by the thread of that event loop, other threads hand their work to it through execute().
+ */
+class EventLoop implements Runnable {
+
+    private final Selector selector;
+    private final Queue<Runnable> tasks;
+    private final BufferPool buffers;
+    private volatile boolean running;
+
+    EventLoop() throws IOException {
+        selector = Selector.open();
+        tasks = new ConcurrentLinkedQueue<>();
+        buffers = new BufferPool(FRAME_BUFFER_SIZE, FRAME_BUFFERS_PER_LOOP);
+        running = true;
+    }
+
+    /**
+     * Runs the given task on the thread of this event loop.
+     *
+     * @param task the task to be run.
+     */
+    void execute(Runnable task) {
+        tasks.add(task);
+        selector.wakeup();
+    }
+
+    /**
+     * Registers a channel to the selector of this event loop. Must be called from the thread of this event loop.
+     *
+     * @param channel    the channel to be registered.
+     * @param connection the connection that handles the events of the channel.
+     * @return the key of the registered channel.
+     * @throws IOException if the channel could not be registered.
+     */
+    SelectionKey register(SocketChannel channel, NioConnection connection) throws IOException {
+        channel.configureBlocking(false);
+        return channel.register(selector, SelectionKey.OP_READ, connection);
+    }
+
+    /**
+     * @return the pool of the buffers the connections of this event loop encode their frames into. Must only be used
+     * from the thread of this event loop.
+     */
+    BufferPool getBuffers() {
+        return buffers;
+    }
+
+    public void run() {
+        while (running) {
+            try {
+                selector.select();
+            } catch (IOException e) {
+                e.printStackTrace();
+                continue;
+            }
+
+            Runnable task;
+            while ((task = tasks.poll()) != null) {
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    e.printStackTrace();
+                }
+            }
+
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+
+                NioConnection connection = (NioConnection) key.attachment();
+                try {
+                    if (key.isValid() && key.isReadable())
+                        connection.onReadable();
+                    if (key.isValid() && key.isWritable())
+                        connection.onWritable();
+                } catch (IOException | CancelledKeyException e) {
+                    connection.getSession().close();
+                } catch (RuntimeException e) {
+                    // A session that fails on what its client sent is closed without stopping the other sessions of
+                    // this event loop.
+                    e.printStackTrace();
+                    connection.getSession().close();
+                }
+            }
+        }
+        try {
+            selector.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Stops the event loop, its selector is closed once the current iteration is over.
+     */
+    void shutdown() {
+        running = false;
+        selector.wakeup();
+    }
+}
@@ -0,0 +1,79 @@
+package server;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The sessions that wait for their file connection, keyed by their token and shared by every session. A client opens
+ * its file connection once it is authenticated and sends its token as the first frame on it, so each file connection
+ * is bound to the session of its token, no matter the order the connections of the clients were accepted in.
+ */
+class FileBindings {
+
+    private final SessionRegistry sessions;
+    private final ConcurrentHashMap<String, CompletableFuture<SocketChannel>> expected;
+
+    /**
+     * @param sessions the sessions issued to the authenticated clients.
+     */
+    FileBindings(SessionRegistry sessions) {
+        this.sessions = sessions;
+        this.expected = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Registers a session that waits for its file connection. The session is registered before its token is sent to
+     * the client, so that the file connection cannot arrive before it.
+     *
+     * @param token the token of the session.
+     * @return a future completed with the file connection of the session once the client has opened it.
+     */
+    CompletableFuture<SocketChannel> expect(String token) {
+        CompletableFuture<SocketChannel> binding = new CompletableFuture<>();
+        CompletableFuture<SocketChannel> previous = expected.put(token, binding);
+        // The same session resumed on a newer connection takes over the binding of the older one.
+        if (previous != null)
+            previous.cancel(false);
+        binding.whenComplete((channel, e) -> expected.remove(token, binding));
+        return binding;
+    }
+
+    /**
+     * Binds a file connection to the session that waits for the given token. The file connection must come from the
+     * address the session was issued to.
+     *
+     * @param token   the token sent by the client on its file connection.
+     * @param channel the file connection.
+     * @return true if the file connection was bound, false if no session waits for the token, in which case the
+     * caller closes the connection.
+     */
+    boolean bind(String token, SocketChannel channel) {
+        SessionRegistry.Session session = sessions.get(token);
+        CompletableFuture<SocketChannel> binding = token == null ? null : expected.get(token);
+        if (session == null || binding == null)
+            return false;
+        try {
+            InetAddress address = ((InetSocketAddress) channel.getRemoteAddress()).getAddress();
+            if (!session.getIP().equals(address))
+                return false;
+        } catch (IOException | ClassCastException e) {
+            return false;
+        }
+        return binding.complete(channel);
+    }
+
+    int size() {
+        return expected.size();
+    }
+
+    @Override
+    public String toString() {
+        return "FileBindings{" +
+                "waiting=" + size() +
+                '}';
+    }
+}
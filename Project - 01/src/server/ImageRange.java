@@ -0,0 +1,93 @@
+package server;
+
+import static utils.Utilities.*;
+
+/**
+ * A range request of a client, sent on the command connection like any other query, asking for the bytes of an image
+ * from a given offset to its end, or for a given number of bytes only. The bytes are sent back as chunks on the file
+ * channel. The message of the request is the message of the image query followed by the offset and the optional
+ * length, separated by RANGE_SEPARATOR. A client starts a download at offset 0, resumes an interrupted one at the
+ * number of bytes it already holds and asks for a corrupted chunk again with its length.
+ */
+final class ImageRange {
+
+    private final String date;
+    private final long offset;
+    private final long length;
+
+    private ImageRange(String date, long offset, long length) {
+        this.date = date;
+        this.offset = offset;
+        this.length = length;
+    }
+
+    /**
+     * Given the message of a range request, returns the range it asks for.
+     *
+     * @param message the message of the range request.
+     * @return the requested range, or null if the message is malformed.
+     */
+    static ImageRange parse(String message) {
+        String[] parts = message.split(RANGE_SEPARATOR);
+        if (parts.length != 2 && parts.length != 3)
+            return null;
+        try {
+            long offset = Long.parseLong(parts[1]);
+            long length = parts.length == 3 ? Long.parseLong(parts[2]) : -1;
+            return offset < 0 || length == 0 || length < -1 ? null : new ImageRange(parts[0], offset, length);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Returns true if the range asks for the given image. The range names the image as its query did, so a variant is
+     * matched by its key, which may have been clamped to the original image, rather than by the text of the query.
+     *
+     * @param image the image that was sent in reply to the query.
+     * @return true if the range is a range of the given image.
+     */
+    boolean isOf(ApodImage image) {
+        ImageVariant variant = ImageVariant.parse(date);
+        return variant != null && variant.matches(image.getDate());
+    }
+
+    /**
+     * Returns the offset the given image is sent from. An offset past the end of the image cannot have come from the
+     * same image, so the image is sent from its first byte instead and the client starts its download over.
+     *
+     * @param image the image the range is served from.
+     * @return the offset of the first byte to be sent.
+     */
+    long startIn(ApodImage image) {
+        return offset <= image.getSize() ? offset : 0;
+    }
+
+    /**
+     * Returns the offset the given image is sent up to, that is its end unless the range asks for a number of bytes.
+     *
+     * @param image the image the range is served from.
+     * @return the offset of the byte after the last byte to be sent.
+     */
+    long endIn(ApodImage image) {
+        long start = startIn(image);
+        return length < 0 || start != offset ? image.getSize() : Math.min(image.getSize(), start + length);
+    }
+
+    String getDate() {
+        return date;
+    }
+
+    long getOffset() {
+        return offset;
+    }
+
+    @Override
+    public String toString() {
+        return "ImageRange{" +
+                "date='" + date + '\'' +
+                ", offset=" + offset +
+                ", length=" + length +
+                '}';
+    }
+}
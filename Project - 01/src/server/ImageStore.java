@@ -0,0 +1,424 @@
+package server;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static utils.Utilities.*;
+
+/**
+ * A persistent store of images on the disk of the server, indexed by a key such as the date of an image of the day.
+ * The images are appended to segment files, which are read through memory mappings so that an image is served from
+ * the page cache without being copied into the heap. The index is rebuilt from the segments when the store is opened,
+ * so the images survive restarts. Segments that are mostly made of replaced images are compacted, and the oldest
+ * segments are dropped once the store grows past its size cap.
+ * <p>
+ * Each record of a segment is laid out as follows: a magic number, the key, the url of the image and its digest, each
+ * preceded by their length as a short, then the length of the image as an int followed by the image itself. The
+ * records written before the digests were CRC32C checksums have a magic number of their own, and their digest is
+ * computed again when they are read into the index.
+ */
+class ImageStore implements Closeable {
+
+    private static final int RECORD_MAGIC = 0x53544E32;
+    private static final int LEGACY_RECORD_MAGIC = 0x53544E31;
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".dat";
+
+    /**
+     * The location of a stored image.
+     */
+    private static final class Location {
+        private final Segment segment;
+        private final int recordLength;
+        private final long dataOffset;
+        private final int dataLength;
+        private final String imageURL;
+        private final String digest;
+
+        private Location(Segment segment, int recordLength, long dataOffset, int dataLength, String imageURL,
+                         String digest) {
+            this.segment = segment;
+            this.recordLength = recordLength;
+            this.dataOffset = dataOffset;
+            this.dataLength = dataLength;
+            this.imageURL = imageURL;
+            this.digest = digest;
+        }
+    }
+
+    /**
+     * A segment file of the store. Records are only appended to the last segment, the others are read only.
+     */
+    private static final class Segment {
+        private final int id;
+        private final Path path;
+        private final FileChannel channel;
+        private volatile long size;
+        private volatile MappedByteBuffer mapped;
+        private long deadBytes;
+
+        private Segment(int id, Path path) throws IOException {
+            this.id = id;
+            this.path = path;
+            this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE);
+            this.size = channel.size();
+        }
+
+        /**
+         * Returns a read-only view of the given range of the segment, backed by the memory mapping of the segment.
+         * The segment is mapped again if it has grown past its current mapping.
+         */
+        private ByteBuffer slice(long offset, int length) throws IOException {
+            MappedByteBuffer current = mapped;
+            if (current == null || offset + length > current.capacity())
+                current = remap();
+
+            ByteBuffer view = current.duplicate();
+            view.position((int) offset).limit((int) offset + length);
+            return view.slice().asReadOnlyBuffer();
+        }
+
+        private synchronized MappedByteBuffer remap() throws IOException {
+            if (mapped == null || mapped.capacity() < size)
+                mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            return mapped;
+        }
+
+        private void delete() throws IOException {
+            // The mapping stays valid for the images that are still being sent from it.
+            channel.close();
+            Files.deleteIfExists(path);
+        }
+    }
+
+    private final Path directory;
+    private final long maxBytes;
+    private final long segmentSize;
+    private final ConcurrentHashMap<String, Location> index;
+    private final TreeMap<Integer, Segment> segments;
+    private final ExecutorService compactor;
+    private Segment active;
+    private Segment compacting;
+    private long totalBytes;
+
+    /**
+     * Opens the store in the given directory, rebuilding its index from the segment files found in it.
+     *
+     * @param directory the directory of the segment files, created if it does not exist.
+     * @param maxBytes  the size cap of the store in bytes.
+     * @throws IOException if the directory or its segments could not be read.
+     */
+    ImageStore(Path directory, long maxBytes) throws IOException {
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+        // The oldest segment is dropped as a whole, so a segment is kept small compared to the size cap.
+        this.segmentSize = Math.max(1, Math.min(STORE_SEGMENT_SIZE, maxBytes / 4));
+        this.index = new ConcurrentHashMap<>();
+        this.segments = new TreeMap<>();
+        this.compactor = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "StratoNet-store-compactor");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        Files.createDirectories(directory);
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory,
+                SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                int id = Integer.parseInt(name.substring(SEGMENT_PREFIX.length(),
+                        name.length() - SEGMENT_SUFFIX.length()));
+                segments.put(id, new Segment(id, file));
+            }
+        }
+        for (Segment segment : segments.values())
+            load(segment);
+
+        if (segments.isEmpty())
+            active = newSegment();
+        else
+            active = segments.lastEntry().getValue();
+
+        System.out.println("Image store opened at " + directory.toAbsolutePath() + " | " + index.size() +
+                " images in " + segments.size() + " segments, " + totalBytes + " bytes");
+        compactor.execute(this::compact);
+    }
+
+    /**
+     * Given a key, returns the stored image of that key. The bytes of the returned image are read from the memory
+     * mapping of its segment.
+     *
+     * @param key the key of the image.
+     * @return the stored image, or null if no image is stored under the key.
+     */
+    ApodImage get(String key) {
+        Location location = index.get(key);
+        if (location == null)
+            return null;
+        try {
+            ByteBuffer data = location.segment.slice(location.dataOffset, location.dataLength);
+            return new ApodImage(key, location.imageURL, data, location.digest, location.segment.channel,
+                    location.dataOffset);
+        } catch (IOException e) {
+            // The segment has been dropped since the lookup.
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    boolean contains(String key) {
+        return index.containsKey(key);
+    }
+
+    /**
+     * Stores an image under the given key, replacing the image already stored under it.
+     *
+     * @param key   the key of the image.
+     * @param image the image to be stored.
+     * @throws IOException if the image could not be written.
+     */
+    synchronized void put(String key, ApodImage image) throws IOException {
+        append(key, image.getImageURL(), image.getDigest(), image.getData());
+        enforceSizeCap();
+    }
+
+    /**
+     * Appends a record to the active segment and points the index to it. A new segment is started if the record does
+     * not fit in the active one.
+     */
+    private void append(String key, String imageURL, String digest, ByteBuffer data) throws IOException {
+        ByteBuffer header = header(key, imageURL, digest, data.remaining());
+        int recordLength = header.remaining() + data.remaining();
+        if (active.size > 0 && active.size + recordLength > segmentSize) {
+            active = newSegment();
+            compactor.execute(this::compact);
+        }
+
+        Location location = write(active, header, data, imageURL, digest);
+        totalBytes += location.recordLength;
+        Location previous = index.put(key, location);
+        if (previous != null)
+            previous.segment.deadBytes += previous.recordLength;
+    }
+
+    private static ByteBuffer header(String key, String imageURL, String digest, int dataLength) {
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        byte[] urlBytes = imageURL.getBytes(StandardCharsets.UTF_8);
+        byte[] digestBytes = digest.getBytes(StandardCharsets.UTF_8);
+
+        ByteBuffer header = ByteBuffer.allocate(4 + 2 + keyBytes.length + 2 + urlBytes.length + 2 +
+                digestBytes.length + 4);
+        header.putInt(RECORD_MAGIC);
+        header.putShort((short) keyBytes.length).put(keyBytes);
+        header.putShort((short) urlBytes.length).put(urlBytes);
+        header.putShort((short) digestBytes.length).put(digestBytes);
+        header.putInt(dataLength);
+        return header.flip();
+    }
+
+    /**
+     * Writes a record at the end of the given segment, whose records are only written by the calling thread.
+     *
+     * @return the location of the image of the record.
+     */
+    private static Location write(Segment segment, ByteBuffer header, ByteBuffer data, String imageURL, String digest)
+            throws IOException {
+        int dataLength = data.remaining();
+        int recordLength = header.remaining() + dataLength;
+        long recordOffset = segment.size;
+        long position = recordOffset;
+        ByteBuffer[] record = {header, data.duplicate()};
+        while (record[0].hasRemaining() || record[1].hasRemaining()) {
+            long written = segment.channel.position(position).write(record);
+            position += written;
+        }
+        segment.size = position;
+        return new Location(segment, recordLength, recordOffset + recordLength - dataLength, dataLength, imageURL,
+                digest);
+    }
+
+    /**
+     * Reads every record of a segment into the index. The segment is truncated at the first record that is not
+     * complete, which is left behind when the server stops in the middle of a write.
+     */
+    private void load(Segment segment) throws IOException {
+        long size = segment.size;
+        long position = 0;
+        ByteBuffer view = size == 0 ? ByteBuffer.allocate(0) : segment.slice(0, (int) size);
+
+        while (position < size) {
+            try {
+                view.position((int) position);
+                int magic = view.getInt();
+                if (magic != RECORD_MAGIC && magic != LEGACY_RECORD_MAGIC)
+                    break;
+                String key = readString(view);
+                String imageURL = readString(view);
+                String digest = readString(view);
+                int dataLength = view.getInt();
+                long dataOffset = view.position();
+                if (dataLength < 0 || dataOffset + dataLength > size)
+                    break;
+                if (magic == LEGACY_RECORD_MAGIC)
+                    digest = ApodImage.digestOf(view.duplicate().limit((int) dataOffset + dataLength));
+
+                int recordLength = (int) (dataOffset - position) + dataLength;
+                Location previous = index.put(key, new Location(segment, recordLength, dataOffset, dataLength,
+                        imageURL, digest));
+                if (previous != null)
+                    previous.segment.deadBytes += previous.recordLength;
+                position += recordLength;
+            } catch (RuntimeException e) {
+                break;
+            }
+        }
+
+        if (position < size) {
+            System.err.println("Truncating " + segment.path + " at " + position + " of " + size + " bytes");
+            segment.channel.truncate(position);
+            segment.size = position;
+            segment.mapped = null;
+        }
+        totalBytes += segment.size;
+    }
+
+    private static String readString(ByteBuffer view) {
+        byte[] bytes = new byte[view.getShort()];
+        view.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private Segment newSegment() throws IOException {
+        int id = segments.isEmpty() ? 1 : segments.lastKey() + 1;
+        Path path = directory.resolve(String.format("%s%08d%s", SEGMENT_PREFIX, id, SEGMENT_SUFFIX));
+        Segment segment = new Segment(id, path);
+        segments.put(id, segment);
+        return segment;
+    }
+
+    /**
+     * Drops the oldest segments, along with the images stored in them, until the store fits in its size cap.
+     */
+    private void enforceSizeCap() throws IOException {
+        while (totalBytes > maxBytes && segments.size() > 1) {
+            Segment oldest = segments.firstEntry().getValue();
+            // The copy of a segment being compacted is only counted in once it is complete.
+            if (oldest == compacting)
+                break;
+            index.values().removeIf(location -> location.segment == oldest);
+            drop(oldest);
+        }
+    }
+
+    /**
+     * Compacts every read only segment whose bytes are mostly replaced records. It is only called from the compactor
+     * thread.
+     */
+    void compact() {
+        for (Segment segment : compactable()) {
+            try {
+                compact(segment);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private synchronized List<Segment> compactable() {
+        List<Segment> compactable = new ArrayList<>();
+        for (Segment segment : segments.values()) {
+            if (segment != active && segment.deadBytes * 2 >= segment.size)
+                compactable.add(segment);
+        }
+        return compactable;
+    }
+
+    /**
+     * Copies the live records of a segment into a new segment without holding the lock of the store, so that the
+     * images stored in the meantime do not wait for the copy. The index is then pointed to the copies and the segment
+     * dropped under the lock. A record replaced during the copy keeps its newer location, and its copy is dead.
+     */
+    private void compact(Segment segment) throws IOException {
+        Segment copy;
+        synchronized (this) {
+            if (segments.get(segment.id) != segment)
+                return;
+            // The copy is registered before it is written, so that a segment started in the meantime is given the
+            // next id, and it is the newest of the two when the index is rebuilt after a restart.
+            copy = newSegment();
+            compacting = copy;
+        }
+
+        Map<String, Location> originals = new HashMap<>();
+        Map<String, Location> copies = new HashMap<>();
+        boolean copied = false;
+        try {
+            for (Map.Entry<String, Location> entry : index.entrySet()) {
+                Location location = entry.getValue();
+                if (location.segment != segment)
+                    continue;
+                ByteBuffer header = header(entry.getKey(), location.imageURL, location.digest, location.dataLength);
+                originals.put(entry.getKey(), location);
+                copies.put(entry.getKey(), write(copy, header, segment.slice(location.dataOffset,
+                        location.dataLength), location.imageURL, location.digest));
+            }
+            copied = true;
+        } finally {
+            synchronized (this) {
+                compacting = null;
+                totalBytes += copy.size;
+                for (Map.Entry<String, Location> entry : copies.entrySet()) {
+                    if (!index.replace(entry.getKey(), originals.get(entry.getKey()), entry.getValue()))
+                        copy.deadBytes += entry.getValue().recordLength;
+                }
+                // The segment may have been dropped by the size cap during the copy, along with its images. A segment
+                // whose copy failed keeps the images that were not copied.
+                if (copied && segments.get(segment.id) == segment)
+                    drop(segment);
+                if (copy.deadBytes == copy.size)
+                    drop(copy);
+            }
+        }
+    }
+
+    private void drop(Segment segment) throws IOException {
+        segments.remove(segment.id);
+        totalBytes -= segment.size;
+        segment.delete();
+    }
+
+    int size() {
+        return index.size();
+    }
+
+    synchronized long getTotalBytes() {
+        return totalBytes;
+    }
+
+    /**
+     * Closes the segment files of the store.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        compactor.shutdownNow();
+        for (Segment segment : segments.values())
+            segment.channel.close();
+    }
+}
@@ -0,0 +1,180 @@
+package server;
+
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static utils.Utilities.*;
+
+/**
+ * A variant of an image of the day asked for by an image query. The message of the query is the date of the image,
+ * optionally followed by the size the image is to be downscaled to and the quality it is to be encoded with, as
+ * follows: yyyy-mm-dd@500 or yyyy-mm-dd@500q80. A variant is kept in the cache and the store under its key, next to
+ * the original image that is kept under its date.
+ * <p>
+ * Every variant is transcoded and stored once, so a variant is not made for every size and quality a client may ask
+ * for: the size is rounded down to one of VARIANT_SIZES and the quality to the nearest of VARIANT_QUALITIES, and once
+ * the original image is known, the size is clamped to the longest side of the image. A date then has at most a few
+ * dozen variants whatever the queries ask for.
+ * <p>
+ * A client that already holds a copy of the image sends the digest of its copy after the query, as follows:
+ * yyyy-mm-dd@500 1a2b3c4d, and is answered with a Query_Not_Modified instead of the image if its copy is up to date.
+ */
+final class ImageVariant {
+
+    private static final Pattern QUERY = Pattern.compile("(" + dateRegex + ")(?:" + VARIANT_SEPARATOR
+            + "([0-9]{1,4})(?:q([0-9]{1,3}))?)?");
+
+    private final String date;
+    private final int maxSize;
+    private final int quality;
+
+    private ImageVariant(String date, int maxSize, int quality) {
+        this.date = date;
+        this.maxSize = maxSize;
+        this.quality = quality;
+    }
+
+    /**
+     * Given the message of an image query, returns the variant it asks for.
+     *
+     * @param query the message of the image query.
+     * @return the variant of the image, or null if the message is malformed or its size or quality is out of range.
+     */
+    static ImageVariant parse(String query) {
+        Matcher matcher = QUERY.matcher(query);
+        if (!matcher.matches())
+            return null;
+        if (matcher.group(2) == null)
+            return new ImageVariant(matcher.group(1), 0, 0);
+
+        int maxSize = Integer.parseInt(matcher.group(2));
+        int quality = matcher.group(3) == null ? DEFAULT_VARIANT_QUALITY : Integer.parseInt(matcher.group(3));
+        if (maxSize < MIN_VARIANT_SIZE || quality < 1 || quality > 100)
+            return null;
+        return new ImageVariant(matcher.group(1), roundSize(maxSize), roundQuality(quality));
+    }
+
+    /**
+     * @return the largest of VARIANT_SIZES that is not larger than the given size, or the smallest of them.
+     */
+    private static int roundSize(int size) {
+        int rounded = VARIANT_SIZES[0];
+        for (int variantSize : VARIANT_SIZES) {
+            if (variantSize <= size)
+                rounded = variantSize;
+        }
+        return rounded;
+    }
+
+    /**
+     * @return the nearest of VARIANT_QUALITIES to the given quality, the higher one on a tie.
+     */
+    private static int roundQuality(int quality) {
+        int rounded = VARIANT_QUALITIES[0];
+        for (int variantQuality : VARIANT_QUALITIES) {
+            if (Math.abs(variantQuality - quality) <= Math.abs(rounded - quality))
+                rounded = variantQuality;
+        }
+        return rounded;
+    }
+
+    /**
+     * Returns this variant with its size clamped to the given image, so that the sizes larger than the image do not
+     * make a variant each.
+     *
+     * @param longestSide the longest side of the original image, in pixels.
+     * @return the variant of the image whose size is not larger than the image, or this variant if it already is.
+     */
+    ImageVariant clampTo(int longestSide) {
+        if (isOriginal() || maxSize <= longestSide)
+            return this;
+        return new ImageVariant(date, roundSize(longestSide), quality);
+    }
+
+    /**
+     * Returns true if the given key is the key of this variant, or of this variant once clamped to its image.
+     *
+     * @param key the key of an image.
+     * @return true if the image of the key may have been sent in reply to a query of this variant.
+     */
+    boolean matches(String key) {
+        if (key.equals(getKey()))
+            return true;
+        ImageVariant sent = parse(key);
+        return sent != null && !isOriginal() && !sent.isOriginal() && sent.date.equals(date)
+                && sent.quality == quality && sent.maxSize <= maxSize;
+    }
+
+    /**
+     * @param message the message of an image query.
+     * @return true if the message is a valid query, optionally followed by the digest of the copy the client holds.
+     */
+    static boolean isValidQuery(String message) {
+        String digest = cachedDigestOf(message);
+        return parse(stripDigest(message)) != null && (digest == null || digest.matches(digestRegex));
+    }
+
+    /**
+     * @param message the message of an image query.
+     * @return the query without the digest of the copy the client holds.
+     */
+    static String stripDigest(String message) {
+        int separator = message.indexOf(DIGEST_SEPARATOR);
+        return separator < 0 ? message : message.substring(0, separator);
+    }
+
+    /**
+     * @param message the message of an image query.
+     * @return the digest of the copy the client holds, or null if the client holds no copy.
+     */
+    static String cachedDigestOf(String message) {
+        int separator = message.indexOf(DIGEST_SEPARATOR);
+        return separator < 0 ? null : message.substring(separator + DIGEST_SEPARATOR.length());
+    }
+
+    /**
+     * Given the key an image is kept under, returns the date of the image.
+     *
+     * @param key the date of an original image, or the message of the query of a variant.
+     * @return the date of the image.
+     */
+    static String dateOf(String key) {
+        int separator = key.indexOf(VARIANT_SEPARATOR);
+        return separator < 0 ? key : key.substring(0, separator);
+    }
+
+    /**
+     * @return true if the variant is the original image, as retrieved from the APOD API.
+     */
+    boolean isOriginal() {
+        return maxSize == 0;
+    }
+
+    /**
+     * @return the key the variant is kept under, which is the same for every query that asks for it.
+     */
+    String getKey() {
+        return isOriginal() ? date : date + VARIANT_SEPARATOR + maxSize + "q" + quality;
+    }
+
+    String getDate() {
+        return date;
+    }
+
+    int getMaxSize() {
+        return maxSize;
+    }
+
+    int getQuality() {
+        return quality;
+    }
+
+    @Override
+    public String toString() {
+        return "ImageVariant{" +
+                "date='" + date + '\'' +
+                ", maxSize=" + maxSize +
+                ", quality=" + quality +
+                '}';
+    }
+}
@@ -0,0 +1,267 @@
+package server;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A streaming reader of a JSON document, which reads the document straight from a stream through a small buffer and
+ * lets the caller pull out only the values it needs. The values that are skipped are scanned without being built into
+ * Strings, so the whole document is never held in memory.
+ * <p>
+ * The commas and colons between the tokens are skipped as separators, so the reader trusts the structure of the
+ * document to the caller.
+ */
+final class JsonReader implements Closeable {
+
+    /**
+     * The kinds of tokens of a JSON document.
+     */
+    enum Token {
+        BEGIN_OBJECT, END_OBJECT, BEGIN_ARRAY, END_ARRAY, STRING, LITERAL, END_DOCUMENT
+    }
+
+    private static final int BUFFER_SIZE = 8 * 1024;
+
+    private final Reader reader;
+    private final char[] buffer;
+    private final StringBuilder value;
+    private int position;
+    private int limit;
+
+    /**
+     * @param in the stream of the JSON document, encoded in UTF-8.
+     */
+    JsonReader(InputStream in) {
+        this.reader = new InputStreamReader(in, StandardCharsets.UTF_8);
+        this.buffer = new char[BUFFER_SIZE];
+        this.value = new StringBuilder();
+    }
+
+    /**
+     * Returns the kind of the next token without consuming it.
+     *
+     * @return the kind of the next token.
+     * @throws IOException if the document could not be read.
+     */
+    Token peek() throws IOException {
+        int c = peekChar();
+        switch (c) {
+            case -1:
+                return Token.END_DOCUMENT;
+            case '{':
+                return Token.BEGIN_OBJECT;
+            case '}':
+                return Token.END_OBJECT;
+            case '[':
+                return Token.BEGIN_ARRAY;
+            case ']':
+                return Token.END_ARRAY;
+            case '"':
+                return Token.STRING;
+            default:
+                return Token.LITERAL;
+        }
+    }
+
+    void beginObject() throws IOException {
+        expect('{');
+    }
+
+    void endObject() throws IOException {
+        expect('}');
+    }
+
+    void beginArray() throws IOException {
+        expect('[');
+    }
+
+    void endArray() throws IOException {
+        expect(']');
+    }
+
+    /**
+     * @return true if the current object or array has more values.
+     * @throws IOException if the document could not be read.
+     */
+    boolean hasNext() throws IOException {
+        int c = peekChar();
+        return c != '}' && c != ']' && c != -1;
+    }
+
+    /**
+     * Reads the name of the next member of the current object.
+     *
+     * @return the name of the member.
+     * @throws IOException if the document could not be read or the next token is not a name.
+     */
+    String nextName() throws IOException {
+        return nextString();
+    }
+
+    /**
+     * Reads the next value as a String.
+     *
+     * @return the unescaped value of the string.
+     * @throws IOException if the document could not be read or the next token is not a string.
+     */
+    String nextString() throws IOException {
+        expect('"');
+        value.setLength(0);
+        readString(true);
+        return value.toString();
+    }
+
+    /**
+     * Reads the next value as a literal, that is a number, true, false or null, keeping its text as it appears in
+     * the document.
+     *
+     * @return the text of the literal.
+     * @throws IOException if the document could not be read or the next token is not a literal.
+     */
+    String nextLiteral() throws IOException {
+        if (peek() != Token.LITERAL)
+            throw syntaxError("Expected a literal");
+        value.setLength(0);
+        int c;
+        while ((c = peekRaw()) != -1 && !isDelimiter((char) c)) {
+            value.append((char) c);
+            position++;
+        }
+        return value.toString();
+    }
+
+    /**
+     * Skips the next value, along with every value nested in it.
+     *
+     * @throws IOException if the document could not be read.
+     */
+    void skipValue() throws IOException {
+        int depth = 0;
+        do {
+            switch (peek()) {
+                case BEGIN_OBJECT:
+                case BEGIN_ARRAY:
+                    position++;
+                    depth++;
+                    break;
+                case END_OBJECT:
+                case END_ARRAY:
+                    position++;
+                    depth--;
+                    break;
+                case STRING:
+                    position++;
+                    readString(false);
+                    break;
+                case LITERAL:
+                    int c;
+                    while ((c = peekRaw()) != -1 && !isDelimiter((char) c))
+                        position++;
+                    break;
+                default:
+                    throw syntaxError("Unexpected end of document");
+            }
+        } while (depth > 0);
+    }
+
+    /**
+     * Reads the rest of a string whose opening quote is consumed, appending its unescaped characters to the value only
+     * if they are kept.
+     */
+    private void readString(boolean keep) throws IOException {
+        while (true) {
+            int c = readRaw();
+            if (c == -1)
+                throw syntaxError("Unterminated string");
+            if (c == '"')
+                return;
+            if (c == '\\') {
+                c = readEscape();
+            }
+            if (keep)
+                value.append((char) c);
+        }
+    }
+
+    private int readEscape() throws IOException {
+        int c = readRaw();
+        switch (c) {
+            case 'b':
+                return '\b';
+            case 'f':
+                return '\f';
+            case 'n':
+                return '\n';
+            case 'r':
+                return '\r';
+            case 't':
+                return '\t';
+            case 'u':
+                int code = 0;
+                for (int i = 0; i < 4; i++) {
+                    int digit = Character.digit(readRaw(), 16);
+                    if (digit < 0)
+                        throw syntaxError("Malformed unicode escape");
+                    code = code * 16 + digit;
+                }
+                return code;
+            case -1:
+                throw syntaxError("Unterminated string");
+            default:
+                // Covers \" \\ and \/ which stand for the escaped character itself.
+                return c;
+        }
+    }
+
+    private void expect(char expected) throws IOException {
+        if (peekChar() != expected)
+            throw syntaxError("Expected '" + expected + "'");
+        position++;
+    }
+
+    /**
+     * Skips the whitespaces and separators and returns the next character without consuming it.
+     */
+    private int peekChar() throws IOException {
+        int c;
+        while ((c = peekRaw()) != -1 && (Character.isWhitespace(c) || c == ',' || c == ':'))
+            position++;
+        return c;
+    }
+
+    private int peekRaw() throws IOException {
+        if (position == limit && !fill())
+            return -1;
+        return buffer[position];
+    }
+
+    private int readRaw() throws IOException {
+        if (position == limit && !fill())
+            return -1;
+        return buffer[position++];
+    }
+
+    private boolean fill() throws IOException {
+        int n = reader.read(buffer, 0, buffer.length);
+        position = 0;
+        limit = Math.max(n, 0);
+        return n > 0;
+    }
+
+    private static boolean isDelimiter(char c) {
+        return Character.isWhitespace(c) || c == ',' || c == ':' || c == '}' || c == ']';
+    }
+
+    private IOException syntaxError(String message) {
+        return new IOException("Malformed JSON: " + message);
+    }
+
+    @Override
+    public void close() throws IOException {
+        reader.close();
+    }
+}
@@ -0,0 +1,181 @@
+package server;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A histogram of latencies that is recorded into from many threads at once without any lock. The latencies are kept
+ * in microseconds in log-linear buckets: every power of two is split into SUB_BUCKETS buckets of equal width, so a
+ * percentile read from the histogram is within 1/SUB_BUCKETS of the recorded latency, whatever its magnitude. Recording
+ * a latency is an increment of its bucket and of the sum, and an update of the maximum.
+ */
+class LatencyHistogram implements LatencyHistogramMXBean {
+
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    // Latencies above about 25 days are counted in the last bucket.
+    private static final long MAX_MICROS = (1L << 41) - 1;
+    private static final int BUCKETS = indexOf(MAX_MICROS) + 1;
+
+    /**
+     * The counts of a histogram at a point in time, from which its percentiles are read.
+     */
+    static final class Snapshot {
+        private final long[] counts;
+        private final long count;
+        private final long sum;
+        private final long max;
+
+        private Snapshot(long[] counts, long sum, long max) {
+            long count = 0;
+            for (long bucket : counts)
+                count += bucket;
+            this.counts = counts;
+            this.count = count;
+            this.sum = sum;
+            this.max = max;
+        }
+
+        long getCount() {
+            return count;
+        }
+
+        /**
+         * @return the sum of the recorded latencies in microseconds.
+         */
+        long getSum() {
+            return sum;
+        }
+
+        /**
+         * @return the largest recorded latency in microseconds.
+         */
+        long getMax() {
+            return max;
+        }
+
+        /**
+         * @return the mean of the recorded latencies in microseconds, or 0 if none was recorded.
+         */
+        double getMean() {
+            return count == 0 ? 0 : (double) sum / count;
+        }
+
+        /**
+         * Given a percentile, returns the latency below which that percentage of the recorded latencies fall.
+         *
+         * @param percentile the percentile, from 0 to 100.
+         * @return the upper bound of the bucket of the percentile in microseconds, or 0 if none was recorded.
+         */
+        long getPercentile(double percentile) {
+            if (count == 0)
+                return 0;
+            long rank = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank)
+                    return Math.min(upperBoundOf(i), max);
+            }
+            return max;
+        }
+    }
+
+    private final AtomicLongArray counts;
+    private final LongAdder sum;
+    private final AtomicLong max;
+
+    LatencyHistogram() {
+        this.counts = new AtomicLongArray(BUCKETS);
+        this.sum = new LongAdder();
+        this.max = new AtomicLong();
+    }
+
+    /**
+     * Records a latency.
+     *
+     * @param nanos the latency in nanoseconds, as measured with System.nanoTime().
+     */
+    void record(long nanos) {
+        long micros = Math.min(MAX_MICROS, Math.max(0, nanos / 1000));
+        counts.incrementAndGet(indexOf(micros));
+        sum.add(micros);
+        long current = max.get();
+        while (micros > current && !max.compareAndSet(current, micros))
+            current = max.get();
+    }
+
+    /**
+     * Records the latency of something that started at the given time.
+     *
+     * @param start the time it started at, as returned by System.nanoTime().
+     */
+    void recordSince(long start) {
+        record(System.nanoTime() - start);
+    }
+
+    /**
+     * @return the counts of the histogram. The latencies recorded while the snapshot is taken may be left out.
+     */
+    Snapshot snapshot() {
+        long[] copy = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++)
+            copy[i] = counts.get(i);
+        return new Snapshot(copy, sum.sum(), max.get());
+    }
+
+    /**
+     * @return the bucket of a latency: the latencies below SUB_BUCKETS have a bucket each, the others are in the
+     * bucket of their power of two and of the next SUB_BUCKET_BITS bits.
+     */
+    private static int indexOf(long micros) {
+        if (micros < SUB_BUCKETS)
+            return (int) micros;
+        int shift = 63 - Long.numberOfLeadingZeros(micros) - SUB_BUCKET_BITS;
+        return (shift + 1) * SUB_BUCKETS + (int) ((micros >>> shift) & (SUB_BUCKETS - 1));
+    }
+
+    private static long upperBoundOf(int index) {
+        if (index < SUB_BUCKETS)
+            return index;
+        int shift = index / SUB_BUCKETS - 1;
+        long lower = (long) (SUB_BUCKETS + index % SUB_BUCKETS) << shift;
+        return lower + (1L << shift) - 1;
+    }
+
+    @Override
+    public long getCount() {
+        return snapshot().getCount();
+    }
+
+    @Override
+    public double getMeanMillis() {
+        return snapshot().getMean() / 1000;
+    }
+
+    @Override
+    public double getP50Millis() {
+        return snapshot().getPercentile(50) / 1000.0;
+    }
+
+    @Override
+    public double getP90Millis() {
+        return snapshot().getPercentile(90) / 1000.0;
+    }
+
+    @Override
+    public double getP99Millis() {
+        return snapshot().getPercentile(99) / 1000.0;
+    }
+
+    @Override
+    public double getP999Millis() {
+        return snapshot().getPercentile(99.9) / 1000.0;
+    }
+
+    @Override
+    public double getMaxMillis() {
+        return max.get() / 1000.0;
+    }
+}
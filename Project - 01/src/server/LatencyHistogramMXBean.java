@@ -0,0 +1,22 @@
+package server;
+
+/**
+ * The management interface of a LatencyHistogram, registered under StratoNet:type=Latency,name=... The latencies are
+ * given in milliseconds, and are those recorded since the server started.
+ */
+public interface LatencyHistogramMXBean {
+
+    long getCount();
+
+    double getMeanMillis();
+
+    double getP50Millis();
+
+    double getP90Millis();
+
+    double getP99Millis();
+
+    double getP999Millis();
+
+    double getMaxMillis();
+}
@@ -0,0 +1,205 @@
+package server;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Holds the calls made to the NASA APIs. The calls are made through the upstream client of the server, so they are
+ * asynchronous, and each of them has a blocking variant for the callers that run on a thread that is allowed to block.
+ */
+final class NasaApi {
+
+    private final UpstreamClient client;
+    private final ServerMetrics metrics;
+    private final String apodBaseURL;
+    private final String insightBaseURL;
+
+    /**
+     * @param client         the client the calls are made through.
+     * @param metrics        the metrics the latencies of the calls are recorded into.
+     * @param apodBaseURL    the url of the APOD API, to which the date of an image is appended.
+     * @param insightBaseURL the url of the InSight API.
+     */
+    NasaApi(UpstreamClient client, ServerMetrics metrics, String apodBaseURL, String insightBaseURL) {
+        this.client = client;
+        this.metrics = metrics;
+        this.apodBaseURL = apodBaseURL;
+        this.insightBaseURL = insightBaseURL;
+    }
+
+    /**
+     * Given a date, retrieves the image of the day of that date from the APOD API.
+     *
+     * @param date the date of the image as follows: yyyy-mm-dd.
+     * @return a future that completes with the image of the day, or with an IOException if the API could not be
+     * reached or did not return an image.
+     */
+    CompletableFuture<ApodImage> getImageOfTheDayAsync(String date) {
+        return client.getParsed(apodBaseURL + date, NasaApi::parseImageURL, metrics.apod).thenCompose(imageURL -> {
+            if (imageURL == null)
+                return CompletableFuture.failedFuture(new IOException("No image found for " + date));
+            return client.getBytes(imageURL, metrics.apod).thenApply(bytes -> new ApodImage(date, imageURL, bytes));
+        });
+    }
+
+    /**
+     * Given a date, retrieves the image of the day of that date from the APOD API, waiting for the API to respond.
+     *
+     * @param date the date of the image as follows: yyyy-mm-dd.
+     * @return the image of the day.
+     * @throws IOException if the API could not be reached or did not return an image.
+     */
+    ApodImage getImageOfTheDay(String date) throws IOException {
+        return UpstreamClient.await(getImageOfTheDayAsync(date));
+    }
+
+    /**
+     * Retrieves the weather on Mars from the InSight API.
+     *
+     * @return a future that completes with the information about the pressure on Mars of every sol of the feed, or
+     * with an IOException if the API could not be reached.
+     */
+    CompletableFuture<List<String>> getMarsPressuresAsync() {
+        return client.getParsed(insightBaseURL, NasaApi::parsePressures, metrics.insight);
+    }
+
+    /**
+     * Retrieves the weather on Mars from the InSight API, waiting for the API to respond.
+     *
+     * @return the information about the pressure on Mars of every sol of the feed.
+     * @throws IOException if the API could not be reached.
+     */
+    List<String> getMarsPressures() throws IOException {
+        return UpstreamClient.await(getMarsPressuresAsync());
+    }
+
+    /**
+     * Given the response of the APOD API, finds the url of the image of the day. The high definition image is
+     * preferred over the regular one.
+     *
+     * @param body the response of the APOD API.
+     * @return the url of the image, or null if the APOD is not an image, such as a video.
+     * @throws IOException if the response could not be read or is not a JSON object.
+     */
+    static String parseImageURL(InputStream body) throws IOException {
+        String url = null;
+        String hdURL = null;
+        String mediaType = null;
+
+        JsonReader reader = new JsonReader(body);
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (reader.peek() != JsonReader.Token.STRING) {
+                reader.skipValue();
+                continue;
+            }
+            switch (name) {
+                case "url":
+                    url = reader.nextString();
+                    break;
+                case "hdurl":
+                    hdURL = reader.nextString();
+                    break;
+                case "media_type":
+                    mediaType = reader.nextString();
+                    break;
+                default:
+                    reader.skipValue();
+            }
+        }
+
+        if (mediaType != null && !mediaType.equals("image"))
+            return null;
+        return hdURL != null ? hdURL : url;
+    }
+
+    /**
+     * Given the response of the InSight API, finds the pressure on Mars of every sol of the feed. The sols are the
+     * members of the response whose name is a number.
+     *
+     * @param body the response of the InSight API.
+     * @return the information about the pressure of every sol that has it.
+     * @throws IOException if the response could not be read or is not a JSON object.
+     */
+    static List<String> parsePressures(InputStream body) throws IOException {
+        List<String> pressures = new ArrayList<>();
+
+        JsonReader reader = new JsonReader(body);
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (!isSol(name) || reader.peek() != JsonReader.Token.BEGIN_OBJECT) {
+                reader.skipValue();
+                continue;
+            }
+            reader.beginObject();
+            while (reader.hasNext()) {
+                if (reader.nextName().equals("PRE") && reader.peek() == JsonReader.Token.BEGIN_OBJECT) {
+                    String pressure = parsePressure(reader);
+                    if (pressure != null)
+                        pressures.add(pressure);
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+        }
+        return pressures;
+    }
+
+    /**
+     * Reads the PRE object of a sol, which holds the average, count, minimum and maximum of the pressure.
+     *
+     * @return the pressure as follows: "av: x, ct: y, mn: z, mx: w", or null if a value is missing.
+     */
+    private static String parsePressure(JsonReader reader) throws IOException {
+        String av = null;
+        String ct = null;
+        String mn = null;
+        String mx = null;
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (reader.peek() != JsonReader.Token.LITERAL) {
+                reader.skipValue();
+                continue;
+            }
+            switch (name) {
+                case "av":
+                    av = reader.nextLiteral();
+                    break;
+                case "ct":
+                    ct = reader.nextLiteral();
+                    break;
+                case "mn":
+                    mn = reader.nextLiteral();
+                    break;
+                case "mx":
+                    mx = reader.nextLiteral();
+                    break;
+                default:
+                    reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        if (av == null || ct == null || mn == null || mx == null)
+            return null;
+        return "av: " + av + ", ct: " + ct + ", mn: " + mn + ", mx: " + mx;
+    }
+
+    private static boolean isSol(String name) {
+        if (name.isEmpty())
+            return false;
+        for (int i = 0; i < name.length(); i++) {
+            if (!Character.isDigit(name.charAt(i)))
+                return false;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,251 @@
+package server;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.zip.CRC32C;
+
+import utils.FrameCodec;
+
+import static utils.Utilities.*;
+
+/**
+ * A non-blocking connection of a NioSession, either its command connection or its file connection. It buffers the
+ * bytes read from the channel until the session can decode a whole frame from them, and queues the frames to be
+ * written until the channel is able to take them.
+ */
+class NioConnection {
+
+    private static final int MAX_READ_BUFFER_SIZE = FrameCodec.QUERY_HEADER_SIZE + FrameCodec.MAX_FRAME_SIZE;
+
+    /**
+     * The chunks of an image, or of a range of it, queued by a call to sendChunks. The transfer is complete once its
+     * last chunk has been written.
+     */
+    private static final class Transfer {
+        final ByteBuffer lastChunk;
+        final long start;
+        final long bytes;
+
+        Transfer(ByteBuffer lastChunk, long start, long bytes) {
+            this.lastChunk = lastChunk;
+            this.start = start;
+            this.bytes = bytes;
+        }
+    }
+
+    private final NioSession session;
+    private final SocketChannel channel;
+    private final boolean isCommand;
+    private final ArrayDeque<ByteBuffer> writeQueue;
+    private final ByteBuffer[] gather;
+    private final CRC32C checksum;
+    private final ServerMetrics metrics;
+    private final ArrayDeque<Transfer> transfers;
+    private BufferPool buffers;
+    private SelectionKey key;
+    private ByteBuffer readBuffer;
+    private boolean closeWhenFlushed;
+
+    NioConnection(NioSession session, SocketChannel channel, boolean isCommand) {
+        this.session = session;
+        this.channel = channel;
+        this.isCommand = isCommand;
+        this.writeQueue = new ArrayDeque<>();
+        this.gather = new ByteBuffer[MAX_GATHERED_WRITES];
+        this.checksum = new CRC32C();
+        this.metrics = session.getMetrics();
+        this.transfers = new ArrayDeque<>();
+        this.readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+    }
+
+    /**
+     * Registers the channel of this connection to the given event loop.
+     *
+     * @param eventLoop the event loop that is going to serve this connection.
+     * @throws IOException if the channel could not be registered.
+     */
+    void register(EventLoop eventLoop) throws IOException {
+        key = eventLoop.register(channel, this);
+        buffers = eventLoop.getBuffers();
+    }
+
+    /**
+     * Reads the available bytes from the channel and hands them to the session. The read buffer grows to hold an
+     * incomplete frame, up to the largest frame a client may send.
+     *
+     * @throws IOException if the channel is closed by the client or could not be read, or if the client sends more
+     *                     than the largest frame without completing it.
+     */
+    void onReadable() throws IOException {
+        if (!readBuffer.hasRemaining()) {
+            if (readBuffer.capacity() >= MAX_READ_BUFFER_SIZE)
+                throw new IOException("Frame larger than " + MAX_READ_BUFFER_SIZE + " bytes");
+            ByteBuffer larger = ByteBuffer.allocate(Math.min(readBuffer.capacity() * 2, MAX_READ_BUFFER_SIZE));
+            readBuffer.flip();
+            larger.put(readBuffer);
+            readBuffer = larger;
+        }
+        if (channel.read(readBuffer) < 0)
+            throw new IOException("Connection closed by the client");
+
+        readBuffer.flip();
+        if (isCommand)
+            session.onCommandData(readBuffer);
+        else
+            session.onFileData(readBuffer);
+        readBuffer.compact();
+    }
+
+    /**
+     * Writes as many of the queued frames as the channel is able to take. The frames are gathered into a single write,
+     * and the buffers of the written frames are given back to the pool of the event loop.
+     *
+     * @throws IOException if the channel could not be written.
+     */
+    void onWritable() throws IOException {
+        while (!writeQueue.isEmpty()) {
+            int count = 0;
+            while (count < gather.length && !writeQueue.isEmpty())
+                gather[count++] = writeQueue.poll();
+            channel.write(gather, 0, count);
+            completeTransfers(count);
+
+            // The frames that were not written completely go back to the front of the queue, in their order.
+            boolean flushed = true;
+            for (int i = count - 1; i >= 0; i--) {
+                if (gather[i].hasRemaining()) {
+                    writeQueue.addFirst(gather[i]);
+                    flushed = false;
+                } else {
+                    buffers.release(gather[i]);
+                }
+                gather[i] = null;
+            }
+            if (!flushed)
+                break;
+        }
+        if (writeQueue.isEmpty()) {
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+            if (closeWhenFlushed)
+                session.close();
+        } else {
+            key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+        }
+    }
+
+    /**
+     * Records the transfers whose last chunk is among the given number of gathered buffers and has been written.
+     */
+    private void completeTransfers(int count) {
+        for (int i = 0; i < count && !transfers.isEmpty() && !gather[i].hasRemaining(); i++) {
+            if (gather[i] == transfers.peek().lastChunk) {
+                Transfer transfer = transfers.poll();
+                metrics.imageSent(transfer.bytes, transfer.start);
+            }
+        }
+    }
+
+    /**
+     * Encodes a message frame into a buffer of the pool, queues it and writes it right away if the channel is able to
+     * take it.
+     *
+     * @param phase     the phase of the frame.
+     * @param type      the type of the frame.
+     * @param requestId the id of the request the frame belongs to.
+     * @param message   the message of the frame.
+     * @throws IOException if the channel could not be written.
+     */
+    void sendMessage(byte phase, byte type, int requestId, String message) throws IOException {
+        ByteBuffer frame = buffers.acquire(FrameCodec.messageFrameLength(message));
+        FrameCodec.putMessage(frame, phase, type, requestId, message);
+        frame.flip();
+        send(frame);
+    }
+
+    /**
+     * Queues the bytes of an image from the given offset to the given end as chunk frames, whose chunks are views of
+     * the image that are sent without being copied. The header of each chunk holds the CRC32C checksum of the chunk.
+     *
+     * @param phase     the phase of the frames.
+     * @param type      the type of the frames.
+     * @param requestId the id of the request the frames belong to.
+     * @param image     the bytes of the whole image, from its position to its limit.
+     * @param offset    the offset of the first byte to be sent.
+     * @param end       the offset of the byte after the last byte to be sent.
+     * @throws IOException if the channel could not be written.
+     */
+    void sendChunks(byte phase, byte type, int requestId, ByteBuffer image, long offset, long end)
+            throws IOException {
+        int start = image.position();
+        int total = image.remaining();
+        long first = offset;
+        long queuedAt = System.nanoTime();
+        ByteBuffer chunk;
+        do {
+            int length = (int) Math.min(IMAGE_RANGE_CHUNK_SIZE, end - offset);
+            chunk = image.duplicate();
+            chunk.position(start + (int) offset).limit(start + (int) offset + length);
+            checksum.reset();
+            checksum.update(chunk.duplicate());
+
+            ByteBuffer header = buffers.acquire(FrameCodec.CHUNK_HEADER_SIZE);
+            FrameCodec.putChunkHeader(header, phase, type, requestId, length, offset, total,
+                    (int) checksum.getValue());
+            header.flip();
+            writeQueue.add(header);
+            writeQueue.add(chunk);
+            offset += length;
+        } while (offset < end);
+        transfers.add(new Transfer(chunk, queuedAt, end - first));
+        onWritable();
+    }
+
+    /**
+     * Queues the given buffer without copying it and writes it right away if the channel is able to take it.
+     *
+     * @param buffer the buffer to be written, from its position to its limit.
+     * @throws IOException if the channel could not be written.
+     */
+    void send(ByteBuffer buffer) throws IOException {
+        writeQueue.add(buffer);
+        onWritable();
+    }
+
+    /**
+     * Closes the session once every queued frame of this connection has been written.
+     *
+     * @throws IOException if the channel could not be written.
+     */
+    void closeWhenFlushed() throws IOException {
+        closeWhenFlushed = true;
+        onWritable();
+    }
+
+    int getPort() {
+        return channel.socket().getPort();
+    }
+
+    InetAddress getAddress() {
+        return channel.socket().getInetAddress();
+    }
+
+    String getIP() {
+        return channel.socket().getInetAddress().toString();
+    }
+
+    NioSession getSession() {
+        return session;
+    }
+
+    void close() {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
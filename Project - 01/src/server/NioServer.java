@@ -0,0 +1,189 @@
+package server;
+
+import utils.FrameCodec;
+import utils.TCPPayload;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.Iterator;
+import java.util.concurrent.ExecutorService;
+
+import static utils.Utilities.*;
+
+/**
+ * The non-blocking mode of the StratoNet server. A single acceptor thread accepts the command connections and hands
+ * each of them to one of a fixed set of event loops as a NioSession. The file connections are read by the acceptor
+ * thread until they send the token of their client, which binds each of them to the session of its token. The calls
+ * to the NASA APIs are blocking, so they are run on the executor chosen in the configuration.
+ */
+class NioServer {
+
+    private final StratoNet stratoNet;
+    private final ServerSocketChannel commandServerChannel;
+    private final ServerSocketChannel fileServerChannel;
+    private final FileBindings fileBindings;
+    private final boolean singlePort;
+    private final EventLoop[] eventLoops;
+    private final ExecutorService workers;
+    private int nextEventLoop;
+
+    /**
+     * A file connection that has not sent the token of its client yet.
+     */
+    private static final class PendingFileConnection {
+
+        private final ByteBuffer buffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        private final long deadline = System.currentTimeMillis() + FILE_BIND_TIMEOUT;
+    }
+
+    /**
+     * @param stratoNet            the server the sessions belong to.
+     * @param commandServerChannel the channel the command connections are accepted from.
+     * @param fileServerChannel    the channel the file connections are accepted from, or null on a single port.
+     * @param config               the configuration of the server.
+     * @throws IOException if the selectors of the event loops could not be opened.
+     */
+    NioServer(StratoNet stratoNet, ServerSocketChannel commandServerChannel, ServerSocketChannel fileServerChannel,
+              ServerConfig config) throws IOException {
+        this.stratoNet = stratoNet;
+        this.commandServerChannel = commandServerChannel;
+        this.fileServerChannel = fileServerChannel;
+        this.fileBindings = stratoNet.getFileBindings();
+        this.singlePort = config.isSinglePort();
+        this.eventLoops = new EventLoop[config.getEventLoops()];
+        this.workers = ServerExecutors.create(config, "StratoNet-worker");
+
+        for (int i = 0; i < eventLoops.length; i++) {
+            eventLoops[i] = new EventLoop();
+            new Thread(eventLoops[i], "StratoNet-event-loop-" + i).start();
+        }
+    }
+
+    /**
+     * Accepts connections until the command server channel is closed.
+     *
+     * @throws IOException if the acceptor selector could not be opened.
+     */
+    void run() throws IOException {
+        Selector acceptSelector = Selector.open();
+
+        commandServerChannel.configureBlocking(false);
+        commandServerChannel.register(acceptSelector, SelectionKey.OP_ACCEPT);
+        if (fileServerChannel != null) {
+            fileServerChannel.configureBlocking(false);
+            fileServerChannel.register(acceptSelector, SelectionKey.OP_ACCEPT);
+        }
+
+        System.out.println("Event loop server started with " + eventLoops.length + " event loops"
+                + (singlePort ? " on a single port" : ""));
+
+        while (commandServerChannel.isOpen()) {
+            // The selector wakes up on its own now and then to drop the file connections that were never bound.
+            acceptSelector.select(FILE_BIND_TIMEOUT);
+
+            Iterator<SelectionKey> keys = acceptSelector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+                if (!key.isValid())
+                    continue;
+
+                try {
+                    if (key.isAcceptable() && key.channel() == commandServerChannel)
+                        acceptCommandConnection();
+                    else if (key.isAcceptable())
+                        acceptFileConnection(acceptSelector);
+                    else if (key.isReadable())
+                        readFileConnection(key);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+            closeExpiredFileConnections(acceptSelector);
+        }
+        acceptSelector.close();
+    }
+
+    /**
+     * Accepts a command connection and hands it to the next event loop as a new session.
+     */
+    private void acceptCommandConnection() throws IOException {
+        SocketChannel channel = commandServerChannel.accept();
+        if (channel == null)
+            return;
+        EventLoop eventLoop = eventLoops[nextEventLoop];
+        nextEventLoop = (nextEventLoop + 1) % eventLoops.length;
+
+        new NioSession(stratoNet, eventLoop, workers, channel, singlePort).start();
+    }
+
+    /**
+     * Accepts a file connection and reads it on the acceptor thread until it sends the token of its client.
+     */
+    private void acceptFileConnection(Selector acceptSelector) throws IOException {
+        SocketChannel channel = fileServerChannel.accept();
+        if (channel == null)
+            return;
+        channel.configureBlocking(false);
+        channel.register(acceptSelector, SelectionKey.OP_READ, new PendingFileConnection());
+    }
+
+    /**
+     * Reads the bytes a file connection has sent so far, and binds the connection to the session of its token once
+     * the whole frame holding the token is read. The connection is closed if it sends anything else.
+     */
+    private void readFileConnection(SelectionKey key) {
+        SocketChannel channel = (SocketChannel) key.channel();
+        ByteBuffer buffer = ((PendingFileConnection) key.attachment()).buffer;
+        try {
+            if (channel.read(buffer) < 0)
+                throw new IOException("File connection closed before it was bound");
+            buffer.flip();
+            TCPPayload request = FrameCodec.decodeMessage(buffer);
+            buffer.compact();
+            if (request == null && buffer.hasRemaining())
+                return;
+
+            // The channel is handed to the event loop of its session, so it leaves the acceptor selector first.
+            key.cancel();
+            if (request != null && request.getType() == Auth_Bind && fileBindings.bind(request.getMessage(), channel))
+                return;
+            System.err.println("File connection of " + channel.getRemoteAddress() + " could not be bound");
+            channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+            closeQuietly(key);
+        }
+    }
+
+    /**
+     * Closes the file connections that did not send the token of their client in time.
+     */
+    private void closeExpiredFileConnections(Selector acceptSelector) {
+        long now = System.currentTimeMillis();
+        for (SelectionKey key : acceptSelector.keys()) {
+            if (key.isValid() && key.attachment() instanceof PendingFileConnection
+                    && ((PendingFileConnection) key.attachment()).deadline < now)
+                closeQuietly(key);
+        }
+    }
+
+    private static void closeQuietly(SelectionKey key) {
+        key.cancel();
+        try {
+            key.channel().close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Stops the event loops and the worker threads.
+     */
+    void shutdown() {
+        for (EventLoop eventLoop : eventLoops)
+            eventLoop.shutdown();
+        workers.shutdownNow();
+    }
+}
@@ -0,0 +1,642 @@
+package server;
+
+import utils.FrameCodec;
+import utils.QueryTCPPayload;
+import utils.TCPPayload;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static utils.Utilities.*;
+
+/**
+ * The event loop counterpart of Server. It holds the state of a single client and runs the authentication and the
+ * querying phases as a state machine that is driven by the frames its connections receive. Every method is called
+ * from the thread of its event loop, except for the calls to the NASA APIs which are handed to the worker threads.
+ * <p>
+ * In the querying phase, every query is served on its own as soon as it is received, so a client may pipeline
+ * several queries and receive their replies, tagged with their request ids, in the order they complete.
+ * <p>
+ * The file connection of the session is bound to it once the client sends its token on the connection, until then the
+ * session waits without reading any query. On a single port, the frames of the file channel are sent on the command
+ * connection instead.
+ */
+class NioSession {
+
+    private enum State {
+        AWAITING_USERNAME,
+        AWAITING_PASSWORD,
+        AWAITING_FILE,
+        QUERYING,
+        CLOSED
+    }
+
+    private final EventLoop eventLoop;
+    private final Executor workers;
+    private final NioConnection command;
+    private final FileBindings fileBindings;
+    private final boolean singlePort;
+    private final CredentialIndex credentials;
+    private final SessionRegistry sessions;
+    private final ApodService apod;
+    private final WeatherService marsWeather;
+    private final ServerMetrics metrics;
+    private final long acceptedAt;
+    private State state;
+    private NioConnection file;
+    private CompletableFuture<SocketChannel> fileBinding;
+    private final PendingImages pendingImages;
+    private final Map<Integer, Integer> pendingBatches;
+    private final Set<Integer> requestIds;
+    private int inFlight;
+    private String clientUsername;
+    private String failedMessage;
+    private int authAttempts;
+    private long deadline;
+    private long challengedAt;
+    private boolean opened;
+    private boolean closed;
+    private ServerMetrics.Disconnect disconnectCause;
+
+    NioSession(StratoNet stratoNet, EventLoop eventLoop, Executor workers, SocketChannel commandChannel,
+               boolean singlePort) {
+        this.eventLoop = eventLoop;
+        this.workers = workers;
+        this.metrics = stratoNet.getMetrics();
+        this.acceptedAt = System.nanoTime();
+        this.command = new NioConnection(this, commandChannel, true);
+        this.file = singlePort ? command : null;
+        this.fileBindings = stratoNet.getFileBindings();
+        this.singlePort = singlePort;
+        this.credentials = stratoNet.getCredentials();
+        this.sessions = stratoNet.getSessions();
+        this.apod = stratoNet.getApod();
+        this.marsWeather = stratoNet.getWeather();
+        this.state = State.AWAITING_USERNAME;
+        this.failedMessage = "";
+        this.pendingImages = new PendingImages();
+        this.pendingBatches = new HashMap<>();
+        this.requestIds = new HashSet<>();
+    }
+
+    /**
+     * Registers the command connection of the session to its event loop, which starts the authentication phase.
+     */
+    void start() {
+        eventLoop.execute(() -> {
+            try {
+                command.register(eventLoop);
+                System.out.println("Client request accepted" + command.getIP() + ":" + command.getPort());
+            } catch (IOException e) {
+                e.printStackTrace();
+                close();
+            }
+        });
+    }
+
+    /**
+     * Decodes and handles every complete frame in the given buffer. The bytes of an incomplete frame are left in the
+     * buffer until the rest of the frame is read.
+     *
+     * @param buffer the bytes read from the command connection.
+     * @throws IOException if a response could not be written.
+     */
+    void onCommandData(ByteBuffer buffer) throws IOException {
+        while (true) {
+            if (state == State.AWAITING_USERNAME || state == State.AWAITING_PASSWORD) {
+                TCPPayload clientResponse = FrameCodec.decodeMessage(buffer);
+                if (clientResponse == null)
+                    return;
+                if (state == State.AWAITING_USERNAME && clientResponse.getType() == Auth_Resume)
+                    onResume(clientResponse.getMessage());
+                else if (state == State.AWAITING_USERNAME)
+                    onUsername(clientResponse.getMessage());
+                else
+                    onPassword(clientResponse.getMessage());
+            } else if (state == State.QUERYING) {
+                QueryTCPPayload clientResponse = FrameCodec.decodeQuery(buffer);
+                if (clientResponse == null)
+                    return;
+                onQuery(clientResponse);
+            } else {
+                if (state == State.CLOSED)
+                    buffer.position(buffer.limit());
+                return;
+            }
+        }
+    }
+
+    /**
+     * The client does not send anything meaningful on the file connection, so whatever is read from it is dropped.
+     *
+     * @param buffer the bytes read from the file connection.
+     */
+    void onFileData(ByteBuffer buffer) {
+        buffer.position(buffer.limit());
+    }
+
+    /**
+     * Binds the session of a token issued on an earlier connection to this connection, the client then skips the
+     * authentication. If the token is unknown or has expired, the client is asked for its username instead.
+     */
+    private void onResume(String token) throws IOException {
+        SessionRegistry.Session session = sessions.resume(token, command.getAddress(), command.getPort());
+        if (session == null) {
+            send(Auth_Phase, Auth_Resume_Fail, NO_REQUEST_ID,
+                    "Session could not be resumed | Enter your username:");
+            return;
+        }
+        clientUsername = session.getUsername();
+        expectFileConnection(token);
+        send(Auth_Phase, Auth_Success, NO_REQUEST_ID, token);
+        metrics.acceptToAuth.recordSince(acceptedAt);
+
+        System.out.println("Session of " + clientUsername + " resumed");
+        awaitFileConnection();
+    }
+
+    private void onUsername(String username) throws IOException {
+        if (!credentials.containsUsername(username)) {
+            fail(ServerMetrics.Disconnect.UNKNOWN_USER, Auth_Phase, Auth_Fail, NO_REQUEST_ID,
+                    "No such user. Authentication failed", "No such user. Authentication failed", true);
+            return;
+        }
+        clientUsername = username;
+        sendPasswordChallenge();
+    }
+
+    private void onPassword(String password) throws IOException {
+        if (System.currentTimeMillis() > deadline) {
+            fail(ServerMetrics.Disconnect.TIMEOUT, Auth_Phase, Auth_Fail, NO_REQUEST_ID,
+                    "Disconnected: Password timeout", "Password timeout", true);
+            return;
+        }
+        metrics.passwordRoundTrip.recordSince(challengedAt);
+
+        if (credentials.authenticate(clientUsername, password)) {
+            String clientToken = sessions.register(clientUsername, command.getAddress(), command.getPort());
+            expectFileConnection(clientToken);
+            send(Auth_Phase, Auth_Success, NO_REQUEST_ID, clientToken);
+            metrics.acceptToAuth.recordSince(acceptedAt);
+
+            System.out.println("Authentication Complete!");
+            awaitFileConnection();
+        } else {
+            authAttempts++;
+            if (authAttempts < 3) {
+                failedMessage = String.format("Incorrect password | " + (3 - authAttempts)
+                        + " attempt%s left | ", authAttempts == 1 ? "s" : "");
+                sendPasswordChallenge();
+            } else {
+                fail(ServerMetrics.Disconnect.TOO_MANY_ATTEMPTS, Auth_Phase, Auth_Fail, NO_REQUEST_ID,
+                        "Authentication failed: Too many unsuccessful attempts to authenticate connection",
+                        "Too many failed attempt to connect", true);
+            }
+        }
+    }
+
+    /**
+     * Registers the session as waiting for its file connection. It is called before the token is sent to the client,
+     * so that the file connection of the client cannot arrive before the session waits for it.
+     */
+    private void expectFileConnection(String token) {
+        if (singlePort)
+            return;
+        fileBinding = fileBindings.expect(token).orTimeout(FILE_BIND_TIMEOUT, TimeUnit.MILLISECONDS);
+        fileBinding.whenComplete((channel, e) -> eventLoop.execute(() -> onFileBound(channel)));
+    }
+
+    /**
+     * Sends the welcome message once the file connection is bound, right away on a single port.
+     */
+    private void awaitFileConnection() throws IOException {
+        if (file == null) {
+            state = State.AWAITING_FILE;
+            return;
+        }
+        send(Query_Phase, Query_Request, NO_REQUEST_ID, Server.serverWelcomeMessage(clientUsername));
+        if (!opened) {
+            opened = true;
+            metrics.sessionOpened();
+        }
+        awaitQuery();
+    }
+
+    /**
+     * Registers the file connection bound to the session to its event loop, and starts the querying phase.
+     *
+     * @param channel the file connection, or null if the client did not open it in time.
+     */
+    private void onFileBound(SocketChannel channel) {
+        if (state == State.CLOSED) {
+            if (channel != null)
+                new NioConnection(this, channel, false).close();
+            return;
+        }
+        if (channel == null) {
+            disconnect(ServerMetrics.Disconnect.TIMEOUT, "File connection timeout", true);
+            close();
+            return;
+        }
+        try {
+            file = new NioConnection(this, channel, false);
+            file.register(eventLoop);
+            awaitFileConnection();
+            // The queries the client sent while the file connection was being bound are served now.
+            command.onReadable();
+        } catch (IOException e) {
+            e.printStackTrace();
+            close();
+        }
+    }
+
+    private void onQuery(QueryTCPPayload clientResponse) throws IOException {
+        int requestId = clientResponse.getRequestId();
+        // The client is not idle while some of its queries are still being served, or while it has not reported an
+        // image it may still be receiving the bytes of.
+        if (inFlight == 0 && !pendingImages.isAwaitingReport() && System.currentTimeMillis() > deadline) {
+            fail(ServerMetrics.Disconnect.TIMEOUT, Query_Phase, Query_Exit, requestId, "Query timeout", "query timeout",
+                    true);
+            return;
+        }
+        //Checks if the message is from the query phase or not, if not disconnect client.
+        if (clientResponse.getPhase() == Auth_Phase) {
+            fail(ServerMetrics.Disconnect.INVALID_REQUEST, Query_Phase, Query_Exit, requestId,
+                    "INVALID REQUEST PHASE | current phase: querying phase, given: auth phase",
+                    "Invalid request phase | current phase: querying phase, given: auth phase", true);
+            return;
+        }
+        // Verifying the client token, if not valid, disconnect client.
+        if (!verifyToken(clientResponse.getToken())) {
+            fail(ServerMetrics.Disconnect.INVALID_TOKEN, Query_Phase, Query_Exit, requestId,
+                    "INVALID TOKEN, Disconnecting from server...", "Invalid token", true);
+            return;
+        }
+
+        if (clientResponse.getType() == Query_Image) {
+            String date = clientResponse.getMessage();
+            if (!ImageVariant.isValidQuery(date)) {
+                fail(ServerMetrics.Disconnect.INVALID_REQUEST, Query_Phase, Query_Exit, requestId,
+                        "INVALID IMAGE QUERY, Disconnecting from server...", "Invalid image query", true);
+                return;
+            }
+            if (!reserveRequestIds(requestId, 1)) {
+                fail(ServerMetrics.Disconnect.INVALID_REQUEST, Query_Phase, Query_Exit, requestId,
+                        "REQUEST ID IN USE, Disconnecting from server...", "Request id in use", true);
+                return;
+            }
+            inFlight++;
+            workers.execute(() -> {
+                try {
+                    ApodImage image = apod.getImage(ImageVariant.stripDigest(date));
+                    String cachedDigest = ImageVariant.cachedDigestOf(date);
+                    eventLoop.execute(() -> onImageFetched(requestId, image, cachedDigest));
+                } catch (IOException e) {
+                    String reason = String.valueOf(e.getMessage());
+                    eventLoop.execute(() -> onImageMissing(requestId, reason));
+                } catch (RuntimeException e) {
+                    e.printStackTrace();
+                    eventLoop.execute(this::close);
+                }
+            });
+        } else if (clientResponse.getType() == Query_Image_Batch) {
+            List<String> dates = expandDates(clientResponse.getMessage());
+            if (dates == null) {
+                fail(ServerMetrics.Disconnect.INVALID_REQUEST, Query_Phase, Query_Exit, requestId,
+                        "INVALID BATCH, Disconnecting from server...", "Invalid batch", true);
+                return;
+            }
+            // The images of the batch are sent with the ids that follow the id of the batch.
+            if (!reserveRequestIds(requestId, 1 + dates.size())) {
+                fail(ServerMetrics.Disconnect.INVALID_REQUEST, Query_Phase, Query_Exit, requestId,
+                        "REQUEST ID IN USE, Disconnecting from server...", "Request id in use", true);
+                return;
+            }
+            inFlight++;
+            pendingBatches.put(requestId, dates.size());
+            fetchBatch(requestId, dates);
+        } else if (clientResponse.getType() == Query_Image_Range) {
+            onRangeRequest(requestId, clientResponse.getMessage());
+        } else if (clientResponse.getType() == Query_Image_Valid || clientResponse.getType() == Query_Image_Invalid) {
+            onImageReport(requestId, clientResponse.getType(), clientResponse.getMessage());
+        } else if (clientResponse.getType() == Query_Weather) {
+            if (!reserveRequestIds(requestId, 1)) {
+                fail(ServerMetrics.Disconnect.INVALID_REQUEST, Query_Phase, Query_Exit, requestId,
+                        "REQUEST ID IN USE, Disconnecting from server...", "Request id in use", true);
+                return;
+            }
+            inFlight++;
+            // The weather is served from memory once a snapshot is fetched, so the event loop answers it right away.
+            String cachedWeather = marsWeather.getCachedWeather();
+            if (cachedWeather != null) {
+                onWeatherFetched(requestId, cachedWeather);
+                return;
+            }
+            workers.execute(() -> {
+                try {
+                    String weather = marsWeather.getWeather();
+                    eventLoop.execute(() -> onWeatherFetched(requestId, weather));
+                } catch (IOException | RuntimeException e) {
+                    e.printStackTrace();
+                    eventLoop.execute(this::close);
+                }
+            });
+        } else if (clientResponse.getType() == Query_Exit) {
+            send(Query_Phase, Query_Exit, requestId, "Disconnected from the server.");
+            sessions.remove(clientResponse.getToken());
+            disconnect(ServerMetrics.Disconnect.CLIENT_REQUEST, "Client request", false);
+            state = State.CLOSED;
+            command.closeWhenFlushed();
+        } else {
+            awaitQuery();
+        }
+    }
+
+    /**
+     * Sends the digest of a fetched image. The image is kept until the client reports whether it received the image
+     * intact, so that the client is able to request its bytes in the meantime. A client whose copy of the image has the
+     * same digest is sent a Query_Not_Modified instead, and the image is not sent at all.
+     */
+    private void onImageFetched(int requestId, ApodImage image, String cachedDigest) {
+        if (state == State.CLOSED)
+            return;
+        try {
+            if (image.getDigest().equals(cachedDigest)) {
+                inFlight--;
+                releaseRequestIds(requestId, 1);
+                send(Query_Phase, Query_Not_Modified, requestId, image.getDigest());
+                awaitQuery();
+                return;
+            }
+            // The query is served once the digest is sent, the image is then kept until the client reports it.
+            inFlight--;
+            keepForReport(requestId, image);
+            send(Query_Phase, Query_Request, requestId, image.getDigest());
+            awaitQuery();
+        } catch (IOException e) {
+            close();
+        }
+    }
+
+    /**
+     * Keeps an image until the client reports it. The images of a client that is gone are dropped once their report is
+     * overdue, even though no frame of the client wakes the session up anymore.
+     */
+    private void keepForReport(int requestId, ApodImage image) {
+        pendingImages.put(requestId, image);
+        CompletableFuture.delayedExecutor(IMAGE_REPORT_TIMEOUT + 1, TimeUnit.MILLISECONDS, eventLoop::execute)
+                .execute(pendingImages::evictExpired);
+    }
+
+    /**
+     * Reports an image that could not be retrieved, such as the video of a day, without ending the session.
+     */
+    private void onImageMissing(int requestId, String reason) {
+        if (state == State.CLOSED)
+            return;
+        try {
+            inFlight--;
+            releaseRequestIds(requestId, 1);
+            send(Query_Phase, Query_Image_Missing, requestId, reason);
+            awaitQuery();
+        } catch (IOException e) {
+            close();
+        }
+    }
+
+    /**
+     * Retrieves the images of a batch on at most BATCH_FETCH_PARALLELISM worker threads at a time. Each image is sent
+     * as soon as it is retrieved, the i-th image of the batch with the request id requestId + 1 + i. The batch is
+     * served once every image is sent, the images are then kept until the client reports the batch.
+     */
+    private void fetchBatch(int requestId, List<String> dates) {
+        AtomicInteger next = new AtomicInteger();
+        AtomicInteger remaining = new AtomicInteger(dates.size());
+        for (int i = 0; i < Math.min(BATCH_FETCH_PARALLELISM, dates.size()); i++) {
+            workers.execute(() -> {
+                int index;
+                while ((index = next.getAndIncrement()) < dates.size()) {
+                    int imageRequestId = requestId + 1 + index;
+                    try {
+                        ApodImage image = apod.getImage(dates.get(index));
+                        eventLoop.execute(() -> onBatchImageFetched(requestId, imageRequestId, image, remaining));
+                    } catch (IOException e) {
+                        String reason = String.valueOf(e.getMessage());
+                        eventLoop.execute(() -> onBatchImageMissing(requestId, imageRequestId, reason, remaining));
+                    } catch (RuntimeException e) {
+                        e.printStackTrace();
+                        eventLoop.execute(this::close);
+                        return;
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Sends the digest of an image of a batch, then its bytes on the file connection without waiting for a range
+     * request. Nothing is sent for a batch the client has already reported, whose images would never be reported again.
+     */
+    private void onBatchImageFetched(int batchId, int requestId, ApodImage image, AtomicInteger remaining) {
+        if (state == State.CLOSED)
+            return;
+        if (!pendingBatches.containsKey(batchId)) {
+            onBatchImageServed(remaining);
+            return;
+        }
+        try {
+            // The image is kept until its batch is reported, so that the client is able to request a corrupted chunk
+            // again.
+            keepForReport(requestId, image);
+            send(Query_Phase, Query_Request, requestId, image.getDigest());
+            file.sendChunks(Query_Phase, Query_Image_Chunk, requestId, image.getData(), 0, image.getSize());
+            onBatchImageServed(remaining);
+        } catch (IOException e) {
+            close();
+        }
+    }
+
+    /**
+     * Reports an image of a batch that could not be retrieved, such as the video of a day, without ending the session.
+     */
+    private void onBatchImageMissing(int batchId, int requestId, String reason, AtomicInteger remaining) {
+        if (state == State.CLOSED)
+            return;
+        if (!pendingBatches.containsKey(batchId)) {
+            onBatchImageServed(remaining);
+            return;
+        }
+        try {
+            send(Query_Phase, Query_Image_Missing, requestId, reason);
+            onBatchImageServed(remaining);
+        } catch (IOException e) {
+            close();
+        }
+    }
+
+    /**
+     * Counts an image of a batch as served, the batch is served once its last image is.
+     */
+    private void onBatchImageServed(AtomicInteger remaining) {
+        if (remaining.decrementAndGet() == 0) {
+            inFlight--;
+            awaitQuery();
+        }
+    }
+
+    private void onWeatherFetched(int requestId, String weather) {
+        if (state == State.CLOSED)
+            return;
+        try {
+            inFlight--;
+            releaseRequestIds(requestId, 1);
+            send(Query_Phase, Query_Success, requestId, weather);
+            awaitQuery();
+        } catch (IOException e) {
+            close();
+        }
+    }
+
+    /**
+     * Sends the requested bytes of an image whose digest has been sent on the file connection.
+     */
+    private void onRangeRequest(int requestId, String message) throws IOException {
+        ApodImage image = pendingImages.get(requestId);
+        ImageRange range = ImageRange.parse(message);
+        if (image == null || range == null || !range.isOf(image)) {
+            fail(ServerMetrics.Disconnect.INVALID_REQUEST, Query_Phase, Query_Exit, requestId,
+                    "INVALID RANGE REQUEST, Disconnecting from server...", "Invalid range request", true);
+            return;
+        }
+        file.sendChunks(Query_Phase, Query_Image_Chunk, requestId, image.getData(), range.startIn(image),
+                range.endIn(image));
+    }
+
+    private void onImageReport(int requestId, byte type, String message) throws IOException {
+        pendingImages.remove(requestId);
+        releaseRequestIds(requestId, 1);
+        // The images of a batch are reported at once, the message of an invalid report holds the dates of the
+        // corrupted images.
+        Integer batchSize = pendingBatches.remove(requestId);
+        if (batchSize != null) {
+            for (int i = 1; i <= batchSize; i++)
+                pendingImages.remove(requestId + i);
+            releaseRequestIds(requestId + 1, batchSize);
+            if (type == Query_Image_Valid)
+                send(Query_Phase, Query_Success, requestId, "Images validated");
+            else
+                send(Query_Phase, Query_Request, requestId, "Images of " + message + " are corrupted | Try them again");
+            awaitQuery();
+            return;
+        }
+        //Checks the integrity of the sent image, if the image is corrupted sends a message and Query_Request
+        // to the client. If the image is valid, sends a message and Query_Success to the client.
+        if (type == Query_Image_Valid)
+            send(Query_Phase, Query_Success, requestId, "Image validated");
+        else
+            send(Query_Phase, Query_Request, requestId, "Image is corrupted | Try another image");
+        awaitQuery();
+    }
+
+    /**
+     * Reserves the request ids of a new query, and the ids that follow it for the images of a batch. The ids stay
+     * reserved until the query is over, that is until the client reports its images if it has any.
+     *
+     * @return true if the ids are reserved, false if one of them is used by a query that is not over yet.
+     */
+    private boolean reserveRequestIds(int requestId, int count) {
+        for (int i = 0; i < count; i++) {
+            if (requestIds.contains(requestId + i))
+                return false;
+        }
+        for (int i = 0; i < count; i++)
+            requestIds.add(requestId + i);
+        return true;
+    }
+
+    /**
+     * Releases the request ids of a query that is over, before its last reply is sent.
+     */
+    private void releaseRequestIds(int requestId, int count) {
+        for (int i = 0; i < count; i++)
+            requestIds.remove(requestId + i);
+    }
+
+    private void sendPasswordChallenge() throws IOException {
+        send(Auth_Phase, Auth_Challenge, NO_REQUEST_ID, failedMessage + "Enter Your password:");
+        challengedAt = System.nanoTime();
+        deadline = System.currentTimeMillis() + PASSWORD_TIMEOUT;
+        state = State.AWAITING_PASSWORD;
+    }
+
+    private void awaitQuery() {
+        deadline = System.currentTimeMillis() + QUERY_TIMEOUT;
+        state = State.QUERYING;
+    }
+
+    private void send(byte phase, byte type, int requestId, String serverMessage) throws IOException {
+        command.sendMessage(phase, type, requestId, serverMessage);
+    }
+
+    /**
+     * Sends a final message to the client, prints the reason of the disconnection and closes the session once the
+     * message is written.
+     */
+    private void fail(ServerMetrics.Disconnect cause, byte phase, byte type, int requestId, String serverMessage,
+                      String reason, boolean isError) throws IOException {
+        send(phase, type, requestId, serverMessage);
+        disconnect(cause, reason, isError);
+        state = State.CLOSED;
+        command.closeWhenFlushed();
+    }
+
+    /**
+     * Prints the reason of the disconnection, and keeps its cause for the metrics of the server.
+     */
+    private void disconnect(ServerMetrics.Disconnect cause, String reason, boolean isError) {
+        disconnectCause = cause;
+        Server.printDisconnectionMessage(Integer.toString(command.getPort()), command.getIP(), reason, isError);
+    }
+
+    /**
+     * Validates a given token against the address of the command connection.
+     *
+     * @param token the token to be verified.
+     * @return true if the token is verified and false otherwise.
+     */
+    private boolean verifyToken(String token) {
+        return sessions.verify(token, command.getAddress(), command.getPort());
+    }
+
+    ServerMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Closes both connections of the session, and records the cause the session ended for.
+     */
+    void close() {
+        if (closed)
+            return;
+        closed = true;
+        state = State.CLOSED;
+        if (opened)
+            metrics.sessionClosed();
+        metrics.disconnected(disconnectCause != null ? disconnectCause : ServerMetrics.Disconnect.CONNECTION_LOST);
+        if (fileBinding != null)
+            fileBinding.cancel(false);
+        command.close();
+        if (file != null && file != command)
+            file.close();
+    }
+}
@@ -0,0 +1,87 @@
+package server;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static utils.Utilities.*;
+
+/**
+ * The images of a session whose digest has been sent, keyed by the request id they were sent with. An image is kept
+ * until the client reports whether it received the image intact, so that the client is able to request its bytes in
+ * the meantime. A client that never reports an image, such as one whose query timed out or that is gone, does not pin
+ * it for the rest of the session: an image whose bytes have not been asked for within IMAGE_REPORT_TIMEOUT is dropped.
+ * <p>
+ * The images waiting for their report are counted apart from the queries being served, so they only keep the session
+ * from timing out until they are dropped.
+ */
+final class PendingImages {
+
+    private static final class Entry {
+
+        final ApodImage image;
+        volatile long expiresAt;
+
+        Entry(ApodImage image) {
+            this.image = image;
+            this.expiresAt = System.currentTimeMillis() + IMAGE_REPORT_TIMEOUT;
+        }
+    }
+
+    private final Map<Integer, Entry> images = new ConcurrentHashMap<>();
+
+    /**
+     * Keeps an image until its report, the images whose report is overdue are dropped first.
+     *
+     * @param requestId the request id the digest of the image was sent with.
+     * @param image     the image.
+     */
+    void put(int requestId, ApodImage image) {
+        evictExpired();
+        images.put(requestId, new Entry(image));
+    }
+
+    /**
+     * Given a request id, returns the image sent with it. The client is given another IMAGE_REPORT_TIMEOUT to report
+     * the image, since it is still asking for its bytes.
+     *
+     * @param requestId the request id the digest of the image was sent with.
+     * @return the image, or null if no image was sent with the request id or it has been dropped.
+     */
+    ApodImage get(int requestId) {
+        Entry entry = images.get(requestId);
+        if (entry == null)
+            return null;
+        long now = System.currentTimeMillis();
+        if (entry.expiresAt < now) {
+            images.remove(requestId, entry);
+            return null;
+        }
+        entry.expiresAt = now + IMAGE_REPORT_TIMEOUT;
+        return entry.image;
+    }
+
+    /**
+     * Drops the image sent with the given request id, once it is reported.
+     *
+     * @param requestId the request id the digest of the image was sent with.
+     */
+    void remove(int requestId) {
+        images.remove(requestId);
+    }
+
+    /**
+     * @return true if an image is still waiting for its report, the images whose report is overdue are dropped first.
+     */
+    boolean isAwaitingReport() {
+        evictExpired();
+        return !images.isEmpty();
+    }
+
+    /**
+     * Drops the images whose report is overdue.
+     */
+    void evictExpired() {
+        long now = System.currentTimeMillis();
+        images.values().removeIf(entry -> entry.expiresAt < now);
+    }
+}
@@ -1,23 +1,59 @@
 package server;
 
-import user.Client;
+import utils.FrameCodec;
 import utils.QueryTCPPayload;
+import utils.TCPPayload;
 
-import javax.management.Query;
 import java.util.*;
 
 import static utils.Utilities.*;
 
 import java.io.*;
 import java.net.*;
-import java.util.regex.Pattern;
-
-public class Server extends Thread {
-
-    private final ArrayList<Client> clients;
-    private final HashMap<String, String[]> tokenMap;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Serves a single client through blocking reads and writes. It is run by the session executor of StratoNet, and runs
+ * the queries of its client on the request executor of StratoNet so that pipelined queries are served concurrently.
+ * Once the client is authenticated, the server waits for the file connection bound to the token of the client, or
+ * sends the frames of the file channel on the command socket when StratoNet runs on a single port.
+ */
+public class Server implements Runnable {
+
+    private final CredentialIndex credentials;
+    private final SessionRegistry sessions;
+    private final ApodService apod;
+    private final WeatherService weather;
     private final Socket commandSocket;
-    private final Socket fileSocket;
+    private final FileBindings fileBindings;
+    private final boolean singlePort;
+    private final Executor requests;
+    // The queries are read on the thread of the session while their replies are written by the request threads, so
+    // the frames read and the frames written go through codecs, and buffers, of their own.
+    private final FrameCodec readCodec;
+    private final FrameCodec commandCodec;
+    private final FrameCodec fileCodec;
+    private final PendingImages pendingImages;
+    private final Map<Integer, Integer> pendingBatches;
+    private final Set<Integer> requestIds;
+    private final AtomicInteger inFlight;
+    private final Set<CompletableFuture<Void>> running;
+    private final long drainTimeout;
+    private final ServerMetrics metrics;
+    private final long acceptedAt;
+    private ServerMetrics.Disconnect disconnectCause;
+    private CompletableFuture<SocketChannel> fileBinding;
+    private Socket fileSocket;
     private ServerSocket commandServerSocket;
     private ServerSocket fileServerSocket;
     private DataInputStream commandReader;
@@ -30,75 +66,29 @@ public class Server extends Thread {
     private String clientToken;
     private int port;
 
-    public Server(Socket commandSocket, Socket fileSocket) {
-        clients = new ArrayList<Client>();
-        tokenMap = new HashMap<>();
+    public Server(StratoNet stratoNet, Socket commandSocket) {
+        credentials = stratoNet.getCredentials();
+        sessions = stratoNet.getSessions();
+        apod = stratoNet.getApod();
+        weather = stratoNet.getWeather();
+        requests = stratoNet.getRequestExecutor();
+        fileBindings = stratoNet.getFileBindings();
+        singlePort = stratoNet.getConfig().isSinglePort();
+        readCodec = new FrameCodec();
+        commandCodec = new FrameCodec();
+        fileCodec = new FrameCodec();
+        pendingImages = new PendingImages();
+        pendingBatches = new ConcurrentHashMap<>();
+        requestIds = ConcurrentHashMap.newKeySet();
+        inFlight = new AtomicInteger();
+        running = ConcurrentHashMap.newKeySet();
+        // An image is retrieved with two upstream requests in a row, its metadata then its bytes.
+        drainTimeout = 2 * stratoNet.getConfig().getUpstreamTimeout();
+        metrics = stratoNet.getMetrics();
+        acceptedAt = System.nanoTime();
 
         this.commandSocket = commandSocket;
-        this.fileSocket = fileSocket;
-
-    }
 
-    /**
-     * Given a String array, finds the url is this string array and returns it.
-     *
-     * @param lines the String array to be searched for a url.
-     * @return a url retrieved from a String array.
-     */
-    private static String getUrlFromText(String[] lines) {
-        for (String str : lines) {
-            if (Pattern.matches(urlRegex, str))
-                return str;
-        }
-        return null;
-    }
-
-    /**
-     * Given a parsed JSON object, finds the weather information related to the pressure and adds them to an ArrayList,
-     * then pick a random entry from the constructed ArrayList and returns it.
-     *
-     * @param weather a parsed JSON string containing information about the weather on Mars.
-     * @return a randomly picked information about the weather on Mars.
-     */
-    private static String filteredWeather(String weather) {
-        ArrayList<String> weatherList = new ArrayList<>();
-        Random rand = new Random();
-
-        String[] weatherText = weather.split("},");
-        for (String str : weatherText) {
-            if (str.contains("\"PRE\": {") && !str.contains("["))
-                weatherList.add(str.substring(str.indexOf("\"PRE\"")).replaceAll("\"PRE\": \\{\\s{5}",
-                        "").replaceAll("\"", ""));
-        }
-
-        int randomIndex = rand.nextInt(weatherList.size());
-        return weatherList.get(randomIndex);
-    }
-
-    /**
-     * Creates a byte array that consists of an image retrieved from a given url.
-     *
-     * @param url the url to get the image from.
-     * @return return a byte array containing the bytes that make up an image retrieved from a url.
-     */
-    private static byte[] imageToByteArray(URL url) {
-        try {
-            InputStream inputStream = new BufferedInputStream(url.openStream());
-            ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
-
-            byte[] byteArray = new byte[1024];
-            int n = 0;
-
-            while ((n = inputStream.read(byteArray)) != -1) {
-                outputStream.write(byteArray, 0, n);
-            }
-            outputStream.close();
-            inputStream.close();
-            return outputStream.toByteArray();
-        } catch (Exception e) {
-            e.printStackTrace();
-        }
-        return null;
     }
 
     /**
@@ -114,25 +104,39 @@ public class Server extends Thread {
                 "\n| You have access to following queries:" +
                 "\n| 1) To get the weather on Mars type \"Weather\"" +
                 "\n| 2) To get the image of the day type the date of an image as follows: yyyy-mm-dd" +
-                "\n| 3) To disconnect from the server simply type \"disconnect\"" +
+                "\n|    add a size and a quality for a smaller image as follows: yyyy-mm-dd@500 or yyyy-mm-dd@500q80" +
+                "\n| 3) To get the images of several days type a range of dates as follows: yyyy-mm-dd..yyyy-mm-dd" +
+                "\n|    or a list of dates as follows: yyyy-mm-dd,yyyy-mm-dd" +
+                "\n| 4) To disconnect from the server simply type \"disconnect\"" +
+                "\n| Several queries may be typed on a single line, separated by spaces." +
                 "\n-------------------------------------------------------------------------------------------------";
     }
 
     public void run() {
-        FillClients();
         try {
             System.out.println("Server socket successfully opened at: " + Inet4Address.getLocalHost());
         } catch (IOException | NullPointerException e) {
             e.printStackTrace();
         }
-        if (AuthenticateClient()) {
-            System.out.println("Authentication Complete!");
-            try {
-                System.out.println("Server socket successfully opened at: " + Inet4Address.getLocalHost());
-                QueryingPhase();
-            } catch (IOException | NullPointerException e) {
-                e.printStackTrace();
+        boolean opened = false;
+        try {
+            if (AuthenticateClient() && BindFileConnection()) {
+                opened = true;
+                metrics.sessionOpened();
+                System.out.println("Authentication Complete!");
+                try {
+                    System.out.println("Server socket successfully opened at: " + Inet4Address.getLocalHost());
+                    QueryingPhase();
+                } catch (IOException | NullPointerException e) {
+                    e.printStackTrace();
+                }
             }
+        } finally {
+            closeSockets();
+            if (opened)
+                metrics.sessionClosed();
+            metrics.disconnected(disconnectCause != null ? disconnectCause
+                    : ServerMetrics.Disconnect.CONNECTION_LOST);
         }
     }
 
@@ -147,10 +151,7 @@ public class Server extends Thread {
         String password;
 
         int authAttempts = 0;
-        byte[] serverResponse;
-        byte phase;
-        byte type;
-        int size;
+        TCPPayload request;
 
         try {
 
@@ -159,71 +160,62 @@ public class Server extends Thread {
 
             System.out.println("Client request accepted" + commandSocket.getRemoteSocketAddress());
 
-            phase = commandReader.readByte();
-            type = commandReader.readByte();
-            size = commandReader.readInt();
-            clientResponse = new String(commandReader.readNBytes(size));
+            request = readCodec.readMessage(commandReader);
+            clientResponse = request.getMessage();
+
+            // A client holding a token from an earlier connection may skip the authentication.
+            if (request.getType() == Auth_Resume) {
+                if (ResumeSession(clientResponse))
+                    return true;
+
+                serverMessage = "Session could not be resumed | Enter your username:";
+                commandCodec.writeMessage(commandWriter, Auth_Phase, Auth_Resume_Fail, serverMessage);
+
+                clientResponse = readCodec.readMessage(commandReader).getMessage();
+            }
 
             if (!AuthenticateUsername(clientResponse)) {
                 serverMessage = "No such user. Authentication failed";
-                serverResponse = getAuthRequestByteArray(Auth_Phase, Auth_Fail, serverMessage.length(), serverMessage);
-                commandWriter.write(serverResponse);
-                printDisconnectionMessage(Integer.toString(commandSocket.getPort()),
-                        commandSocket.getInetAddress().toString(), "No such user. Authentication failed",
-                        true);
+                commandCodec.writeMessage(commandWriter, Auth_Phase, Auth_Fail, serverMessage);
+                disconnect(ServerMetrics.Disconnect.UNKNOWN_USER, "No such user. Authentication failed", true);
             } else {
                 clientUsername = clientResponse;
                 String failedMessage = "";
                 while (authAttempts < 3) {
 
                     serverMessage = failedMessage + "Enter Your password:";
-                    serverResponse = getAuthRequestByteArray(Auth_Phase, Auth_Challenge, serverMessage.length(),
-                            serverMessage);
-                    commandWriter.write(serverResponse);
+                    commandCodec.writeMessage(commandWriter, Auth_Phase, Auth_Challenge, serverMessage);
 
                     commandSocket.setSoTimeout(PASSWORD_TIMEOUT);
 
+                    long challengedAt = System.nanoTime();
                     try {
-                        phase = commandReader.readByte();
-                        type = commandReader.readByte();
-                        size = commandReader.readInt();
-                        clientResponse = new String(commandReader.readNBytes(size));
+                        clientResponse = readCodec.readMessage(commandReader).getMessage();
+                        metrics.passwordRoundTrip.recordSince(challengedAt);
                     } catch (SocketTimeoutException e) {
 
                         commandSocket.setSoTimeout(0);
 
-                        phase = commandReader.readByte();
-                        type = commandReader.readByte();
-                        size = commandReader.readInt();
-                        clientResponse = new String(commandReader.readNBytes(size));
+                        clientResponse = readCodec.readMessage(commandReader).getMessage();
 
                         serverMessage = "Disconnected: Password timeout";
-                        serverResponse = getAuthRequestByteArray(Auth_Phase, Auth_Fail, serverMessage.length(),
-                                serverMessage);
-                        commandWriter.write(serverResponse);
+                        commandCodec.writeMessage(commandWriter, Auth_Phase, Auth_Fail, serverMessage);
 
-                        printDisconnectionMessage(Integer.toString(commandSocket.getPort()),
-                                commandSocket.getInetAddress().toString(), "Password timeout", true);
+                        disconnect(ServerMetrics.Disconnect.TIMEOUT, "Password timeout", true);
                         return false;
                     }
                     commandSocket.setSoTimeout(0);
 
                     if (AuthenticatePassword(clientUsername, clientResponse)) {
 
-                        serverMessage = generateToken(clientUsername,
-                                (int) (clientUsername.length() * AUTH_TOKEN_LENGTH));
-
-                        serverResponse = getAuthRequestByteArray(Auth_Phase, Auth_Success, serverMessage.length(),
-                                serverMessage);
-
-                        clientToken = serverMessage;
                         clientPort = commandSocket.getPort();
                         clientIP = commandSocket.getInetAddress();
+                        clientToken = sessions.register(clientUsername, clientIP, clientPort);
+                        expectFileConnection();
 
-                        String[] clientInfo = {Integer.toString(clientPort), clientIP.toString()};
-                        tokenMap.put(clientToken, clientInfo);
-
-                        commandWriter.write(serverResponse);
+                        serverMessage = clientToken;
+                        commandCodec.writeMessage(commandWriter, Auth_Phase, Auth_Success, serverMessage);
+                        metrics.acceptToAuth.recordSince(acceptedAt);
 
                         return true;
                     } else {
@@ -233,12 +225,9 @@ public class Server extends Thread {
                     }
                 }
                 serverMessage = "Authentication failed: Too many unsuccessful attempts to authenticate connection";
-                serverResponse = getAuthRequestByteArray(Auth_Phase, Auth_Fail, serverMessage.length(), serverMessage);
-                commandWriter.write(serverResponse);
+                commandCodec.writeMessage(commandWriter, Auth_Phase, Auth_Fail, serverMessage);
 
-                printDisconnectionMessage(Integer.toString(commandSocket.getPort()),
-                        commandSocket.getInetAddress().toString(), "Too many failed attempt to connect",
-                        true);
+                disconnect(ServerMetrics.Disconnect.TOO_MANY_ATTEMPTS, "Too many failed attempt to connect", true);
 
                 return false;
             }
@@ -249,167 +238,223 @@ public class Server extends Thread {
     }
 
     /**
-     * Initializes the querying phase.
+     * Given a token issued on an earlier connection, binds its session to this connection and sends an Auth_Success
+     * holding the token to the client.
+     *
+     * @param token the token to be resumed.
+     * @return true if the session is resumed and false if the token is unknown or has expired.
+     * @throws IOException if the response could not be written.
      */
-    private void QueryingPhase() {
+    private boolean ResumeSession(String token) throws IOException {
+        SessionRegistry.Session session = sessions.resume(token, commandSocket.getInetAddress(),
+                commandSocket.getPort());
+        if (session == null)
+            return false;
+
+        clientToken = token;
+        clientUsername = session.getUsername();
+        clientPort = commandSocket.getPort();
+        clientIP = commandSocket.getInetAddress();
+        expectFileConnection();
+
+        commandCodec.writeMessage(commandWriter, Auth_Phase, Auth_Success, token);
+        metrics.acceptToAuth.recordSince(acceptedAt);
+        System.out.println("Session of " + clientUsername + " resumed");
+        return true;
+    }
 
-        URL weatherURL;
-        URL apodURL;
+    /**
+     * Registers the session of the client as waiting for its file connection. It is called before the token is sent
+     * to the client, so that the file connection of the client cannot arrive before the session waits for it.
+     */
+    private void expectFileConnection() {
+        if (!singlePort)
+            fileBinding = fileBindings.expect(clientToken);
+    }
 
-        HttpURLConnection apiConnection;
+    /**
+     * Waits for the client to open its file connection and to bind it to its session with its token. When StratoNet
+     * runs on a single port, the command socket is used as the file socket instead.
+     *
+     * @return true if the file connection is bound and false if the client did not open it in time.
+     */
+    private boolean BindFileConnection() {
+        if (singlePort) {
+            fileSocket = commandSocket;
+            return true;
+        }
+        try {
+            fileSocket = fileBinding.get(FILE_BIND_TIMEOUT, TimeUnit.MILLISECONDS).socket();
+            return true;
+        } catch (TimeoutException | ExecutionException | InterruptedException | CancellationException e) {
+            if (e instanceof InterruptedException)
+                Thread.currentThread().interrupt();
+            fileBinding.cancel(false);
+            disconnect(ServerMetrics.Disconnect.TIMEOUT, "File connection timeout", true);
+            try {
+                commandSocket.close();
+            } catch (IOException closeException) {
+                closeException.printStackTrace();
+            }
+            return false;
+        }
+    }
 
-        String serverMessage = "";
+    /**
+     * Initializes the querying phase. The queries are read from the command socket as they arrive and are run on the
+     * request executor, each reply is tagged with the request id of its query and is written as soon as it is ready,
+     * so the replies of pipelined queries may be sent back in any order.
+     */
+    private void QueryingPhase() {
 
-        byte[] serverResponse;
+        String serverMessage = "";
 
         QueryTCPPayload clientResponse;
 
         try {
 
-            fileReader = new DataInputStream(new DataInputStream(fileSocket.getInputStream()));
-            fileWriter = new DataOutputStream(new DataOutputStream(fileSocket.getOutputStream()));
+            if (singlePort) {
+                // The frames of both channels are written as a whole under the same lock.
+                fileReader = commandReader;
+                fileWriter = commandWriter;
+            } else {
+                fileReader = new DataInputStream(new DataInputStream(fileSocket.getInputStream()));
+                fileWriter = new DataOutputStream(new DataOutputStream(fileSocket.getOutputStream()));
+            }
 
             serverMessage = serverWelcomeMessage(clientUsername);
-            serverResponse = getAuthRequestByteArray(Query_Phase, Query_Request, serverMessage.length(), serverMessage);
-
-            commandWriter.write(serverResponse);
+            commandCodec.writeMessage(commandWriter, Query_Phase, Query_Request, serverMessage);
 
             while (true) {
                 commandSocket.setSoTimeout(QUERY_TIMEOUT);
 
                 //Getting response from the client.
                 try {
-                    byte phase = commandReader.readByte();
-                    byte type = commandReader.readByte();
-                    int mSize = commandReader.readInt();
-                    int tSize = commandReader.readInt();
-                    String message = new String(commandReader.readNBytes(mSize));
-                    String token = new String(commandReader.readNBytes(tSize));
-                    clientResponse = new QueryTCPPayload(phase, type, mSize, tSize, message, token);
+                    clientResponse = readCodec.readQuery(commandReader);
                 } catch (SocketTimeoutException e) {
+                    // The client is not idle while some of its queries are still being served, or while it has not
+                    // reported an image it may still be receiving the bytes of.
+                    if (inFlight.get() > 0 || pendingImages.isAwaitingReport())
+                        continue;
                     commandSocket.setSoTimeout(0);
 
                     clientResponse = clientQueryResponse(commandReader);
 
                     serverMessage = "Query timeout";
-                    serverResponse = getAuthRequestByteArray(Query_Phase, Query_Exit, serverMessage.length(),
-                            serverMessage);
-
-                    commandWriter.write(serverResponse);
-                    printDisconnectionMessage(tokenMap.get(clientResponse.getToken())[0],
-                            tokenMap.get(clientResponse.getToken())[1], "query timeout",
-                            true);
+                    writeMessage(Query_Exit, clientResponse.getRequestId(), serverMessage);
+                    disconnect(ServerMetrics.Disconnect.TIMEOUT, "query timeout", true);
                     return;
                 }
+                int requestId = clientResponse.getRequestId();
 
                 //Checks if the message is from the query phase or not, if not disconnect client.
                 if (clientResponse.getPhase() == Auth_Phase) {
 
                     serverMessage = "INVALID REQUEST PHASE | current phase: querying phase, given: auth phase";
-                    serverResponse = getAuthRequestByteArray(Query_Phase, Query_Exit, serverMessage.length(),
-                            serverMessage);
-
-                    commandWriter.write(serverResponse);
-                    printDisconnectionMessage(tokenMap.get(clientResponse.getToken())[0],
-                            tokenMap.get(clientResponse.getToken())[1], "Invalid request phase | current phase: " +
-                                    "querying phase, given: auth phase",
-                            true);
+                    writeMessage(Query_Exit, requestId, serverMessage);
+                    disconnect(ServerMetrics.Disconnect.INVALID_REQUEST, "Invalid request phase | current phase: " +
+                            "querying phase, given: auth phase", true);
                     return;
                 }
                 // Verifying the client token, if not valid, disconnect client.
                 if (!verifyToken(clientResponse.getToken(), commandSocket)) {
                     serverMessage = "INVALID TOKEN, Disconnecting from server...";
-                    serverResponse = getAuthRequestByteArray(Query_Phase, Query_Exit, serverMessage.length(),
-                            serverMessage);
-
-                    commandWriter.write(serverResponse);
-                    printDisconnectionMessage(tokenMap.get(clientResponse.getToken())[0],
-                            tokenMap.get(clientResponse.getToken())[1], "Invalid token",
-                            true);
+                    writeMessage(Query_Exit, requestId, serverMessage);
+                    disconnect(ServerMetrics.Disconnect.INVALID_TOKEN, "Invalid token", true);
                     return;
                 }
                 // Checks if the request is for the Image of the Day.
                 if (clientResponse.getType() == Query_Image) {
-                    commandSocket.setSoTimeout(0);
-                    apodURL = new URL(APOD_BASE_URL + clientResponse.getMessage());
-
-                    apiConnection = (HttpURLConnection) apodURL.openConnection();
-                    apiConnection.setRequestMethod("GET");
-
-                    int status = apiConnection.getResponseCode();
-
-                    String line = "";
-                    StringBuilder lines = new StringBuilder();
-
-                    BufferedReader buffredReader = getStreamReader(status, apiConnection);
-
-                    while ((line = buffredReader.readLine()) != null) {
-                        // Gets everything that could be retrieved from the API response.
-                        lines.append(line);
+                    String date = clientResponse.getMessage();
+                    if (!ImageVariant.isValidQuery(date)) {
+                        serverMessage = "INVALID IMAGE QUERY, Disconnecting from server...";
+                        writeMessage(Query_Exit, requestId, serverMessage);
+                        disconnect(ServerMetrics.Disconnect.INVALID_REQUEST, "Invalid image query", true);
+                        return;
                     }
-                    // Gets the image url from the returned String from the API
-                    String imageURL = getUrlFromText(lines.toString().split("\""));
-                    buffredReader.close();
-                    // Converting the image into a byte array.
-                    byte[] imageByteArray = imageToByteArray(new URL(imageURL));
-
-                    serverMessage = Integer.toString(Arrays.hashCode(imageByteArray));
-                    serverResponse = getAuthRequestByteArray(Query_Phase, Query_Request, serverMessage.length(),
-                            serverMessage);
-                    commandWriter.write(serverResponse);
-
-                    serverResponse = queryMessage(Query_Phase, Query_Request, imageByteArray.length,
-                            imageByteArray);
-                    fileWriter.write(serverResponse);
-
-                    clientResponse = clientQueryResponse(commandReader);
-                    //Checks the integrity of the sent image, if the image is corrupted sends a message and Query_Exit
-                    // to the client. If the image is valid, sends a message and Query_Success to the client.
-                    if (clientResponse.getType() == Query_Image_Valid) {
+                    if (!reserveRequestIds(requestId, 1)) {
+                        rejectRequestId(requestId);
+                        return;
+                    }
+                    inFlight.incrementAndGet();
+                    submit(() -> serveImage(requestId, date));
+                }
+                // Checks if the request is for the images of several days.
+                else if (clientResponse.getType() == Query_Image_Batch) {
+                    List<String> dates = expandDates(clientResponse.getMessage());
+                    if (dates == null) {
+                        serverMessage = "INVALID BATCH, Disconnecting from server...";
+                        writeMessage(Query_Exit, requestId, serverMessage);
+                        disconnect(ServerMetrics.Disconnect.INVALID_REQUEST, "Invalid batch", true);
+                        return;
+                    }
+                    // The images of the batch are sent with the ids that follow the id of the batch.
+                    if (!reserveRequestIds(requestId, 1 + dates.size())) {
+                        rejectRequestId(requestId);
+                        return;
+                    }
+                    inFlight.incrementAndGet();
+                    pendingBatches.put(requestId, dates.size());
+                    serveBatch(requestId, dates);
+                }
+                // Checks if the request asks for the bytes of an image whose digest has been sent.
+                else if (clientResponse.getType() == Query_Image_Range) {
+                    ApodImage image = pendingImages.get(requestId);
+                    ImageRange range = ImageRange.parse(clientResponse.getMessage());
+                    if (image == null || range == null || !range.isOf(image)) {
+                        serverMessage = "INVALID RANGE REQUEST, Disconnecting from server...";
+                        writeMessage(Query_Exit, requestId, serverMessage);
+                        disconnect(ServerMetrics.Disconnect.INVALID_REQUEST, "Invalid range request", true);
+                        return;
+                    }
+                    long start = range.startIn(image);
+                    long end = range.endIn(image);
+                    submit(() -> serveRange(requestId, image, start, end));
+                }
+                //Checks the integrity of the sent image, if the image is corrupted sends a message and Query_Request
+                // to the client. If the image is valid, sends a message and Query_Success to the client.
+                else if (clientResponse.getType() == Query_Image_Valid
+                        || clientResponse.getType() == Query_Image_Invalid) {
+                    pendingImages.remove(requestId);
+                    releaseRequestIds(requestId, 1);
+                    // The images of a batch are reported at once, the message of an invalid report holds the dates
+                    // of the corrupted images.
+                    Integer batchSize = pendingBatches.remove(requestId);
+                    if (batchSize != null) {
+                        for (int i = 1; i <= batchSize; i++)
+                            pendingImages.remove(requestId + i);
+                        releaseRequestIds(requestId + 1, batchSize);
+                        if (clientResponse.getType() == Query_Image_Valid) {
+                            serverMessage = "Images validated";
+                            writeMessage(Query_Success, requestId, serverMessage);
+                        } else {
+                            serverMessage = "Images of " + clientResponse.getMessage()
+                                    + " are corrupted | Try them again";
+                            writeMessage(Query_Request, requestId, serverMessage);
+                        }
+                    } else if (clientResponse.getType() == Query_Image_Valid) {
                         serverMessage = "Image validated";
-                        serverResponse = getAuthRequestByteArray(Query_Phase, Query_Success, serverMessage.length(),
-                                serverMessage);
+                        writeMessage(Query_Success, requestId, serverMessage);
                     } else {
                         serverMessage = "Image is corrupted | Try another image";
-                        serverResponse = getAuthRequestByteArray(Query_Phase, Query_Request, serverMessage.length(),
-                                serverMessage);
+                        writeMessage(Query_Request, requestId, serverMessage);
                     }
-                    commandWriter.write(serverResponse);
-
                 }
                 // Checks if the request is Weather on Mars.
                 else if (clientResponse.getType() == Query_Weather) {
-                    commandSocket.setSoTimeout(0);
-                    weatherURL = new URL(INSIGHT_BASE_URL);
-
-                    apiConnection = (HttpURLConnection) weatherURL.openConnection();
-                    apiConnection.setRequestMethod("GET");
-                    int status = apiConnection.getResponseCode();
-
-                    String line = "";
-                    StringBuilder lines = new StringBuilder();
-
-                    BufferedReader buffredReader = getStreamReader(status, apiConnection);
-
-                    while ((line = buffredReader.readLine()) != null) {
-                        lines.append(line);
+                    if (!reserveRequestIds(requestId, 1)) {
+                        rejectRequestId(requestId);
+                        return;
                     }
-                    buffredReader.close();
-                    serverMessage = filteredWeather(lines.toString());
-                    serverResponse = getAuthRequestByteArray(Query_Phase, Query_Success, serverMessage.length(),
-                            serverMessage);
-
-                    commandWriter.write(serverResponse);
+                    inFlight.incrementAndGet();
+                    submit(() -> serveWeather(requestId));
 
                 } else if (clientResponse.getType() == Query_Exit) {
                     serverMessage = "Disconnected from the server.";
-                    serverResponse = getAuthRequestByteArray(Query_Phase, Query_Exit, serverMessage.length(),
-                            serverMessage);
-                    commandWriter.write(serverResponse);
+                    writeMessage(Query_Exit, requestId, serverMessage);
+                    sessions.remove(clientResponse.getToken());
 
-                    printDisconnectionMessage(tokenMap.get(clientResponse.getToken())[0],
-                            tokenMap.get(clientResponse.getToken())[1], "Client request",
-                            false);
+                    disconnect(ServerMetrics.Disconnect.CLIENT_REQUEST, "Client request", false);
 
                     return;
                 }
@@ -420,74 +465,294 @@ public class Server extends Thread {
     }
 
     /**
-     * Fills in the ArrayList of clients from the clients.txt file located in the Project - 01 folder.
+     * Retrieves the image of the given date and sends its digest. The image is kept until the client reports whether
+     * it received the image intact, so that the client is able to request its bytes in the meantime. If the client
+     * already holds a copy of the image with the same digest, a Query_Not_Modified is sent instead and the image is not
+     * sent at all. An image that could not be retrieved, such as the video of a day, is reported to the client as
+     * missing without ending the session.
+     *
+     * @param requestId the id of the query.
+     * @param date      the date of the image, optionally followed by the digest of the copy the client holds.
      */
-    private void FillClients() {
+    private void serveImage(int requestId, String date) {
         try {
-            File clients = new File("clients.txt");
-            Scanner reader = new Scanner(clients);
-            while (reader.hasNextLine()) {
-                String username = reader.nextLine();
-                String password = reader.nextLine();
-                this.clients.add(new Client(username, password));
+            ApodImage image;
+            try {
+                image = apod.getImage(ImageVariant.stripDigest(date));
+            } catch (IOException e) {
+                releaseRequestIds(requestId, 1);
+                writeMessage(Query_Image_Missing, requestId, String.valueOf(e.getMessage()));
+                inFlight.decrementAndGet();
+                return;
             }
-            reader.close();
-        } catch (FileNotFoundException e) {
-            System.out.println("An error occurred.");
-            e.printStackTrace();
+            if (image.getDigest().equals(ImageVariant.cachedDigestOf(date))) {
+                releaseRequestIds(requestId, 1);
+                writeMessage(Query_Not_Modified, requestId, image.getDigest());
+                inFlight.decrementAndGet();
+                return;
+            }
+            // The query is served once the digest is sent, the image is then kept until the client reports it.
+            pendingImages.put(requestId, image);
+            writeMessage(Query_Request, requestId, image.getDigest());
+            inFlight.decrementAndGet();
+        } catch (IOException | RuntimeException e) {
+            abort(e);
         }
     }
 
     /**
-     * Given a username, returns true if the username is valid and false otherwise.
+     * Serves the images of a batch. The images are retrieved by at most BATCH_FETCH_PARALLELISM threads at a time, and
+     * each image is sent as soon as it is retrieved: its digest on the command socket, then its bytes on the file
+     * socket without waiting for a range request. The i-th image of the batch is sent with the request id
+     * requestId + 1 + i. The batch is served once every image is sent, the images are then kept until the client
+     * reports the batch.
      *
-     * @param username the username to be validated.
-     * @return returns true if the username is valid and false otherwise.
+     * @param requestId the id of the batch query.
+     * @param dates     the dates of the batch.
      */
-    private boolean AuthenticateUsername(String username) {
-        for (Client c : this.clients) {
-            if (c.getUsername().equals(username)) {
-                return true;
-            }
+    private void serveBatch(int requestId, List<String> dates) {
+        AtomicInteger next = new AtomicInteger();
+        AtomicInteger remaining = new AtomicInteger(dates.size());
+        for (int i = 0; i < Math.min(BATCH_FETCH_PARALLELISM, dates.size()); i++) {
+            submit(() -> {
+                int index;
+                while ((index = next.getAndIncrement()) < dates.size()) {
+                    serveBatchImage(requestId, requestId + 1 + index, dates.get(index));
+                    if (remaining.decrementAndGet() == 0)
+                        inFlight.decrementAndGet();
+                }
+            });
         }
-        return false;
     }
 
     /**
-     * Given a username and a password, returns true if the password is valid and false otherwise.
+     * Retrieves and sends a single image of a batch. An image that could not be retrieved, such as the video of a day,
+     * is reported to the client as missing without ending the session. Nothing is sent for a batch the client has
+     * already reported, whose images would never be reported again.
      *
-     * @param username the username corresponding to the password to check.
-     * @param password the password to be checked.
-     * @return returns true if the password is valid and false otherwise.
+     * @param batchId   the id of the batch.
+     * @param requestId the id of the image in its batch.
+     * @param date      the date of the image.
      */
-    private boolean AuthenticatePassword(String username, String password) {
-        for (Client c : this.clients) {
-            if (c.getUsername().equals(username) && c.getPassword().equals(password)) {
-                return true;
+    private void serveBatchImage(int batchId, int requestId, String date) {
+        try {
+            if (!pendingBatches.containsKey(batchId))
+                return;
+            ApodImage image;
+            try {
+                image = apod.getImage(date);
+            } catch (IOException e) {
+                if (pendingBatches.containsKey(batchId))
+                    writeMessage(Query_Image_Missing, requestId, String.valueOf(e.getMessage()));
+                return;
+            }
+            // The image is kept until its batch is reported, so that the client is able to request a corrupted chunk
+            // again. The batch is checked once the image is kept, since its report removes the images it finds.
+            pendingImages.put(requestId, image);
+            if (!pendingBatches.containsKey(batchId)) {
+                pendingImages.remove(requestId);
+                return;
             }
+            writeMessage(Query_Request, requestId, image.getDigest());
+            writeImage(requestId, image, 0, image.getSize());
+        } catch (IOException | RuntimeException e) {
+            abort(e);
         }
-        return false;
     }
 
     /**
-     * Given the status of given connection, returns an InputStream if the status is OK and an ErrorStream otherwise.
+     * Sends the bytes of an image from the given offset to the given end on the file socket.
      *
-     * @param status     the status of a given connection.
-     * @param connection the connection that would return the InputStream of the ErrorStream.
-     * @return returns an InputStream if the status is OK and an ErrorStream otherwise.
+     * @param requestId the id of the query of the image.
+     * @param image     the image to be sent.
+     * @param offset    the offset of the first byte to be sent.
+     * @param end       the offset of the byte after the last byte to be sent.
      */
-    private BufferedReader getStreamReader(int status, HttpURLConnection connection) {
+    private void serveRange(int requestId, ApodImage image, long offset, long end) {
         try {
-            if (status > 299) {
-                return new BufferedReader(new InputStreamReader(connection.getErrorStream()));
-            } else
-                return new BufferedReader(new InputStreamReader(connection.getInputStream()));
-        } catch (IOException | NullPointerException e) {
+            writeImage(requestId, image, offset, end);
+        } catch (IOException | RuntimeException e) {
+            abort(e);
+        }
+    }
+
+    /**
+     * Retrieves and sends the weather on Mars.
+     *
+     * @param requestId the id of the query.
+     */
+    private void serveWeather(int requestId) {
+        try {
+            String serverMessage = weather.getWeather();
+            releaseRequestIds(requestId, 1);
+            writeMessage(Query_Success, requestId, serverMessage);
+            inFlight.decrementAndGet();
+        } catch (IOException | RuntimeException e) {
+            abort(e);
+        }
+    }
+
+    /**
+     * Reserves the request ids of a new query, and the ids that follow it for the images of a batch. The ids stay
+     * reserved until the query is over, that is until the client reports its images if it has any.
+     *
+     * @param requestId the id of the query.
+     * @param count     the number of ids to be reserved from the id of the query.
+     * @return true if the ids are reserved, false if one of them is used by a query that is not over yet.
+     */
+    private boolean reserveRequestIds(int requestId, int count) {
+        for (int i = 0; i < count; i++) {
+            if (requestIds.contains(requestId + i))
+                return false;
+        }
+        for (int i = 0; i < count; i++)
+            requestIds.add(requestId + i);
+        return true;
+    }
+
+    /**
+     * Releases the request ids of a query that is over. They are released before its last reply is written, so that
+     * the client is able to use them again as soon as it receives the reply.
+     *
+     * @param requestId the first id to be released.
+     * @param count     the number of ids to be released.
+     */
+    private void releaseRequestIds(int requestId, int count) {
+        for (int i = 0; i < count; i++)
+            requestIds.remove(requestId + i);
+    }
+
+    /**
+     * Ends the session of a client that sent a query with a request id used by a query that is not over yet, whose
+     * replies could not be told apart.
+     *
+     * @param requestId the id of the query.
+     * @throws IOException if the final message could not be written.
+     */
+    private void rejectRequestId(int requestId) throws IOException {
+        writeMessage(Query_Exit, requestId, "REQUEST ID IN USE, Disconnecting from server...");
+        disconnect(ServerMetrics.Disconnect.INVALID_REQUEST, "Request id in use", true);
+    }
+
+    /**
+     * Writes a message frame of the querying phase into the command socket. The replies are written by several
+     * threads, so a frame is written as a whole before the next one is started.
+     *
+     * @param type      the type of the frame.
+     * @param requestId the id of the query the frame replies to.
+     * @param message   the message of the frame.
+     * @throws IOException if the frame could not be written.
+     */
+    private void writeMessage(byte type, int requestId, String message) throws IOException {
+        synchronized (commandWriter) {
+            commandCodec.writeMessage(commandWriter, Query_Phase, type, requestId, message);
+        }
+    }
+
+    /**
+     * Writes the bytes of an image from the given offset to the given end into the file socket, as chunk frames. The
+     * chunks are transferred by the kernel from the segment file when the image is kept in the image store, the others
+     * are written straight from the buffer of the image. The chunks of the images that are sent at the same time are
+     * interleaved, a chunk being written as a whole before the next one is started. The header of each chunk holds the
+     * CRC32C checksum of the chunk.
+     *
+     * @param requestId the id of the query of the image.
+     * @param image     the image to be written.
+     * @param offset    the offset of the first byte to be written.
+     * @param end       the offset of the byte after the last byte to be written.
+     * @throws IOException if the image could not be written.
+     */
+    private void writeImage(int requestId, ApodImage image, long offset, long end) throws IOException {
+        WritableByteChannel channel = fileSocket.getChannel() != null ? fileSocket.getChannel()
+                : Channels.newChannel(fileWriter);
+        long total = image.getSize();
+        long first = offset;
+        long start = System.nanoTime();
+        do {
+            int length = (int) Math.min(IMAGE_RANGE_CHUNK_SIZE, end - offset);
+            int checksum = image.checksumOf(offset, length);
+            synchronized (fileWriter) {
+                fileCodec.writeChunkHeader(fileWriter, Query_Phase, Query_Image_Chunk, requestId, length, offset,
+                        total, checksum);
+                image.transferTo(channel, offset, length);
+            }
+            offset += length;
+        } while (offset < end);
+        metrics.imageSent(end - first, start);
+    }
+
+    /**
+     * Runs a query on the request executor, and keeps track of it until it is over so that the sockets of the session
+     * are not closed while the query is still writing into them.
+     *
+     * @param query the query to be run.
+     */
+    private void submit(Runnable query) {
+        CompletableFuture<Void> request = CompletableFuture.runAsync(query, requests);
+        running.add(request);
+        request.whenComplete((result, e) -> running.remove(request));
+    }
+
+    /**
+     * Closes the sockets of the session once the queries still running are over. A query cannot wait for longer than
+     * the upstream timeout for each of its requests to the NASA APIs, so the sockets are closed after the time of two
+     * requests whatever the queries do, which makes them fail on their next write.
+     */
+    private void closeSockets() {
+        try {
+            CompletableFuture.allOf(running.toArray(new CompletableFuture<?>[0]))
+                    .get(drainTimeout, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException | ExecutionException e) {
+            System.err.println("Queries of " + commandSocket.getRemoteSocketAddress() + " still running: " + e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        try {
+            commandSocket.close();
+            if (fileSocket != null && fileSocket != commandSocket)
+                fileSocket.close();
+        } catch (IOException e) {
             e.printStackTrace();
-            return null;
         }
     }
 
+    /**
+     * Ends the session after a query could not be served, which makes the reading of the next query fail.
+     *
+     * @param e the reason the query could not be served.
+     */
+    private void abort(Exception e) {
+        e.printStackTrace();
+        try {
+            commandSocket.close();
+            if (fileSocket != null)
+                fileSocket.close();
+        } catch (IOException closeException) {
+            closeException.printStackTrace();
+        }
+    }
+
+    /**
+     * Given a username, returns true if the username is valid and false otherwise.
+     *
+     * @param username the username to be validated.
+     * @return returns true if the username is valid and false otherwise.
+     */
+    private boolean AuthenticateUsername(String username) {
+        return credentials.containsUsername(username);
+    }
+
+    /**
+     * Given a username and a password, returns true if the password is valid and false otherwise.
+     *
+     * @param username the username corresponding to the password to check.
+     * @param password the password to be checked.
+     * @return returns true if the password is valid and false otherwise.
+     */
+    private boolean AuthenticatePassword(String username, String password) {
+        return credentials.authenticate(username, password);
+    }
+
     /**
      * Validates a given token.
      *
@@ -496,13 +761,21 @@ public class Server extends Thread {
      * @return true if the token is verified and false otherwise.
      */
     private boolean verifyToken(String token, Socket socket) {
-        String clientPort = tokenMap.get(token)[0];
-        String clientIP = tokenMap.get(token)[1];
-
-        String port = Integer.toString(socket.getPort());
-        String IP = socket.getInetAddress().toString();
+        return sessions.verify(token, socket.getInetAddress(), socket.getPort());
+    }
 
-        return clientPort.equals(port) && clientIP.equals(IP);
+    /**
+     * Prints a detailed message about the client whose connection is being terminated, and keeps the cause of the
+     * disconnection for the metrics of the server.
+     *
+     * @param cause   the cause of the disconnection.
+     * @param reason  a String indicating the reason of the disconnection.
+     * @param isError a flag to print the detailed message as an error message or a regular message.
+     */
+    private void disconnect(ServerMetrics.Disconnect cause, String reason, boolean isError) {
+        disconnectCause = cause;
+        printDisconnectionMessage(Integer.toString(commandSocket.getPort()), commandSocket.getInetAddress().toString(),
+                reason, isError);
     }
 
     /**
@@ -513,7 +786,7 @@ public class Server extends Thread {
      * @param reason  a String indicating the reason of the disconnection.
      * @param isError a flag to print the detailed message as an error message or a regular message.
      */
-    private void printDisconnectionMessage(String port, String IP, String reason, boolean isError) {
+    static void printDisconnectionMessage(String port, String IP, String reason, boolean isError) {
         if (isError) {
             System.err.println("Client with port number: " + port + " and IP: "
                     + IP + " has disconnected from the server\nReason: " + reason + ".");
@@ -532,28 +805,23 @@ public class Server extends Thread {
      */
     private QueryTCPPayload clientQueryResponse(DataInputStream reader) {
         try {
-            byte phase = reader.readByte();
-            byte type = reader.readByte();
-            int mSize = reader.readInt();
-            int tSize = reader.readInt();
-            String message = new String(reader.readNBytes(mSize));
-            String token = new String(reader.readNBytes(tSize));
-
-            return new QueryTCPPayload(phase, type, mSize, tSize, message, token);
+            return readCodec.readQuery(reader);
 
         } catch (IOException | NullPointerException e) {
             e.printStackTrace();
 
             return null;
-        }}
-
-        /**
-         * Adds a new client to the the client list
-         *
-         * @param username the clients username
-         * @param password the clients password.
-         */
-        private void addClient (String username, String password){
-            this.clients.add(new Client(username, password));
         }
-    }
\ No newline at end of file
+    }
+
+    /**
+     * Adds a new client to the the client list, the client is written through to the clients file.
+     *
+     * @param username the clients username
+     * @param password the clients password.
+     * @throws IOException if the clients file could not be written.
+     */
+    private void addClient(String username, String password) throws IOException {
+        credentials.addClient(username, password);
+    }
+}
\ No newline at end of file
@@ -0,0 +1,306 @@
+package server;
+
+import static utils.Utilities.*;
+
+/**
+ * An object to hold the start-up options of the StratoNet server. The options are given to ServerMain as command line
+ * arguments of the form --option=value.
+ */
+public class ServerConfig {
+
+    /**
+     * The ways the server can serve its clients.
+     */
+    public enum Mode {
+        /**
+         * A new blocking Server thread is created for each client.
+         */
+        BLOCKING,
+        /**
+         * A small fixed set of selector-based event loop threads serve all the clients.
+         */
+        NIO
+    }
+
+    /**
+     * The kinds of threads that run the blocking work of the server.
+     */
+    public enum ExecutorType {
+        /**
+         * A new platform thread for each task, idle threads are reused.
+         */
+        PLATFORM,
+        /**
+         * A bounded pool of platform threads, tasks wait in a queue while every thread is busy.
+         */
+        POOL,
+        /**
+         * A new virtual thread for each task, requires JDK 21 or later at runtime.
+         */
+        VIRTUAL
+    }
+
+    private Mode mode = Mode.BLOCKING;
+    private ExecutorType executorType = ExecutorType.PLATFORM;
+    private int commandPort = COMMAND_PORT;
+    private int filePort = FILE_PORT;
+    private boolean singlePort;
+    private int eventLoops = Runtime.getRuntime().availableProcessors();
+    private int workerThreads = DEFAULT_WORKER_THREADS;
+    private int thumbnailThreads = Runtime.getRuntime().availableProcessors();
+    private String clientsFile = CLIENTS_FILE;
+    private long sessionTimeToLive = SESSION_TIME_TO_LIVE;
+    private long cacheBytes = APOD_CACHE_BYTES;
+    private long cacheTimeToLive = APOD_CACHE_TIME_TO_LIVE;
+    private long cacheTodayTimeToLive = APOD_CACHE_TODAY_TIME_TO_LIVE;
+    private String storeDirectory = IMAGE_STORE_DIRECTORY;
+    private long storeBytes = IMAGE_STORE_BYTES;
+    private String apodURL = APOD_BASE_URL;
+    private String insightURL = INSIGHT_BASE_URL;
+    private long upstreamTimeout = UPSTREAM_REQUEST_TIMEOUT;
+    private long weatherRefreshInterval = WEATHER_REFRESH_INTERVAL;
+    private int adminPort;
+
+    public ServerConfig() {
+    }
+
+    public ServerConfig(int commandPort, int filePort) {
+        this.commandPort = commandPort;
+        this.filePort = filePort;
+    }
+
+    /**
+     * Given the command line arguments of ServerMain, creates a ServerConfig object. Options that are not given keep
+     * their default values.
+     *
+     * @param args the command line arguments, each of the form --option=value.
+     * @return a ServerConfig object holding the given options.
+     * @throws IllegalArgumentException if an argument is malformed or is not a known option.
+     */
+    public static ServerConfig fromArgs(String[] args) {
+        ServerConfig config = new ServerConfig();
+
+        for (String arg : args) {
+            int separator = arg.indexOf('=');
+            if (!arg.startsWith("--") || separator < 0)
+                throw new IllegalArgumentException("Malformed option: " + arg + " | expected --option=value");
+
+            String option = arg.substring(2, separator);
+            String value = arg.substring(separator + 1);
+
+            switch (option) {
+                case "mode":
+                    config.mode = Mode.valueOf(value.toUpperCase());
+                    break;
+                case "executor":
+                    config.executorType = ExecutorType.valueOf(value.toUpperCase());
+                    break;
+                case "command-port":
+                    config.commandPort = Integer.parseInt(value);
+                    break;
+                case "file-port":
+                    config.filePort = Integer.parseInt(value);
+                    break;
+                case "single-port":
+                    config.singlePort = Boolean.parseBoolean(value);
+                    break;
+                case "event-loops":
+                    config.eventLoops = positive(option, value);
+                    break;
+                case "clients":
+                    config.clientsFile = value;
+                    break;
+                case "session-ttl":
+                    config.sessionTimeToLive = positive(option, value) * 1000L;
+                    break;
+                case "cache-mb":
+                    config.cacheBytes = positive(option, value) * 1024L * 1024L;
+                    break;
+                case "cache-ttl":
+                    config.cacheTimeToLive = positive(option, value) * 1000L;
+                    break;
+                case "cache-today-ttl":
+                    config.cacheTodayTimeToLive = positive(option, value) * 1000L;
+                    break;
+                case "store-dir":
+                    config.storeDirectory = value;
+                    break;
+                case "store-mb":
+                    config.storeBytes = positive(option, value) * 1024L * 1024L;
+                    break;
+                case "apod-url":
+                    config.apodURL = value;
+                    break;
+                case "insight-url":
+                    config.insightURL = value;
+                    break;
+                case "upstream-timeout":
+                    config.upstreamTimeout = positive(option, value) * 1000L;
+                    break;
+                case "weather-refresh":
+                    config.weatherRefreshInterval = positive(option, value) * 1000L;
+                    break;
+                case "workers":
+                    config.workerThreads = positive(option, value);
+                    break;
+                case "thumbnail-threads":
+                    config.thumbnailThreads = positive(option, value);
+                    break;
+                case "admin-port":
+                    config.adminPort = positive(option, value);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option: " + arg);
+            }
+        }
+        return config;
+    }
+
+    private static int positive(String option, String value) {
+        int number = Integer.parseInt(value);
+        if (number < 1)
+            throw new IllegalArgumentException(option + " must be at least 1, given: " + value);
+        return number;
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    public ExecutorType getExecutorType() {
+        return executorType;
+    }
+
+    public int getCommandPort() {
+        return commandPort;
+    }
+
+    public int getFilePort() {
+        return filePort;
+    }
+
+    /**
+     * @return true if the file channel of every client shares its command connection, in which case the file port is
+     * not opened.
+     */
+    public boolean isSinglePort() {
+        return singlePort;
+    }
+
+    public int getEventLoops() {
+        return eventLoops;
+    }
+
+    public int getWorkerThreads() {
+        return workerThreads;
+    }
+
+    /**
+     * @return the number of images that may be transcoded into their variants at a time.
+     */
+    public int getThumbnailThreads() {
+        return thumbnailThreads;
+    }
+
+    public String getClientsFile() {
+        return clientsFile;
+    }
+
+    /**
+     * @return the time in milliseconds a session may be idle before its token expires.
+     */
+    public long getSessionTimeToLive() {
+        return sessionTimeToLive;
+    }
+
+    /**
+     * @return the maximum number of image bytes the APOD cache may hold.
+     */
+    public long getCacheBytes() {
+        return cacheBytes;
+    }
+
+    /**
+     * @return the time in milliseconds the image of a past date stays in the APOD cache.
+     */
+    public long getCacheTimeToLive() {
+        return cacheTimeToLive;
+    }
+
+    /**
+     * @return the time in milliseconds the image of the current date stays in the APOD cache.
+     */
+    public long getCacheTodayTimeToLive() {
+        return cacheTodayTimeToLive;
+    }
+
+    public String getStoreDirectory() {
+        return storeDirectory;
+    }
+
+    /**
+     * @return the size cap of the image store in bytes.
+     */
+    public long getStoreBytes() {
+        return storeBytes;
+    }
+
+    /**
+     * @return the url of the APOD API, to which the date of an image is appended.
+     */
+    public String getApodURL() {
+        return apodURL;
+    }
+
+    public String getInsightURL() {
+        return insightURL;
+    }
+
+    /**
+     * @return the time in milliseconds the NASA APIs may take to respond to a request.
+     */
+    public long getUpstreamTimeout() {
+        return upstreamTimeout;
+    }
+
+    /**
+     * @return the time in milliseconds between two fetches of the InSight feed.
+     */
+    public long getWeatherRefreshInterval() {
+        return weatherRefreshInterval;
+    }
+
+    /**
+     * @return the port the metrics of the server are served on as plain text, on the loopback address only, or 0 if
+     * they are not served.
+     */
+    public int getAdminPort() {
+        return adminPort;
+    }
+
+    @Override
+    public String toString() {
+        return "ServerConfig{" +
+                "mode=" + mode +
+                ", executorType=" + executorType +
+                ", commandPort=" + commandPort +
+                ", filePort=" + filePort +
+                ", singlePort=" + singlePort +
+                ", eventLoops=" + eventLoops +
+                ", workerThreads=" + workerThreads +
+                ", thumbnailThreads=" + thumbnailThreads +
+                ", clientsFile='" + clientsFile + '\'' +
+                ", sessionTimeToLive=" + sessionTimeToLive +
+                ", cacheBytes=" + cacheBytes +
+                ", cacheTimeToLive=" + cacheTimeToLive +
+                ", cacheTodayTimeToLive=" + cacheTodayTimeToLive +
+                ", storeDirectory='" + storeDirectory + '\'' +
+                ", storeBytes=" + storeBytes +
+                ", apodURL='" + apodURL + '\'' +
+                ", insightURL='" + insightURL + '\'' +
+                ", upstreamTimeout=" + upstreamTimeout +
+                ", weatherRefreshInterval=" + weatherRefreshInterval +
+                ", adminPort=" + adminPort +
+                '}';
+    }
+}
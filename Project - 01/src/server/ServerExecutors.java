@@ -0,0 +1,58 @@
+package server;
+
+import java.lang.reflect.InvocationTargetException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates the executors that run the blocking work of the server, that is the Server sessions in the blocking mode
+ * and the calls to the NASA APIs in the event loop mode.
+ */
+final class ServerExecutors {
+
+    private ServerExecutors() {
+    }
+
+    /**
+     * Given a server configuration, creates the executor chosen by its executor type.
+     *
+     * @param config the configuration of the server.
+     * @param name   the prefix of the names of the created threads.
+     * @return an executor of the type given in the configuration.
+     * @throws IllegalStateException if virtual threads are chosen but the running JVM does not support them.
+     */
+    static ExecutorService create(ServerConfig config, String name) {
+        switch (config.getExecutorType()) {
+            case POOL:
+                return Executors.newFixedThreadPool(config.getWorkerThreads(), namedThreads(name));
+            case VIRTUAL:
+                return newVirtualThreadPerTaskExecutor();
+            case PLATFORM:
+            default:
+                return Executors.newCachedThreadPool(namedThreads(name));
+        }
+    }
+
+    /**
+     * Creates an executor that runs every task on a new virtual thread. The project is compiled for a JDK that does
+     * not have virtual threads, so the executor is looked up reflectively from the running JVM (JDK 21 or later).
+     *
+     * @return an executor that runs every task on a new virtual thread.
+     * @throws IllegalStateException if the running JVM does not support virtual threads.
+     */
+    private static ExecutorService newVirtualThreadPerTaskExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (NoSuchMethodException | IllegalAccessException | InvocationTargetException e) {
+            throw new IllegalStateException("Virtual threads are not supported by this JVM (" +
+                    System.getProperty("java.version") + "), JDK 21 or later is required", e);
+        }
+    }
+
+    private static ThreadFactory namedThreads(String name) {
+        AtomicInteger count = new AtomicInteger();
+        return runnable -> new Thread(runnable, name + "-" + count.incrementAndGet());
+    }
+}
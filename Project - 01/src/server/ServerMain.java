@@ -1,11 +1,15 @@
 package server;
 
-import static utils.Utilities.*;
 public class ServerMain {
 
+    /**
+     * Starts the StratoNet server. The server runs in the blocking mode unless --mode=nio is given, and runs its
+     * blocking work on platform threads unless --executor=pool or --executor=virtual is given.
+     *
+     * @param args the options of the server, each of the form --option=value, see ServerConfig.
+     */
     public static void main(String[] args){
-        StratoNet server = new StratoNet(COMMAND_PORT, FILE_PORT);
+        StratoNet server = new StratoNet(ServerConfig.fromArgs(args));
         server.initialize();
     }
 }
-
@@ -0,0 +1,192 @@
+package server;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The metrics of the server, shared by every session: the latencies of the authentication, of the NASA APIs and of
+ * the image transfers, the bytes of images sent, the active sessions and the reasons the sessions ended for. Every
+ * metric is recorded without any lock, so the sessions record them on their hot paths. The metrics are exposed as
+ * MXBeans of the platform MBean server, and as plain text through the admin port of the server if it has one.
+ */
+class ServerMetrics implements ServerMetricsMXBean {
+
+    private static final String DOMAIN = "StratoNet";
+
+    /**
+     * The reasons a session ends for. A session that ends without any of the others, such as a client that closed its
+     * connection, ends for CONNECTION_LOST.
+     */
+    enum Disconnect {
+        CLIENT_REQUEST,
+        TIMEOUT,
+        INVALID_TOKEN,
+        TOO_MANY_ATTEMPTS,
+        UNKNOWN_USER,
+        INVALID_REQUEST,
+        CONNECTION_LOST
+    }
+
+    /**
+     * The latencies of the requests made to one of the NASA APIs. The HTTP client does not tell the connection apart
+     * from the wait for the response, so connect is the time until the response headers arrive, which includes
+     * making a connection when none could be reused, and transfer is the time the body takes to be read.
+     */
+    static final class Upstream {
+        final LatencyHistogram connect = new LatencyHistogram();
+        final LatencyHistogram transfer = new LatencyHistogram();
+    }
+
+    final LatencyHistogram acceptToAuth = new LatencyHistogram();
+    final LatencyHistogram passwordRoundTrip = new LatencyHistogram();
+    final Upstream apod = new Upstream();
+    final Upstream insight = new Upstream();
+    final LatencyHistogram fileTransfer = new LatencyHistogram();
+    private final LongAdder imageBytesSent = new LongAdder();
+    private final LongAdder activeSessions = new LongAdder();
+    private final Map<Disconnect, LongAdder> disconnects = new EnumMap<>(Disconnect.class);
+    private final List<ObjectName> registered = new ArrayList<>();
+
+    ServerMetrics() {
+        for (Disconnect reason : Disconnect.values())
+            disconnects.put(reason, new LongAdder());
+    }
+
+    /**
+     * @return the histograms of the server keyed by their name, in the order they are exposed in.
+     */
+    Map<String, LatencyHistogram> histograms() {
+        Map<String, LatencyHistogram> histograms = new LinkedHashMap<>();
+        histograms.put("accept_to_auth", acceptToAuth);
+        histograms.put("password_round_trip", passwordRoundTrip);
+        histograms.put("apod_connect", apod.connect);
+        histograms.put("apod_transfer", apod.transfer);
+        histograms.put("insight_connect", insight.connect);
+        histograms.put("insight_transfer", insight.transfer);
+        histograms.put("file_transfer", fileTransfer);
+        return histograms;
+    }
+
+    /**
+     * Records an image, or a range of it, that has been written to a file connection.
+     *
+     * @param bytes the number of bytes written.
+     * @param start the time the first byte was queued at, as returned by System.nanoTime().
+     */
+    void imageSent(long bytes, long start) {
+        fileTransfer.recordSince(start);
+        imageBytesSent.add(bytes);
+    }
+
+    void sessionOpened() {
+        activeSessions.increment();
+    }
+
+    void sessionClosed() {
+        activeSessions.decrement();
+    }
+
+    void disconnected(Disconnect reason) {
+        disconnects.get(reason).increment();
+    }
+
+    @Override
+    public long getActiveSessions() {
+        return activeSessions.sum();
+    }
+
+    @Override
+    public long getImageBytesSent() {
+        return imageBytesSent.sum();
+    }
+
+    @Override
+    public Map<String, Long> getDisconnects() {
+        Map<String, Long> counts = new LinkedHashMap<>();
+        for (Map.Entry<Disconnect, LongAdder> reason : disconnects.entrySet())
+            counts.put(reason.getKey().name().toLowerCase(Locale.ROOT), reason.getValue().sum());
+        return counts;
+    }
+
+    /**
+     * Registers the metrics to the platform MBean server, under StratoNet:type=Server for the counters and under
+     * StratoNet:type=Latency,name=... for each histogram. The metrics are still recorded if they could not be
+     * registered, such as when another server of the same JVM registered its metrics first.
+     */
+    void register() {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            ObjectName name = new ObjectName(DOMAIN + ":type=Server");
+            server.registerMBean(this, name);
+            registered.add(name);
+            for (Map.Entry<String, LatencyHistogram> histogram : histograms().entrySet()) {
+                name = new ObjectName(DOMAIN + ":type=Latency,name=" + histogram.getKey());
+                server.registerMBean(histogram.getValue(), name);
+                registered.add(name);
+            }
+        } catch (JMException e) {
+            System.err.println("Metrics could not be registered to JMX: " + e);
+        }
+    }
+
+    /**
+     * Removes the metrics from the platform MBean server.
+     */
+    void unregister() {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        for (ObjectName name : registered) {
+            try {
+                server.unregisterMBean(name);
+            } catch (JMException e) {
+                e.printStackTrace();
+            }
+        }
+        registered.clear();
+    }
+
+    /**
+     * Formats the metrics in the text format of Prometheus, the latencies as summaries in seconds.
+     *
+     * @return the metrics, a metric per line.
+     */
+    String format() {
+        StringBuilder text = new StringBuilder();
+        for (Map.Entry<String, LatencyHistogram> histogram : histograms().entrySet()) {
+            String name = "stratonet_" + histogram.getKey() + "_seconds";
+            LatencyHistogram.Snapshot snapshot = histogram.getValue().snapshot();
+            text.append("# TYPE ").append(name).append(" summary\n");
+            for (double quantile : new double[]{0.5, 0.9, 0.99, 0.999})
+                text.append(String.format(Locale.ROOT, "%s{quantile=\"%s\"} %.6f\n", name, quantile,
+                        snapshot.getPercentile(quantile * 100) / 1e6));
+            text.append(String.format(Locale.ROOT, "%s_sum %.6f\n", name, snapshot.getSum() / 1e6));
+            text.append(name).append("_count ").append(snapshot.getCount()).append('\n');
+        }
+        text.append("# TYPE stratonet_active_sessions gauge\n");
+        text.append("stratonet_active_sessions ").append(getActiveSessions()).append('\n');
+        text.append("# TYPE stratonet_image_bytes_sent_total counter\n");
+        text.append("stratonet_image_bytes_sent_total ").append(getImageBytesSent()).append('\n');
+        text.append("# TYPE stratonet_disconnects_total counter\n");
+        for (Map.Entry<String, Long> reason : getDisconnects().entrySet())
+            text.append("stratonet_disconnects_total{reason=\"").append(reason.getKey()).append("\"} ")
+                    .append(reason.getValue()).append('\n');
+        return text.toString();
+    }
+
+    @Override
+    public String toString() {
+        return "ServerMetrics{" +
+                "activeSessions=" + getActiveSessions() +
+                ", imageBytesSent=" + getImageBytesSent() +
+                ", disconnects=" + getDisconnects() +
+                '}';
+    }
+}
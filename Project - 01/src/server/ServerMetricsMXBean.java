@@ -0,0 +1,24 @@
+package server;
+
+import java.util.Map;
+
+/**
+ * The management interface of the counters of ServerMetrics, registered under StratoNet:type=Server.
+ */
+public interface ServerMetricsMXBean {
+
+    /**
+     * @return the number of sessions that are past their authentication and still connected.
+     */
+    long getActiveSessions();
+
+    /**
+     * @return the number of bytes of images written to the file connections since the server started.
+     */
+    long getImageBytesSent();
+
+    /**
+     * @return the number of sessions that ended for each reason since the server started.
+     */
+    Map<String, Long> getDisconnects();
+}
@@ -0,0 +1,201 @@
+package server;
+
+import java.net.InetAddress;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static utils.Utilities.*;
+
+/**
+ * The tokens issued by the server, shared by every session. Each token maps to the Session it was issued for. Lookups
+ * and verifications only read the concurrent map and never lock, sessions that have been idle for longer than the
+ * time-to-live are removed by a single background sweeper.
+ */
+class SessionRegistry {
+
+    /**
+     * A session issued to an authenticated client.
+     */
+    static final class Session {
+
+        private final String token;
+        private final String username;
+        private final InetAddress IP;
+        private final int port;
+        private final long createdAt;
+        private volatile long lastActivity;
+
+        private Session(String token, String username, InetAddress IP, int port, long createdAt) {
+            this.token = token;
+            this.username = username;
+            this.IP = IP;
+            this.port = port;
+            this.createdAt = createdAt;
+            this.lastActivity = createdAt;
+        }
+
+        String getToken() {
+            return token;
+        }
+
+        String getUsername() {
+            return username;
+        }
+
+        InetAddress getIP() {
+            return IP;
+        }
+
+        int getPort() {
+            return port;
+        }
+
+        long getCreatedAt() {
+            return createdAt;
+        }
+
+        long getLastActivity() {
+            return lastActivity;
+        }
+
+        @Override
+        public String toString() {
+            return "Session{" +
+                    "username='" + username + '\'' +
+                    ", IP=" + IP +
+                    ", port=" + port +
+                    ", createdAt=" + createdAt +
+                    ", lastActivity=" + lastActivity +
+                    '}';
+        }
+    }
+
+    private static final int TOKEN_NONCE_BYTES = 12;
+
+    private final ConcurrentHashMap<String, Session> sessions;
+    private final ScheduledExecutorService sweeper;
+    private final SecureRandom random;
+    private final long timeToLive;
+
+    /**
+     * Creates a registry whose sessions expire once they have been idle for the given time.
+     *
+     * @param timeToLive the time in milliseconds a session may be idle before it expires.
+     */
+    SessionRegistry(long timeToLive) {
+        this.sessions = new ConcurrentHashMap<>();
+        this.random = new SecureRandom();
+        this.timeToLive = timeToLive;
+        this.sweeper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "StratoNet-session-sweeper");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long interval = Math.max(1, Math.min(timeToLive, SESSION_SWEEP_INTERVAL));
+        sweeper.scheduleWithFixedDelay(this::sweep, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Issues a new token for an authenticated client. The token starts with the token generated from the username,
+     * followed by a random part that makes it unique to this session.
+     *
+     * @param username the username of the client.
+     * @param IP       the IP address of the command connection of the client.
+     * @param port     the port number of the command connection of the client.
+     * @return the issued token.
+     */
+    String register(String username, InetAddress IP, int port) {
+        byte[] nonce = new byte[TOKEN_NONCE_BYTES];
+        random.nextBytes(nonce);
+        String token = generateToken(username, (int) (username.length() * AUTH_TOKEN_LENGTH))
+                + Base64.getUrlEncoder().withoutPadding().encodeToString(nonce);
+
+        sessions.put(token, new Session(token, username, IP, port, System.currentTimeMillis()));
+        return token;
+    }
+
+    /**
+     * Given a token, returns its session.
+     *
+     * @param token the token of the session.
+     * @return the session of the token, or null if the token is unknown or has expired.
+     */
+    Session get(String token) {
+        return token == null ? null : sessions.get(token);
+    }
+
+    /**
+     * Validates a given token and marks its session as active.
+     *
+     * @param token the token to be verified.
+     * @param IP    the IP address of the connection the token was received from.
+     * @param port  the port number of the connection the token was received from.
+     * @return true if the token was issued for the given address and has not expired, false otherwise.
+     */
+    boolean verify(String token, InetAddress IP, int port) {
+        Session session = get(token);
+        if (session == null || session.port != port || !session.IP.equals(IP))
+            return false;
+
+        long now = System.currentTimeMillis();
+        // The session may have expired since the last sweep.
+        if (now - session.lastActivity > timeToLive)
+            return false;
+        session.lastActivity = now;
+        return true;
+    }
+
+    /**
+     * Binds the session of the given token to a new connection, the token is no longer valid on the connection it was
+     * previously bound to.
+     *
+     * @param token the token of the session.
+     * @param IP    the IP address of the new command connection of the client.
+     * @param port  the port number of the new command connection of the client.
+     * @return the resumed session, or null if the token is unknown or has expired.
+     */
+    Session resume(String token, InetAddress IP, int port) {
+        Session session = get(token);
+        long now = System.currentTimeMillis();
+        if (session == null || now - session.lastActivity > timeToLive)
+            return null;
+
+        Session resumed = new Session(token, session.username, IP, port, session.createdAt);
+        resumed.lastActivity = now;
+        // Fails if the session was resumed by another connection or removed in the meantime.
+        return sessions.replace(token, session, resumed) ? resumed : null;
+    }
+
+    /**
+     * Removes the session of the given token, the token is no longer valid afterwards.
+     *
+     * @param token the token of the session.
+     */
+    void remove(String token) {
+        if (token != null)
+            sessions.remove(token);
+    }
+
+    int size() {
+        return sessions.size();
+    }
+
+    /**
+     * Removes every session that has been idle for longer than the time-to-live.
+     */
+    private void sweep() {
+        long expiredBefore = System.currentTimeMillis() - timeToLive;
+        sessions.values().removeIf(session -> session.lastActivity < expiredBefore);
+    }
+
+    /**
+     * Stops the sweeper.
+     */
+    void close() {
+        sweeper.shutdownNow();
+    }
+}
@@ -0,0 +1,110 @@
+package server;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Coalesces concurrent calls for the same key into a single call. The first caller of a key makes the call, every
+ * caller that arrives while that call is in flight waits for it and receives its result, or its exception.
+ *
+ * @param <K> the type of the keys.
+ * @param <V> the type of the results of the calls.
+ */
+class SingleFlight<K, V> {
+
+    /**
+     * A call whose result is shared by the callers of the same key.
+     *
+     * @param <V> the type of the result of the call.
+     */
+    interface Call<V> {
+        V call() throws IOException;
+    }
+
+    private final ConcurrentHashMap<K, CompletableFuture<V>> inFlight;
+    private final LongAdder calls;
+    private final LongAdder coalesced;
+
+    SingleFlight() {
+        this.inFlight = new ConcurrentHashMap<>();
+        this.calls = new LongAdder();
+        this.coalesced = new LongAdder();
+    }
+
+    /**
+     * Makes the given call for a key, unless a call for that key is already in flight, in which case its result is
+     * returned instead.
+     *
+     * @param key  the key of the call.
+     * @param call the call to be made if no call for the key is in flight.
+     * @return the result of the call.
+     * @throws IOException if the call that was made for the key failed.
+     */
+    V execute(K key, Call<V> call) throws IOException {
+        CompletableFuture<V> future = new CompletableFuture<>();
+        CompletableFuture<V> existing = inFlight.putIfAbsent(key, future);
+        if (existing != null) {
+            coalesced.increment();
+            return await(existing);
+        }
+
+        calls.increment();
+        try {
+            V result = call.call();
+            future.complete(result);
+            return result;
+        } catch (IOException | RuntimeException e) {
+            future.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlight.remove(key, future);
+        }
+    }
+
+    private V await(CompletableFuture<V> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a call in flight");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException)
+                throw new IOException(cause.getMessage(), cause);
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            throw new IOException(cause);
+        }
+    }
+
+    /**
+     * @return the number of calls that were made.
+     */
+    long getCalls() {
+        return calls.sum();
+    }
+
+    /**
+     * @return the number of callers that received the result of a call in flight instead of making a call.
+     */
+    long getCoalesced() {
+        return coalesced.sum();
+    }
+
+    int getInFlight() {
+        return inFlight.size();
+    }
+
+    @Override
+    public String toString() {
+        return "SingleFlight{" +
+                "calls=" + getCalls() +
+                ", coalesced=" + getCoalesced() +
+                ", inFlight=" + getInFlight() +
+                '}';
+    }
+}
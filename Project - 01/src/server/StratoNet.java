@@ -1,48 +1,300 @@
 package server;
 
+import utils.FrameCodec;
+import utils.TCPPayload;
+
+import java.io.DataInputStream;
 import java.io.IOException;
-import java.net.ServerSocket;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Paths;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static utils.Utilities.*;
 
 /**
- * This class simulates the StratoNet server. It can serve multiple clients at the same time by creating a new Thread
- * for each client.
+ * This class simulates the StratoNet server. It can serve multiple clients at the same time either by running a Server
+ * for each client on its session executor, or by serving all of them from a small fixed set of event loop threads.
+ * <p>
+ * A client connects to the command port first. Once it is authenticated, it opens its file connection and sends its
+ * token on it, which binds the file connection to its session. A single-port server does not open the file port, and
+ * sends the frames of the file channel on the command connection instead.
  */
 public class StratoNet {
 
-    private ServerSocket commandServerSocket;
-    private ServerSocket fileServerSocket;
+    private final ServerConfig config;
+    private final CredentialIndex credentials;
+    private final SessionRegistry sessions;
+    private final FileBindings fileBindings;
+    private final UpstreamClient upstream;
+    private final ApodService apod;
+    private final WeatherService weather;
+    private final ServerMetrics metrics;
+    private AdminServer adminServer;
+    private ServerSocketChannel commandServerChannel;
+    private ServerSocketChannel fileServerChannel;
+    private ExecutorService sessionExecutor;
+    private ExecutorService bindExecutor;
+    private ExecutorService requestExecutor;
+    private NioServer nioServer;
 
     public StratoNet(int commandPort, int filePort) {
+        this(new ServerConfig(commandPort, filePort));
+    }
+
+    public StratoNet(ServerConfig config) {
+        this.config = config;
+        this.metrics = new ServerMetrics();
+        this.metrics.register();
+        this.credentials = new CredentialIndex(Paths.get(config.getClientsFile()));
+        this.credentials.watch();
+        this.sessions = new SessionRegistry(config.getSessionTimeToLive());
+        this.fileBindings = new FileBindings(sessions);
+        this.upstream = new UpstreamClient(UPSTREAM_CONNECT_TIMEOUT, config.getUpstreamTimeout());
+        NasaApi nasaApi = new NasaApi(upstream, metrics, config.getApodURL(), config.getInsightURL());
+        this.apod = new ApodService(new ApodCache(config.getCacheBytes(), config.getCacheTimeToLive(),
+                config.getCacheTodayTimeToLive()), openImageStore(config), nasaApi,
+                new ThumbnailService(config.getThumbnailThreads()));
+        this.weather = new WeatherService(nasaApi, config.getWeatherRefreshInterval());
+        this.weather.start();
+        if (config.getAdminPort() > 0) {
+            try {
+                adminServer = new AdminServer(metrics, config.getAdminPort());
+            } catch (IOException e) {
+                System.err.println("Admin port could not be bound, metrics are exposed through JMX only.");
+                e.printStackTrace();
+            }
+        }
+        // The blocking server accepts its sockets through channels as well, so that images can be sent with sendfile.
         try {
-            commandServerSocket = new ServerSocket(commandPort);
-            fileServerSocket = new ServerSocket(filePort);
+            commandServerChannel = ServerSocketChannel.open();
+            commandServerChannel.bind(new InetSocketAddress(config.getCommandPort()));
+            if (!config.isSinglePort()) {
+                fileServerChannel = ServerSocketChannel.open();
+                fileServerChannel.bind(new InetSocketAddress(config.getFilePort()));
+            }
         } catch (IOException | NullPointerException e) {
             e.printStackTrace();
         }
     }
 
     /**
-     * Initializes the server by creating a new server thread each time a client wants to connect.
-     * Creating a new server is held by the accept() from both server sockets at the initialization of a new server.
-     * i.e. the while loop would iterate unless there is a user waiting to connect.
+     * Opens the image store of the server. The server keeps its images in memory only if the store could not be
+     * opened.
+     *
+     * @param config the configuration of the server.
+     * @return the opened image store, or null if it could not be opened.
+     */
+    private static ImageStore openImageStore(ServerConfig config) {
+        try {
+            return new ImageStore(Paths.get(config.getStoreDirectory()), config.getStoreBytes());
+        } catch (IOException | RuntimeException e) {
+            System.err.println("Image store could not be opened, images are kept in memory only.");
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * Initializes the server in the mode given by its configuration.
+     */
+    public void initialize() {
+        if (config.getMode() == ServerConfig.Mode.NIO)
+            initializeEventLoops();
+        else
+            initializeThreads();
+    }
+
+    /**
+     * Initializes the server by running a new server on the session executor each time a client connects to the
+     * command port. The file connections are accepted by a thread of their own and are bound to their session on an
+     * executor of their own, so a client that is slow to open its file connection does not hold up the other clients.
+     * The binding is never queued behind the sessions, which wait on the session executor for their file connection to
+     * be bound. The queries of the sessions are run on a request executor of their own, so that a session is able to
+     * serve several queries at a time.
      */
-    public void initialize(){
-        while (true) {
+    private void initializeThreads() {
+        sessionExecutor = ServerExecutors.create(config, "StratoNet-session");
+        requestExecutor = ServerExecutors.create(config, "StratoNet-request");
+        if (fileServerChannel != null) {
+            bindExecutor = Executors.newCachedThreadPool(runnable -> {
+                Thread thread = new Thread(runnable, "StratoNet-file-bind");
+                thread.setDaemon(true);
+                return thread;
+            });
+            Thread fileAcceptor = new Thread(this::acceptFileConnections, "StratoNet-file-acceptor");
+            fileAcceptor.setDaemon(true);
+            fileAcceptor.start();
+        }
+        System.out.println("Blocking server started on " + config.getExecutorType() + " threads"
+                + (config.isSinglePort() ? " on a single port" : ""));
+        while (commandServerChannel.isOpen()) {
             try {
-                new Server(commandServerSocket.accept(), fileServerSocket.accept()).start();
+                sessionExecutor.execute(new Server(this, commandServerChannel.accept().socket()));
             } catch (IOException e) {
                 e.printStackTrace();
             }
         }
     }
 
+    /**
+     * Accepts the file connections of the blocking mode until the file server channel is closed.
+     */
+    private void acceptFileConnections() {
+        while (fileServerChannel.isOpen()) {
+            try {
+                SocketChannel channel = fileServerChannel.accept();
+                bindExecutor.execute(() -> bindFileConnection(channel));
+            } catch (IOException e) {
+                if (fileServerChannel.isOpen())
+                    e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Reads the token a client sends first on its file connection and binds the connection to the session of the
+     * token. The connection is closed if the token is not sent in time or no session waits for it.
+     *
+     * @param channel the accepted file connection.
+     */
+    private void bindFileConnection(SocketChannel channel) {
+        try {
+            channel.socket().setSoTimeout(FILE_BIND_TIMEOUT);
+            TCPPayload request = new FrameCodec().readMessage(new DataInputStream(channel.socket().getInputStream()));
+            channel.socket().setSoTimeout(0);
+            if (request.getType() == Auth_Bind && fileBindings.bind(request.getMessage(), channel))
+                return;
+            System.err.println("File connection of " + channel.getRemoteAddress() + " could not be bound");
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Initializes the server by handing every client to one of the event loops of a NioServer.
+     */
+    private void initializeEventLoops() {
+        try {
+            nioServer = new NioServer(this, commandServerChannel, fileServerChannel, config);
+            nioServer.run();
+        } catch (IOException | NullPointerException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Returns the credentials of the clients that are allowed to connect, shared by every session.
+     *
+     * @return the credential index of the server.
+     */
+    CredentialIndex getCredentials() {
+        return credentials;
+    }
+
+    /**
+     * Returns the sessions issued to the authenticated clients, shared by every session.
+     *
+     * @return the session registry of the server.
+     */
+    SessionRegistry getSessions() {
+        return sessions;
+    }
+
+    /**
+     * Returns the sessions that wait for their file connection, shared by every session.
+     *
+     * @return the file bindings of the server.
+     */
+    FileBindings getFileBindings() {
+        return fileBindings;
+    }
+
+    /**
+     * Returns the configuration the server was started with.
+     *
+     * @return the configuration of the server.
+     */
+    ServerConfig getConfig() {
+        return config;
+    }
+
+    /**
+     * Returns the service that serves the images of the day, shared by every session.
+     *
+     * @return the APOD service of the server.
+     */
+    ApodService getApod() {
+        return apod;
+    }
+
+    /**
+     * Returns the service that serves the weather on Mars, shared by every session.
+     *
+     * @return the weather service of the server.
+     */
+    WeatherService getWeather() {
+        return weather;
+    }
+
+    /**
+     * Returns the latencies and counters the sessions record, shared by every session.
+     *
+     * @return the metrics of the server.
+     */
+    ServerMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Returns the executor the blocking sessions run their queries on, shared by every session.
+     *
+     * @return the request executor of the server, or null in the event loop mode.
+     */
+    ExecutorService getRequestExecutor() {
+        return requestExecutor;
+    }
+
     /**
      * Closes the server sockets.
      */
-    public void terminate(){
+    public void terminate() {
+        System.out.println("APOD " + apod.getCache() + " | " + apod.getFlights() + " | " + apod.getThumbnails());
+        System.out.println("InSight " + weather.getFlights());
+        System.out.println(metrics);
+        metrics.unregister();
+        if (adminServer != null)
+            adminServer.close();
+        credentials.close();
+        sessions.close();
+        weather.close();
+        apod.getThumbnails().close();
+        upstream.close();
+        try {
+            if (apod.getStore() != null)
+                apod.getStore().close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
         try {
-            commandServerSocket.close();
-            fileServerSocket.close();
+            if (nioServer != null)
+                nioServer.shutdown();
+            if (sessionExecutor != null)
+                sessionExecutor.shutdownNow();
+            if (bindExecutor != null)
+                bindExecutor.shutdownNow();
+            if (requestExecutor != null)
+                requestExecutor.shutdownNow();
+            commandServerChannel.close();
+            if (fileServerChannel != null)
+                fileServerChannel.close();
         } catch (IOException | NullPointerException e) {
             e.printStackTrace();
         }
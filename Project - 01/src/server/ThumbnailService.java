@@ -0,0 +1,209 @@
+package server;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageOutputStream;
+import javax.imageio.stream.MemoryCacheImageInputStream;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import static utils.Utilities.*;
+
+/**
+ * Transcodes the images of the day into their downscaled variants. Transcoding is bound by the processor, so it is run
+ * on a fixed pool of its own rather than on the threads of the sessions, and the sessions wait for their variant while
+ * at most as many images are transcoded at a time as the pool has threads.
+ */
+class ThumbnailService {
+
+    /**
+     * Reads the bytes of a buffer, from its position to its limit.
+     */
+    private static final class BufferInputStream extends InputStream {
+        private final ByteBuffer buffer;
+
+        private BufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) {
+            if (length == 0)
+                return 0;
+            if (!buffer.hasRemaining())
+                return -1;
+            int count = Math.min(length, buffer.remaining());
+            buffer.get(bytes, offset, count);
+            return count;
+        }
+    }
+
+    private final ExecutorService transcoders;
+    private final LongAdder transcoded;
+
+    /**
+     * @param threads the number of images that may be transcoded at a time.
+     */
+    ThumbnailService(int threads) {
+        AtomicInteger count = new AtomicInteger();
+        this.transcoders = Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "StratoNet-thumbnail-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.transcoded = new LongAdder();
+    }
+
+    /**
+     * Given an original image, returns its variant. The variant is kept under the key of the variant, so that it is
+     * cached and stored next to the original image.
+     *
+     * @param original the original image of the day.
+     * @param variant  the variant to be made.
+     * @return the variant of the image.
+     * @throws IOException if the image could not be decoded or encoded, or the thread was interrupted.
+     */
+    ApodImage transcode(ApodImage original, ImageVariant variant) throws IOException {
+        Future<ApodImage> future = transcoders.submit(() -> transcodeNow(original, variant));
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            future.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the variant of " + variant.getDate());
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException)
+                throw (IOException) cause;
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            throw new IOException(cause);
+        }
+    }
+
+    /**
+     * Reads the dimensions of an image from its header, without decoding its pixels nor copying its bytes.
+     *
+     * @param image the image of the day.
+     * @return the longest side of the image, in pixels.
+     * @throws IOException if the header of the image could not be read.
+     */
+    int longestSideOf(ApodImage image) throws IOException {
+        try (ImageInputStream in = new MemoryCacheImageInputStream(new BufferInputStream(image.getData()))) {
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+            if (!readers.hasNext())
+                throw new IOException("Image of " + image.getDate() + " could not be decoded");
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(in, true, true);
+                return Math.max(reader.getWidth(0), reader.getHeight(0));
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    private ApodImage transcodeNow(ApodImage original, ImageVariant variant) throws IOException {
+        ByteBuffer data = original.getData();
+        byte[] bytes = new byte[data.remaining()];
+        data.get(bytes);
+
+        BufferedImage source = ImageIO.read(new ByteArrayInputStream(bytes));
+        if (source == null)
+            throw new IOException("Image of " + variant.getDate() + " could not be decoded");
+
+        byte[] encoded = encode(downscale(source, variant.getMaxSize()), variant.getQuality());
+        transcoded.increment();
+        // An image that is already small may only grow when it is encoded again, so the original bytes are kept.
+        return new ApodImage(variant.getKey(), original.getImageURL(), encoded.length < bytes.length ? encoded : bytes);
+    }
+
+    /**
+     * Downscales an image so that neither of its sides is longer than the given size. Large reductions are done in
+     * halving steps, since a single bilinear step skips most of the pixels of the source.
+     */
+    private static BufferedImage downscale(BufferedImage source, int maxSize) {
+        int width = source.getWidth();
+        int height = source.getHeight();
+        double scale = Math.min(1.0, (double) maxSize / Math.max(width, height));
+        int targetWidth = Math.max(1, (int) Math.round(width * scale));
+        int targetHeight = Math.max(1, (int) Math.round(height * scale));
+
+        BufferedImage image = source;
+        do {
+            width = Math.max(targetWidth, width / 2);
+            height = Math.max(targetHeight, height / 2);
+            // JPEG has no alpha channel, so every step is drawn onto an opaque image.
+            BufferedImage step = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+            Graphics2D graphics = step.createGraphics();
+            graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            graphics.drawImage(image, 0, 0, width, height, null);
+            graphics.dispose();
+            image = step;
+        } while (width != targetWidth || height != targetHeight);
+        return image;
+    }
+
+    /**
+     * Encodes an image as a JPEG of the given quality.
+     */
+    private static byte[] encode(BufferedImage image, int quality) throws IOException {
+        Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName(IMAGE_FORMAT);
+        if (!writers.hasNext())
+            throw new IOException("No image writer for " + IMAGE_FORMAT);
+        ImageWriter writer = writers.next();
+        ImageWriteParam param = writer.getDefaultWriteParam();
+        param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+        param.setCompressionQuality(quality / 100f);
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ImageOutputStream out = ImageIO.createImageOutputStream(bytes)) {
+            writer.setOutput(out);
+            writer.write(null, new IIOImage(image, null, null), param);
+        } finally {
+            writer.dispose();
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Stops the transcoding threads, the variants being transcoded are abandoned.
+     */
+    void close() {
+        transcoders.shutdownNow();
+    }
+
+    long getTranscoded() {
+        return transcoded.sum();
+    }
+
+    @Override
+    public String toString() {
+        return "ThumbnailService{" +
+                "transcoded=" + getTranscoded() +
+                '}';
+    }
+}
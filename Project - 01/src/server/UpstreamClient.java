@@ -0,0 +1,246 @@
+package server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.net.http.HttpTimeoutException;
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static utils.Utilities.*;
+
+/**
+ * The HTTP client the server uses to reach the NASA APIs. A single client is shared by every session so that its
+ * connections are kept alive and reused, over HTTP/2 when the API supports it. The requests are made asynchronously,
+ * a request fails if no connection could be made within the connect timeout or if its whole response, the body
+ * included, did not arrive within the request timeout.
+ */
+class UpstreamClient implements Closeable {
+
+    private final ExecutorService executor;
+    private final HttpClient client;
+    private final Duration requestTimeout;
+    private final ThreadLocal<byte[]> buffers;
+
+    /**
+     * @param connectTimeout the time in milliseconds a connection to an API may take to be made.
+     * @param requestTimeout the time in milliseconds an API may take to respond to a request.
+     */
+    UpstreamClient(long connectTimeout, long requestTimeout) {
+        this.executor = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "StratoNet-upstream");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.client = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_2)
+                .followRedirects(HttpClient.Redirect.NORMAL)
+                .connectTimeout(Duration.ofMillis(connectTimeout))
+                .executor(executor)
+                .build();
+        this.requestTimeout = Duration.ofMillis(requestTimeout);
+        this.buffers = ThreadLocal.withInitial(() -> new byte[UPSTREAM_BUFFER_SIZE]);
+    }
+
+    /**
+     * Parses the body of a response as it is read from the connection.
+     *
+     * @param <T> the type of the result of the parsing.
+     */
+    interface BodyParser<T> {
+        T parse(InputStream body) throws IOException;
+    }
+
+    /**
+     * Reads the body of a response, whose headers are at hand.
+     *
+     * @param <T> the type of the result of the reading.
+     */
+    private interface BodyReader<T> {
+        T read(HttpResponse<InputStream> response, InputStream body) throws IOException;
+    }
+
+    /**
+     * Given a url, parses the body of the response while it is being received, without holding the whole body in
+     * memory.
+     *
+     * @param url    the url to be requested.
+     * @param parser the parser of the body.
+     * @param timing the histograms the latencies of the request are recorded into.
+     * @param <T>    the type of the result of the parsing.
+     * @return a future that completes with the result of the parsing, or with an IOException if the request or the
+     * parsing failed.
+     */
+    <T> CompletableFuture<T> getParsed(String url, BodyParser<T> parser, ServerMetrics.Upstream timing) {
+        return transfer(url, timing, (response, body) -> parser.parse(body));
+    }
+
+    /**
+     * Given a url, retrieves the body of the response as a byte array. The body is read straight into an array of the
+     * announced length of the response, or through a large buffer reused by the thread if its length is not known.
+     *
+     * @param url    the url to be requested.
+     * @param timing the histograms the latencies of the request are recorded into.
+     * @return a future that completes with the body of the response, or with an IOException if the request failed.
+     */
+    CompletableFuture<byte[]> getBytes(String url, ServerMetrics.Upstream timing) {
+        return transfer(url, timing,
+                (response, body) -> readBody(body, response.headers().firstValueAsLong("Content-Length").orElse(-1)));
+    }
+
+    /**
+     * Sends a request and reads the body of its response on the executor. The request timeout bounds the request as a
+     * whole: HttpRequest.timeout only bounds the wait for the headers, so a body that stalls fails the request once the
+     * timeout is over, and the body is closed and the thread reading it interrupted, so that the thread is not held by
+     * it either.
+     */
+    private <T> CompletableFuture<T> transfer(String url, ServerMetrics.Upstream timing, BodyReader<T> reader) {
+        CompletableFuture<T> transfer = new CompletableFuture<>();
+        send(url, HttpResponse.BodyHandlers.ofInputStream(), timing).whenComplete((response, e) -> {
+            if (e != null)
+                transfer.completeExceptionally(e instanceof CompletionException ? e.getCause() : e);
+            else
+                executor.execute(() -> read(url, response, reader, timing, transfer));
+        });
+        transfer.orTimeout(requestTimeout.toMillis(), TimeUnit.MILLISECONDS);
+        return transfer.exceptionallyCompose(e -> CompletableFuture.failedFuture(e instanceof TimeoutException
+                ? new HttpTimeoutException("No whole response from " + url + " within " + requestTimeout.toMillis()
+                + " ms") : e));
+    }
+
+    private <T> void read(String url, HttpResponse<InputStream> response, BodyReader<T> reader,
+                          ServerMetrics.Upstream timing, CompletableFuture<T> transfer) {
+        long start = System.nanoTime();
+        Thread thread = Thread.currentThread();
+        InputStream body = response.body();
+        // The flag is cleared along with the interrupt under its lock, so a timeout cannot interrupt the next task of
+        // the thread.
+        AtomicBoolean reading = new AtomicBoolean(true);
+        transfer.whenComplete((result, e) -> {
+            synchronized (reading) {
+                if (reading.get() && e instanceof TimeoutException) {
+                    closeQuietly(body);
+                    thread.interrupt();
+                }
+            }
+        });
+        try (body) {
+            checkStatus(url, response, body);
+            T result = reader.read(response, body);
+            timing.transfer.recordSince(start);
+            transfer.complete(result);
+        } catch (IOException | RuntimeException e) {
+            transfer.completeExceptionally(e);
+        } finally {
+            synchronized (reading) {
+                reading.set(false);
+                Thread.interrupted();
+            }
+        }
+    }
+
+    private static void closeQuietly(InputStream body) {
+        try {
+            body.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Sends a request, whose future completes once the headers of the response arrived. The time until then is
+     * recorded as the connect latency of the request, the body is left to be read by the caller.
+     */
+    private <T> CompletableFuture<HttpResponse<T>> send(String url, HttpResponse.BodyHandler<T> handler,
+                                                        ServerMetrics.Upstream timing) {
+        try {
+            HttpRequest request = HttpRequest.newBuilder(URI.create(url))
+                    .timeout(requestTimeout)
+                    .GET()
+                    .build();
+            long start = System.nanoTime();
+            return client.sendAsync(request, handler).thenApply(response -> {
+                timing.connect.recordSince(start);
+                return response;
+            });
+        } catch (IllegalArgumentException e) {
+            return CompletableFuture.failedFuture(new IOException("Malformed url: " + url, e));
+        }
+    }
+
+    /**
+     * Fails a request whose response is not a success. It is called once the body of the response is opened, so that
+     * the body is closed whatever the status. The body of a failed response, such as the 404 of a date the APOD API
+     * has no image for, is read to its end first, so that the connection is kept alive and reused.
+     */
+    private static void checkStatus(String url, HttpResponse<?> response, InputStream body) throws IOException {
+        if (response.statusCode() <= 299)
+            return;
+        body.transferTo(OutputStream.nullOutputStream());
+        throw new IOException("Status " + response.statusCode() + " from " + url);
+    }
+
+    private byte[] readBody(InputStream body, long length) throws IOException {
+        if (length >= 0 && length <= Integer.MAX_VALUE) {
+            byte[] bytes = new byte[(int) length];
+            int read = body.readNBytes(bytes, 0, bytes.length);
+            if (read < bytes.length)
+                throw new IOException("Response ended after " + read + " of " + length + " bytes");
+            return bytes;
+        }
+
+        byte[] buffer = buffers.get();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(buffer.length);
+        int n;
+        while ((n = body.read(buffer)) != -1)
+            bytes.write(buffer, 0, n);
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Waits for a request to complete, for the callers that run on a thread that is allowed to block.
+     *
+     * @param future the future of the request.
+     * @param <T>    the type of the result of the request.
+     * @return the result of the request.
+     * @throws IOException if the request failed or the thread was interrupted.
+     */
+    static <T> T await(CompletableFuture<T> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            future.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for an upstream request");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException)
+                throw (IOException) cause;
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            throw new IOException(cause);
+        }
+    }
+
+    /**
+     * Stops the threads of the client.
+     */
+    @Override
+    public void close() {
+        executor.shutdownNow();
+    }
+}
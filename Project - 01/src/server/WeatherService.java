@@ -0,0 +1,141 @@
+package server;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Serves the weather on Mars to every session of the server. The InSight feed changes at most once per sol, so it is
+ * fetched in the background on an interval and its pressure entries are kept in an immutable snapshot, from which
+ * the weather queries are served without reaching the API. A query only reaches the API while no snapshot has been
+ * fetched yet, and concurrent queries then share a single call.
+ */
+class WeatherService {
+
+    private static final String INSIGHT_KEY = "insight";
+
+    /**
+     * The pressure entries of the InSight feed at the time it was fetched.
+     */
+    static final class Snapshot {
+        private final String[] pressures;
+        private final long fetchedAt;
+
+        private Snapshot(List<String> pressures, long fetchedAt) {
+            this.pressures = pressures.toArray(new String[0]);
+            this.fetchedAt = fetchedAt;
+        }
+
+        /**
+         * @return a randomly picked pressure entry, or null if the feed had no pressure entries.
+         */
+        String pickPressure() {
+            if (pressures.length == 0)
+                return null;
+            return pressures[ThreadLocalRandom.current().nextInt(pressures.length)];
+        }
+
+        int size() {
+            return pressures.length;
+        }
+
+        long getFetchedAt() {
+            return fetchedAt;
+        }
+    }
+
+    private final NasaApi nasaApi;
+    private final long refreshInterval;
+    private final AtomicReference<Snapshot> snapshot;
+    private final SingleFlight<String, Snapshot> flights;
+    private final ScheduledExecutorService refresher;
+
+    /**
+     * @param nasaApi         the NASA APIs the weather is retrieved from.
+     * @param refreshInterval the time in milliseconds between two fetches of the InSight feed.
+     */
+    WeatherService(NasaApi nasaApi, long refreshInterval) {
+        this.nasaApi = nasaApi;
+        this.refreshInterval = refreshInterval;
+        this.snapshot = new AtomicReference<>();
+        this.flights = new SingleFlight<>();
+        this.refresher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "StratoNet-weather-refresher");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Starts fetching the InSight feed in the background, the first fetch is made right away.
+     */
+    void start() {
+        refresher.scheduleWithFixedDelay(() -> {
+            try {
+                flights.execute(INSIGHT_KEY, this::refresh);
+            } catch (IOException | RuntimeException e) {
+                // The previous snapshot keeps being served until a fetch succeeds.
+                System.err.println("Weather on Mars could not be refreshed: " + e);
+            }
+        }, 0, refreshInterval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Fetches the InSight feed and publishes its pressure entries as the current snapshot.
+     */
+    private Snapshot refresh() throws IOException {
+        Snapshot fetched = new Snapshot(nasaApi.getMarsPressures(), System.currentTimeMillis());
+        snapshot.set(fetched);
+        return fetched;
+    }
+
+    /**
+     * Returns the weather on Mars from the current snapshot, without reaching the API.
+     *
+     * @return information about the pressure on Mars, or null if no snapshot has been fetched yet.
+     * @throws IOException if the InSight feed has no pressure entries.
+     */
+    String getCachedWeather() throws IOException {
+        Snapshot current = snapshot.get();
+        return current == null ? null : pickPressure(current);
+    }
+
+    /**
+     * Returns the weather on Mars, fetching the InSight feed first if no snapshot has been fetched yet.
+     *
+     * @return information about the pressure on Mars.
+     * @throws IOException if the API could not be reached or the InSight feed has no pressure entries.
+     */
+    String getWeather() throws IOException {
+        Snapshot current = snapshot.get();
+        if (current == null)
+            current = flights.execute(INSIGHT_KEY, this::refresh);
+        return pickPressure(current);
+    }
+
+    private static String pickPressure(Snapshot snapshot) throws IOException {
+        String pressure = snapshot.pickPressure();
+        if (pressure == null)
+            throw new IOException("No pressure entries in the InSight feed");
+        return pressure;
+    }
+
+    Snapshot getSnapshot() {
+        return snapshot.get();
+    }
+
+    SingleFlight<String, Snapshot> getFlights() {
+        return flights;
+    }
+
+    /**
+     * Stops fetching the InSight feed.
+     */
+    void close() {
+        refresher.shutdownNow();
+    }
+}
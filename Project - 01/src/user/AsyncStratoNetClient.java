@@ -0,0 +1,690 @@
+package user;
+
+import utils.ChunkTCPPayload;
+import utils.FrameCodec;
+import utils.TCPPayload;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static utils.Utilities.*;
+
+/**
+ * A non-blocking StratoNet client for programs that issue many queries at a time. Every call returns right away with a
+ * CompletableFuture that is completed once the server replies, so a single client pipelines its queries on one session
+ * without a thread per query. The connections of the client are served by a single I/O thread of its own through a
+ * selector, and the futures are completed on that thread, so the stages that depend on them should not block, or
+ * should be run with the async methods of CompletableFuture.
+ * <p>
+ * At most maxInFlight queries are sent to the server at a time, the others wait in the order they were made. A query
+ * made while maxQueued queries are already waiting fails right away with a RejectedExecutionException, and a query
+ * that is not answered within the request timeout fails with a TimeoutException, its late replies being dropped.
+ * <p>
+ * The server ends a session that stays idle for QUERY_TIMEOUT, in which case every pending query fails and the session
+ * may be resumed by a new client with the token of this one, for example:
+ * <pre>
+ * AsyncStratoNetClient client = new AsyncStratoNetClient(DEFAULT_SERVER_ADDRESS);
+ * client.authenticate(username, password).join();
+ * CompletableFuture&lt;byte[]&gt; image = client.image("2020-01-10@500");
+ * CompletableFuture&lt;String&gt; weather = client.weather();
+ * </pre>
+ */
+public class AsyncStratoNetClient implements Closeable {
+
+    private enum State {
+        NEW,
+        AWAITING_USERNAME,
+        AWAITING_CHALLENGE,
+        AWAITING_SUCCESS,
+        AWAITING_RESUME,
+        AWAITING_WELCOME,
+        READY,
+        CLOSED
+    }
+
+    private static final AtomicInteger CLIENTS = new AtomicInteger();
+
+    private final InetSocketAddress commandAddress;
+    private final InetSocketAddress fileAddress;
+    private final boolean singlePort;
+    private final long requestTimeout;
+    private final int maxInFlight;
+    private final int maxQueued;
+    private final Selector selector;
+    private final Queue<Runnable> tasks;
+    private final AtomicInteger admitted;
+    private final ArrayDeque<Request> waiting;
+    private final Map<Integer, Request> inFlight;
+    private final Thread ioThread;
+    private Connection command;
+    private Connection file;
+    private State state;
+    private CompletableFuture<String> authentication;
+    private String password;
+    private int nextRequestId;
+    private volatile String token;
+    private volatile boolean closed;
+
+    /**
+     * Creates a client of a StratoNet server that listens on the default ports, with the default limits.
+     *
+     * @param serverAddress the address of the server.
+     * @throws IOException if the selector of the client could not be opened.
+     */
+    public AsyncStratoNetClient(String serverAddress) throws IOException {
+        this(serverAddress, COMMAND_PORT, FILE_PORT, false, CLIENT_REQUEST_TIMEOUT, CLIENT_MAX_IN_FLIGHT,
+                CLIENT_MAX_QUEUED);
+    }
+
+    /**
+     * @param serverAddress  the address of the server.
+     * @param commandPort    the command port of the server.
+     * @param filePort       the file port of the server, unused if the server runs on a single port.
+     * @param singlePort     true if the server sends the images on the command connection.
+     * @param requestTimeout the number of milliseconds a query, or the authentication, is given to complete.
+     * @param maxInFlight    the number of queries that may be sent to the server at a time.
+     * @param maxQueued      the number of queries that may wait for one of the queries in flight to complete.
+     * @throws IOException if the selector of the client could not be opened.
+     */
+    public AsyncStratoNetClient(String serverAddress, int commandPort, int filePort, boolean singlePort,
+                                long requestTimeout, int maxInFlight, int maxQueued) throws IOException {
+        if (maxInFlight < 1 || maxQueued < 0)
+            throw new IllegalArgumentException("maxInFlight must be positive and maxQueued must not be negative");
+        this.commandAddress = new InetSocketAddress(serverAddress, commandPort);
+        this.fileAddress = new InetSocketAddress(serverAddress, filePort);
+        this.singlePort = singlePort;
+        this.requestTimeout = requestTimeout;
+        this.maxInFlight = maxInFlight;
+        this.maxQueued = maxQueued;
+        this.selector = Selector.open();
+        this.tasks = new ConcurrentLinkedQueue<>();
+        this.admitted = new AtomicInteger();
+        this.waiting = new ArrayDeque<>();
+        this.inFlight = new HashMap<>();
+        this.state = State.NEW;
+
+        this.ioThread = new Thread(this::run, "StratoNet-client-io-" + CLIENTS.incrementAndGet());
+        ioThread.setDaemon(true);
+        ioThread.start();
+    }
+
+    /**
+     * Connects to the server and authenticates the client with its credentials. The queries made in the meantime are
+     * sent once the client is authenticated.
+     *
+     * @param username the username of the client.
+     * @param password the password of the client.
+     * @return a future completed with the token of the session once the server is ready to take queries. It fails if
+     * the credentials are wrong, in which case the client is closed.
+     */
+    public CompletableFuture<String> authenticate(String username, String password) {
+        return authenticate(Auth_Request, username, password);
+    }
+
+    /**
+     * Connects to the server and resumes the session of a token issued to an earlier connection. If the session could
+     * not be resumed, the client stays connected and may authenticate with its credentials instead.
+     *
+     * @param token the token of the session to be resumed.
+     * @return a future completed with the token once the server is ready to take queries.
+     */
+    public CompletableFuture<String> resume(String token) {
+        return authenticate(Auth_Resume, token, null);
+    }
+
+    private CompletableFuture<String> authenticate(byte type, String message, String password) {
+        CompletableFuture<String> future = new CompletableFuture<String>()
+                .orTimeout(requestTimeout, TimeUnit.MILLISECONDS);
+        future.whenComplete((token, e) -> {
+            if (e instanceof TimeoutException)
+                execute(() -> shutdown(e));
+        });
+        execute(() -> {
+            if (state != State.NEW && state != State.AWAITING_USERNAME) {
+                future.completeExceptionally(new IllegalStateException("Client is " + state));
+                return;
+            }
+            try {
+                if (command == null)
+                    command = new Connection(commandAddress);
+                authentication = future;
+                this.password = password;
+                command.sendMessage(Auth_Phase, type, message);
+                state = type == Auth_Resume ? State.AWAITING_RESUME : State.AWAITING_CHALLENGE;
+            } catch (IOException e) {
+                future.completeExceptionally(e);
+                shutdown(e);
+            }
+        });
+        return future;
+    }
+
+    /**
+     * Asks for the weather on Mars.
+     *
+     * @return a future completed with the weather on Mars.
+     */
+    public CompletableFuture<String> weather() {
+        TextRequest request = new TextRequest(Query_Weather, "Weather");
+        submit(request);
+        return request.future;
+    }
+
+    /**
+     * Asks for the image of a day, as a query of the form yyyy-mm-dd, yyyy-mm-dd@500 or yyyy-mm-dd@500q80. The image is
+     * held in memory as a whole, and is reported to the server as valid or corrupted once it is received.
+     *
+     * @param query the date of the image, optionally followed by the size and the quality of a smaller image.
+     * @return a future completed with the bytes of the image once it is validated.
+     */
+    public CompletableFuture<byte[]> image(String query) {
+        ImageRequest request = new ImageRequest(query);
+        if (query.matches(imageQueryRegex))
+            submit(request);
+        else
+            request.future.completeExceptionally(new IllegalArgumentException("Invalid image query: " + query));
+        return request.future;
+    }
+
+    /**
+     * Ends the session on the server once the queries made before are sent, then closes the client.
+     *
+     * @return a future completed with the farewell message of the server.
+     */
+    public CompletableFuture<String> disconnect() {
+        TextRequest request = new TextRequest(Query_Exit, "disconnect");
+        submit(request);
+        return request.future;
+    }
+
+    /**
+     * @return true if the connections of the client are closed, after which every query fails right away.
+     */
+    public boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * @return the token of the session, or null if the client is not authenticated yet.
+     */
+    public String getToken() {
+        return token;
+    }
+
+    /**
+     * Closes the connections of the client right away, every pending query fails. The session is kept on the server
+     * until it expires, so that it may be resumed with the token of this client.
+     */
+    @Override
+    public void close() {
+        execute(() -> shutdown(new IOException("Client closed")));
+        if (Thread.currentThread() != ioThread) {
+            try {
+                ioThread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Admits a query unless too many queries wait already, and hands it to the I/O thread.
+     */
+    private void submit(Request request) {
+        CompletableFuture<?> future = request.future();
+        if (closed) {
+            future.completeExceptionally(new IOException("Client closed"));
+            return;
+        }
+        if (admitted.incrementAndGet() > maxInFlight + maxQueued) {
+            admitted.decrementAndGet();
+            future.completeExceptionally(new RejectedExecutionException(maxInFlight + maxQueued
+                    + " queries are already pending"));
+            return;
+        }
+        future.orTimeout(requestTimeout, TimeUnit.MILLISECONDS);
+        future.whenComplete((result, e) -> {
+            admitted.decrementAndGet();
+            execute(() -> forget(request));
+        });
+        execute(() -> {
+            if (state == State.CLOSED) {
+                future.completeExceptionally(new IOException("Client closed"));
+                return;
+            }
+            waiting.add(request);
+            sendWaiting();
+        });
+    }
+
+    /**
+     * Drops a query that is over, such as a query that timed out, and sends the next waiting query in its place. An
+     * image query that timed out in flight is reported as invalid, so that the server does not keep the image for it.
+     */
+    private void forget(Request request) {
+        if (inFlight.remove(request.id, request)) {
+            if (request.type == Query_Image && state == State.READY) {
+                try {
+                    command.sendQuery(request.id, Query_Image_Invalid, request.message);
+                } catch (IOException e) {
+                    shutdown(e);
+                    return;
+                }
+            }
+        } else {
+            waiting.remove(request);
+        }
+        sendWaiting();
+    }
+
+    /**
+     * Sends the waiting queries as long as fewer than maxInFlight queries are in flight.
+     */
+    private void sendWaiting() {
+        while (state == State.READY && inFlight.size() < maxInFlight && !waiting.isEmpty()) {
+            Request request = waiting.poll();
+            if (request.future().isDone())
+                continue;
+            request.id = ++nextRequestId;
+            inFlight.put(request.id, request);
+            try {
+                command.sendQuery(request.id, request.type, request.message);
+            } catch (IOException e) {
+                shutdown(e);
+            }
+        }
+    }
+
+    /**
+     * Handles a message frame received from the server.
+     */
+    private void onMessage(TCPPayload frame) throws IOException {
+        if (state != State.READY) {
+            onAuthenticationMessage(frame);
+            return;
+        }
+        if (frame.getType() == Query_Exit) {
+            Request request = inFlight.remove(frame.getRequestId());
+            if (request != null && request.type == Query_Exit)
+                ((TextRequest) request).future.complete(frame.getMessage());
+            shutdown(new IOException(frame.getMessage()));
+            return;
+        }
+        // The replies of a query that is over are dropped.
+        Request request = inFlight.get(frame.getRequestId());
+        if (request != null)
+            request.onReply(frame);
+    }
+
+    private void onAuthenticationMessage(TCPPayload frame) throws IOException {
+        if (state == State.AWAITING_WELCOME && frame.getType() == Query_Request) {
+            state = State.READY;
+            authentication.complete(token);
+            sendWaiting();
+        } else if (state == State.AWAITING_CHALLENGE && frame.getType() == Auth_Challenge && password != null) {
+            command.sendMessage(Auth_Phase, Auth_Request, password);
+            password = null;
+            state = State.AWAITING_SUCCESS;
+        } else if ((state == State.AWAITING_SUCCESS || state == State.AWAITING_RESUME)
+                && frame.getType() == Auth_Success) {
+            token = frame.getMessage();
+            // The file connection is opened once the client is authenticated, and is bound to its session by the
+            // token.
+            if (singlePort) {
+                file = command;
+            } else {
+                file = new Connection(fileAddress);
+                file.sendMessage(Auth_Phase, Auth_Bind, token);
+            }
+            state = State.AWAITING_WELCOME;
+        } else if (state == State.AWAITING_RESUME && frame.getType() == Auth_Resume_Fail) {
+            state = State.AWAITING_USERNAME;
+            authentication.completeExceptionally(new IOException(frame.getMessage()));
+        } else {
+            // A second challenge means that the password was wrong, the client does not try another one.
+            shutdown(new IOException(frame.getMessage()));
+        }
+    }
+
+    /**
+     * Fails every pending query with the given cause and closes the connections.
+     */
+    private void shutdown(Throwable cause) {
+        if (state == State.CLOSED)
+            return;
+        state = State.CLOSED;
+        closed = true;
+        if (authentication != null)
+            authentication.completeExceptionally(cause);
+        for (Request request : new ArrayList<>(inFlight.values()))
+            request.future().completeExceptionally(cause);
+        for (Request request : new ArrayList<>(waiting))
+            request.future().completeExceptionally(cause);
+        inFlight.clear();
+        waiting.clear();
+        if (command != null)
+            command.close();
+        if (file != null && file != command)
+            file.close();
+    }
+
+    /**
+     * @return true if the disconnection has been sent to the server and its reply has not arrived yet.
+     */
+    private boolean isDisconnecting() {
+        for (Request request : inFlight.values()) {
+            if (request.type == Query_Exit)
+                return true;
+        }
+        return false;
+    }
+
+    private void execute(Runnable task) {
+        tasks.add(task);
+        selector.wakeup();
+    }
+
+    /**
+     * The loop of the I/O thread, which runs the tasks handed to it and serves the connections until the client is
+     * closed.
+     */
+    private void run() {
+        try {
+            while (!closed) {
+                selector.select();
+                Runnable task;
+                while ((task = tasks.poll()) != null)
+                    task.run();
+
+                for (SelectionKey key : selector.selectedKeys()) {
+                    Connection connection = (Connection) key.attachment();
+                    try {
+                        if (key.isValid() && key.isConnectable())
+                            connection.onConnectable();
+                        if (key.isValid() && key.isReadable())
+                            connection.onReadable();
+                        if (key.isValid() && key.isWritable())
+                            connection.flush();
+                    } catch (IOException e) {
+                        shutdown(e);
+                    }
+                }
+                selector.selectedKeys().clear();
+            }
+        } catch (IOException | RuntimeException e) {
+            shutdown(e);
+        } finally {
+            // The tasks handed over while the client was being closed fail the queries they hold.
+            Runnable task;
+            while ((task = tasks.poll()) != null)
+                task.run();
+            try {
+                selector.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * A query of the client, sent once there is room for it in flight.
+     */
+    private abstract class Request {
+
+        final byte type;
+        final String message;
+        int id;
+
+        Request(byte type, String message) {
+            this.type = type;
+            this.message = message;
+        }
+
+        /**
+         * @return the future the result of this query is handed to.
+         */
+        abstract CompletableFuture<?> future();
+
+        /**
+         * Handles a reply of the server to this query.
+         */
+        abstract void onReply(TCPPayload frame) throws IOException;
+
+        /**
+         * Ends this query, which makes room for the next waiting query.
+         */
+        void finish() {
+            inFlight.remove(id, this);
+            sendWaiting();
+        }
+    }
+
+    /**
+     * A query answered with a single message.
+     */
+    private final class TextRequest extends Request {
+
+        final CompletableFuture<String> future;
+
+        TextRequest(byte type, String message) {
+            super(type, message);
+            this.future = new CompletableFuture<>();
+        }
+
+        @Override
+        CompletableFuture<?> future() {
+            return future;
+        }
+
+        @Override
+        void onReply(TCPPayload frame) {
+            finish();
+            if (frame.getType() == Query_Success)
+                future.complete(frame.getMessage());
+            else
+                future.completeExceptionally(new IOException(frame.getMessage()));
+        }
+    }
+
+    /**
+     * An image query. The digest of the image is received first, then the bytes of the image are requested and
+     * received as chunks, and the image is reported to the server once every chunk is received.
+     */
+    private final class ImageRequest extends Request {
+
+        final CompletableFuture<byte[]> future;
+        ImageAssembly image;
+
+        ImageRequest(String query) {
+            super(Query_Image, query);
+            this.future = new CompletableFuture<>();
+        }
+
+        @Override
+        CompletableFuture<?> future() {
+            return future;
+        }
+
+        @Override
+        void onReply(TCPPayload frame) throws IOException {
+            if (image == null && frame.getType() == Query_Request) {
+                image = new ImageAssembly(message, frame.getMessage());
+                command.sendQuery(id, Query_Image_Range, message + RANGE_SEPARATOR + 0);
+                return;
+            }
+            finish();
+            if (image != null && image.isDone() && frame.getType() == Query_Success)
+                future.complete(image.getBytes());
+            else
+                future.completeExceptionally(new IOException(message + ": " + frame.getMessage()));
+        }
+
+        /**
+         * Requests a corrupted chunk again once it is received, and reports the image once every chunk is received.
+         */
+        void onChunkReceived() throws IOException {
+            String range = image.endChunk();
+            // A query forgotten while one of its chunks was being received has already been reported.
+            if (inFlight.get(id) != this)
+                return;
+            if (range != null)
+                command.sendQuery(id, Query_Image_Range, range);
+            else if (image.isDone())
+                command.sendQuery(id, image.isValid() ? Query_Image_Valid : Query_Image_Invalid,
+                        message);
+        }
+    }
+
+    /**
+     * A connection of the client to the server. The frames to be written are queued until the channel is able to take
+     * them, and the bytes read are buffered until a whole frame, or a part of a chunk, is decoded from them. The bytes
+     * of a chunk are copied into its image as they arrive, so a chunk is never buffered as a whole.
+     */
+    private final class Connection {
+
+        private final SocketChannel channel;
+        private final SelectionKey key;
+        private final ArrayDeque<ByteBuffer> writeQueue;
+        private ByteBuffer readBuffer;
+        private ImageRequest chunkRequest;
+        private long chunkLeft;
+
+        Connection(InetSocketAddress address) throws IOException {
+            this.channel = SocketChannel.open();
+            this.writeQueue = new ArrayDeque<>();
+            this.readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+            channel.configureBlocking(false);
+            boolean connected = channel.connect(address);
+            this.key = channel.register(selector, connected ? SelectionKey.OP_READ : SelectionKey.OP_CONNECT, this);
+        }
+
+        void sendMessage(byte phase, byte type, String message) throws IOException {
+            ByteBuffer frame = ByteBuffer.allocate(FrameCodec.messageFrameLength(message));
+            FrameCodec.putMessage(frame, phase, type, NO_REQUEST_ID, message);
+            send(frame);
+        }
+
+        void sendQuery(int requestId, byte type, String message) throws IOException {
+            ByteBuffer frame = ByteBuffer.allocate(FrameCodec.queryFrameLength(message, token));
+            FrameCodec.putQuery(frame, Query_Phase, type, requestId, message, token);
+            send(frame);
+        }
+
+        private void send(ByteBuffer frame) throws IOException {
+            writeQueue.add(frame.flip());
+            if (channel.isConnected())
+                flush();
+        }
+
+        void onConnectable() throws IOException {
+            if (channel.finishConnect())
+                flush();
+        }
+
+        /**
+         * Writes as many of the queued frames as the channel is able to take.
+         */
+        void flush() throws IOException {
+            while (!writeQueue.isEmpty()) {
+                ByteBuffer frame = writeQueue.peek();
+                channel.write(frame);
+                if (frame.hasRemaining())
+                    break;
+                writeQueue.poll();
+            }
+            key.interestOps(writeQueue.isEmpty() ? SelectionKey.OP_READ
+                    : SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        }
+
+        /**
+         * Reads the available bytes from the channel and handles every frame decoded from them.
+         */
+        void onReadable() throws IOException {
+            if (!readBuffer.hasRemaining()) {
+                ByteBuffer larger = ByteBuffer.allocate(readBuffer.capacity() * 2);
+                readBuffer.flip();
+                larger.put(readBuffer);
+                readBuffer = larger;
+            }
+            if (channel.read(readBuffer) < 0) {
+                // The server closes both connections of a session it ends, so the file connection may be closed
+                // before the reply to the disconnection arrives on the command connection.
+                if (this != command && isDisconnecting()) {
+                    close();
+                    return;
+                }
+                throw new EOFException("Connection closed by the server");
+            }
+
+            readBuffer.flip();
+            decode();
+            readBuffer.compact();
+        }
+
+        /**
+         * Handles every frame, and every part of a chunk, the read buffer holds.
+         */
+        private void decode() throws IOException {
+            while (!closed) {
+                if (chunkLeft > 0) {
+                    if (!readBuffer.hasRemaining())
+                        return;
+                    int length = (int) Math.min(chunkLeft, readBuffer.remaining());
+                    // The bytes of a chunk of a query that is over are skipped.
+                    if (chunkRequest != null)
+                        chunkRequest.image.write(readBuffer, length);
+                    else
+                        readBuffer.position(readBuffer.position() + length);
+                    chunkLeft -= length;
+                    if (chunkLeft == 0 && chunkRequest != null)
+                        chunkRequest.onChunkReceived();
+                    continue;
+                }
+                TCPPayload frame = FrameCodec.decodeFrame(readBuffer);
+                if (frame == null)
+                    return;
+                if (frame instanceof ChunkTCPPayload)
+                    beginChunk((ChunkTCPPayload) frame);
+                else
+                    onMessage(frame);
+            }
+        }
+
+        private void beginChunk(ChunkTCPPayload header) throws IOException {
+            Request request = inFlight.get(header.getRequestId());
+            chunkRequest = request instanceof ImageRequest && ((ImageRequest) request).image != null
+                    ? (ImageRequest) request : null;
+            chunkLeft = header.getSize();
+            if (chunkRequest != null) {
+                chunkRequest.image.beginChunk(header);
+                if (chunkLeft == 0)
+                    chunkRequest.onChunkReceived();
+            }
+        }
+
+        void close() {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
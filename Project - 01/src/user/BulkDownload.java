@@ -0,0 +1,375 @@
+package user;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.time.LocalDate;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import static utils.Utilities.*;
+
+/**
+ * The headless mode of the client, which downloads the images of many days without any interaction, such as for a
+ * nightly archive sync. It opens several authenticated sessions, each keeping a few image queries in flight, and the
+ * sessions take the dates from a shared queue so that a slow session does not hold up the others. The bytes of each
+ * image are written to disk as they were sent, without decoding the image. A report of the throughput, the latency of
+ * the images and the failures is printed once every date is done, and the exit status is non-zero if any image failed.
+ * <p>
+ * The options are given as command line arguments of the form --option=value:
+ * <p>
+ * --dates=yyyy-mm-dd..yyyy-mm-dd or --dates-file=path, a file holding an image query per line; --username and
+ * --password; --sessions and --in-flight, the number of sessions and the number of queries each keeps in flight;
+ * --output, the directory the images are written to; --server and --single-port, as for the interactive client.
+ * <p>
+ * A password given with --password can be read by any user of the machine in the list of its processes, so an
+ * unattended run, such as one started by cron, should give it in one of the other ways instead: --password-file=path,
+ * a file whose first line is the password and which only the user of the run can read; --password=-, to read it from
+ * the first line of the standard input; or, when no password option is given, the STRATONET_PASSWORD environment
+ * variable.
+ */
+public class BulkDownload {
+
+    private static final String RULE = "-".repeat(97);
+
+    private String serverAddress = DEFAULT_SERVER_ADDRESS;
+    private boolean singlePort;
+    private String username;
+    private String password;
+    private int sessions = BULK_SESSIONS;
+    private int inFlight = BULK_IN_FLIGHT;
+    private Path output = Paths.get(".");
+    private final List<String> queries = new ArrayList<>();
+
+    private final Queue<String> remaining = new ConcurrentLinkedQueue<>();
+    private final Queue<Long> latencies = new ConcurrentLinkedQueue<>();
+    private final Map<String, String> failures = new ConcurrentHashMap<>();
+    private final LongAdder bytes = new LongAdder();
+
+    public static void main(String[] args) {
+        BulkDownload download;
+        try {
+            download = fromArgs(args);
+        } catch (IllegalArgumentException | IOException e) {
+            System.err.println(e.getMessage());
+            System.exit(2);
+            return;
+        }
+        System.exit(download.run() ? 0 : 1);
+    }
+
+    /**
+     * Given the command line arguments of the client, returns the bulk download they describe.
+     *
+     * @param args the arguments, each of the form --option=value. The other arguments are ignored.
+     * @return the bulk download.
+     * @throws IllegalArgumentException if an option is malformed, or the dates or the credentials are missing.
+     * @throws IOException              if the file of dates or the password could not be read.
+     */
+    static BulkDownload fromArgs(String[] args) throws IOException {
+        BulkDownload download = new BulkDownload();
+        for (String arg : args) {
+            // The interactive client takes --single-port without a value.
+            if (arg.equals("--single-port"))
+                download.singlePort = true;
+            int separator = arg.indexOf('=');
+            if (!arg.startsWith("--") || separator < 0)
+                continue;
+            String option = arg.substring(2, separator);
+            String value = arg.substring(separator + 1);
+            switch (option) {
+                case "dates":
+                    download.queries.addAll(expandRange(value));
+                    break;
+                case "dates-file":
+                    download.queries.addAll(readQueries(Paths.get(value)));
+                    break;
+                case "username":
+                    download.username = value;
+                    break;
+                case "password":
+                    download.password = value.equals("-") ? readPassword(null) : value;
+                    break;
+                case "password-file":
+                    download.password = readPassword(Paths.get(value));
+                    break;
+                case "sessions":
+                    download.sessions = positive(option, value);
+                    break;
+                case "in-flight":
+                    download.inFlight = positive(option, value);
+                    break;
+                case "output":
+                    download.output = Paths.get(value);
+                    break;
+                case "server":
+                    download.serverAddress = value;
+                    break;
+                case "single-port":
+                    download.singlePort = Boolean.parseBoolean(value);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option: --" + option);
+            }
+        }
+        if (download.queries.isEmpty())
+            throw new IllegalArgumentException("No dates given, use --dates=yyyy-mm-dd..yyyy-mm-dd or --dates-file=");
+        if (download.password == null)
+            download.password = System.getenv(BULK_PASSWORD_ENV);
+        if (download.username == null || download.password == null)
+            throw new IllegalArgumentException("No credentials given, use --username= and --password-file=, "
+                    + "--password=- or " + BULK_PASSWORD_ENV);
+        return download;
+    }
+
+    /**
+     * Given a single date or a range of dates as follows: yyyy-mm-dd..yyyy-mm-dd, returns every date it covers. Unlike
+     * a batch query, a range is not limited to MAX_BATCH_DATES dates.
+     */
+    private static List<String> expandRange(String range) {
+        int separator = range.indexOf(DATE_RANGE_SEPARATOR);
+        String first = separator < 0 ? range : range.substring(0, separator);
+        String last = separator < 0 ? range : range.substring(separator + DATE_RANGE_SEPARATOR.length());
+        if (!first.matches(dateRegex) || !last.matches(dateRegex))
+            throw new IllegalArgumentException("Invalid range of dates: " + range);
+        List<String> dates = new ArrayList<>();
+        try {
+            LocalDate end = LocalDate.parse(last);
+            for (LocalDate day = LocalDate.parse(first); !day.isAfter(end); day = day.plusDays(1))
+                dates.add(day.toString());
+        } catch (DateTimeParseException e) {
+            throw new IllegalArgumentException("Invalid range of dates: " + range);
+        }
+        return dates;
+    }
+
+    /**
+     * Reads the image queries of a file, one per line. The blank lines and the lines starting with # are skipped.
+     */
+    private static List<String> readQueries(Path path) throws IOException {
+        List<String> queries = new ArrayList<>();
+        for (String line : Files.readAllLines(path, StandardCharsets.UTF_8)) {
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#"))
+                continue;
+            if (!line.matches(imageQueryRegex))
+                throw new IllegalArgumentException("Invalid image query in " + path + ": " + line);
+            queries.add(line);
+        }
+        return queries;
+    }
+
+    /**
+     * Reads a password from the first line of a file, or of the standard input if no file is given.
+     *
+     * @param path the file holding the password, or null to read it from the standard input.
+     * @return the password, without its line terminator.
+     * @throws IOException if the password could not be read.
+     */
+    private static String readPassword(Path path) throws IOException {
+        String password;
+        if (path == null) {
+            // The standard input is left open, the bulk download does not read it otherwise.
+            BufferedReader stdin = new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8));
+            password = stdin.readLine();
+        } else {
+            try (BufferedReader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+                password = reader.readLine();
+            }
+        }
+        if (password == null || password.isEmpty())
+            throw new IllegalArgumentException("No password in " + (path == null ? "the standard input" : path));
+        return password;
+    }
+
+    private static int positive(String option, String value) {
+        try {
+            int number = Integer.parseInt(value);
+            if (number > 0)
+                return number;
+        } catch (NumberFormatException ignored) {
+        }
+        throw new IllegalArgumentException("--" + option + " must be a positive number, given: " + value);
+    }
+
+    /**
+     * Authenticates the sessions, downloads every image and prints the report.
+     *
+     * @return true if every image was downloaded.
+     */
+    boolean run() {
+        remaining.addAll(queries);
+        AtomicInteger count = new AtomicInteger();
+        ExecutorService writers = Executors.newFixedThreadPool(sessions, runnable -> {
+            Thread thread = new Thread(runnable, "StratoNet-bulk-writer-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        List<AsyncStratoNetClient> clients = new ArrayList<>();
+        try {
+            Files.createDirectories(output);
+            long authStart = System.nanoTime();
+            List<CompletableFuture<String>> authentications = new ArrayList<>();
+            for (int i = 0; i < sessions; i++) {
+                // Each session is given inFlight queries at a time, the room for as many waiting queries covers a
+                // query made by a worker before the session has counted the previous one of the worker as over.
+                AsyncStratoNetClient client = new AsyncStratoNetClient(serverAddress, COMMAND_PORT, FILE_PORT,
+                        singlePort, CLIENT_REQUEST_TIMEOUT, inFlight, inFlight);
+                clients.add(client);
+                authentications.add(client.authenticate(username, password));
+            }
+            List<AsyncStratoNetClient> authenticated = new ArrayList<>();
+            for (int i = 0; i < sessions; i++) {
+                try {
+                    authentications.get(i).join();
+                    authenticated.add(clients.get(i));
+                } catch (CompletionException e) {
+                    System.err.println("Session " + (i + 1) + " could not be authenticated: " + reasonOf(e));
+                }
+            }
+            if (authenticated.isEmpty()) {
+                System.err.println("No session could be authenticated");
+                return false;
+            }
+            System.out.printf("%d sessions authenticated in %d ms | Downloading %d images%n", authenticated.size(),
+                    TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - authStart), queries.size());
+
+            long start = System.nanoTime();
+            List<CompletableFuture<Void>> workers = new ArrayList<>();
+            for (AsyncStratoNetClient client : authenticated) {
+                for (int i = 0; i < inFlight; i++) {
+                    CompletableFuture<Void> worker = new CompletableFuture<>();
+                    downloadNext(client, writers, worker);
+                    workers.add(worker);
+                }
+            }
+            CompletableFuture.allOf(workers.toArray(new CompletableFuture<?>[0])).join();
+            // The dates that are left once every session has failed are failures of their own.
+            String query;
+            while ((query = remaining.poll()) != null)
+                failures.put(query, "No session left");
+            report(System.nanoTime() - start);
+
+            for (AsyncStratoNetClient client : authenticated) {
+                if (!client.isClosed())
+                    client.disconnect().handle((message, e) -> null).join();
+            }
+            return failures.isEmpty();
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        } finally {
+            for (AsyncStratoNetClient client : clients)
+                client.close();
+            writers.shutdown();
+        }
+    }
+
+    /**
+     * Takes the next date from the shared queue and downloads its image on the given session, then goes on with the
+     * next date until the queue is empty. The date of a session that was closed is put back into the queue for the
+     * other sessions.
+     *
+     * @param client  the session the images are downloaded on.
+     * @param writers the threads the images are written to disk on.
+     * @param worker  the future completed once the queue is empty or the session is closed.
+     */
+    private void downloadNext(AsyncStratoNetClient client, ExecutorService writers, CompletableFuture<Void> worker) {
+        String query = remaining.poll();
+        if (query == null) {
+            worker.complete(null);
+            return;
+        }
+        long start = System.nanoTime();
+        client.image(query).whenCompleteAsync((image, e) -> {
+            if (e == null) {
+                try {
+                    write(query, image);
+                    latencies.add(System.nanoTime() - start);
+                    bytes.add(image.length);
+                } catch (IOException writeException) {
+                    failures.put(query, String.valueOf(writeException.getMessage()));
+                }
+            } else if (client.isClosed()) {
+                remaining.add(query);
+                worker.complete(null);
+                return;
+            } else {
+                failures.put(query, reasonOf(e));
+            }
+            downloadNext(client, writers, worker);
+        }, writers);
+    }
+
+    /**
+     * Writes the bytes of an image into the output directory, through a partial file so that an image is never left
+     * half written.
+     */
+    private void write(String query, byte[] image) throws IOException {
+        Path path = output.resolve(ImageDownload.getImagePath(query));
+        Path partial = output.resolve(ImageDownload.getImagePath(query) + PARTIAL_IMAGE_SUFFIX);
+        Files.write(partial, image);
+        Files.move(partial, path, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Prints the number of images and bytes downloaded, the throughput, the percentiles of the latency of the images
+     * and the failures.
+     *
+     * @param elapsed the number of nanoseconds the downloads took.
+     */
+    private void report(long elapsed) {
+        List<Long> sorted = new ArrayList<>(latencies);
+        Collections.sort(sorted);
+        double seconds = elapsed / 1e9;
+        System.out.println(RULE);
+        System.out.printf("| Downloaded %d of %d images, %d bytes in %.2f s%n", sorted.size(), queries.size(),
+                bytes.sum(), seconds);
+        System.out.printf("| Throughput: %.1f images/s, %.2f MB/s%n", sorted.size() / seconds,
+                bytes.sum() / seconds / (1024 * 1024));
+        if (!sorted.isEmpty())
+            System.out.printf("| Latency: p50 %.1f ms, p90 %.1f ms, p99 %.1f ms, max %.1f ms%n",
+                    percentile(sorted, 50), percentile(sorted, 90), percentile(sorted, 99), percentile(sorted, 100));
+        System.out.println("| Failures: " + failures.size());
+        for (Map.Entry<String, String> failure : new TreeMap<>(failures).entrySet())
+            System.out.println("|   " + failure.getKey() + ": " + failure.getValue());
+        System.out.println(RULE);
+    }
+
+    /**
+     * @return the given percentile of the sorted latencies, in milliseconds.
+     */
+    private static double percentile(List<Long> sorted, int percentile) {
+        int index = (int) Math.ceil(percentile / 100.0 * sorted.size()) - 1;
+        return sorted.get(Math.max(0, index)) / 1e6;
+    }
+
+    /**
+     * @return the message of the cause of a failed future.
+     */
+    private static String reasonOf(Throwable e) {
+        while ((e instanceof CompletionException || e instanceof ExecutionException) && e.getCause() != null)
+            e = e.getCause();
+        return e.getClass().getSimpleName() + ": " + e.getMessage();
+    }
+}
@@ -2,14 +2,19 @@ package user;
 
 import utils.TCPPayload;
 
-import javax.imageio.ImageIO;
 import javax.swing.*;
 import java.awt.*;
-import java.awt.image.BufferedImage;
-import java.io.ByteArrayInputStream;
-import java.io.File;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Scanner;
 import java.util.regex.Pattern;
 
@@ -21,8 +26,18 @@ public class ClientMain {
     private static ServerConnection commandConnection;
     private static ServerConnection fileConnection;
     private static String accessToken;
+    private static boolean singlePort;
+    private static ImageCache imageCache;
 
     public static void main(String[] args) {
+        // The headless mode downloads the images of many days at once, see BulkDownload for its options.
+        if (Arrays.asList(args).contains("--bulk")) {
+            BulkDownload.main(args);
+            return;
+        }
+        // A server started with --single-port=true sends the images on the command connection.
+        singlePort = Arrays.asList(args).contains("--single-port");
+        imageCache = new ImageCache();
         if (!InitializeAuthentication())
             System.err.println("Failed to connect to server.");
         else {
@@ -37,27 +52,36 @@ public class ClientMain {
     private static boolean InitializeAuthentication() {
 
         TCPPayload serverResponse;
-        byte[] clientResponse;
         String clientMessage;
 
         commandConnection =
                 new ServerConnection(DEFAULT_SERVER_ADDRESS, COMMAND_PORT);
 
-        fileConnection =
-                new ServerConnection(DEFAULT_SERVER_ADDRESS, FILE_PORT);
-
         commandConnection.EstablishConnection();
-        fileConnection.EstablishConnection();
 
         Scanner reader = new Scanner(System.in);
 
         System.out.println("Establishing network...");
-        System.out.println("Enter your username:");
+
+        // Tries to resume the session of an earlier connection before asking for the credentials.
+        String savedToken = readAccessToken();
+        if (savedToken != null) {
+            serverResponse = commandConnection.sendRequest(Auth_Phase, Auth_Resume, savedToken);
+
+            if (serverResponse.getType() == Auth_Success) {
+                accessToken = serverResponse.getMessage();
+                System.out.println("Session resumed | Your access token is: " + accessToken);
+                return OpenFileConnection();
+            }
+            deleteAccessToken();
+            System.out.println(serverResponse.getMessage());
+        } else {
+            System.out.println("Enter your username:");
+        }
 
         clientMessage = reader.nextLine();
 
-        clientResponse = getAuthRequestByteArray(Auth_Phase, Auth_Request, clientMessage.length(), clientMessage);
-        serverResponse = commandConnection.sendRequest(clientResponse);
+        serverResponse = commandConnection.sendRequest(Auth_Phase, Auth_Request, clientMessage);
         // Checks if an Auth_Fail was sent after entering the username.
         if (serverResponse.getType() == Auth_Fail) {
             System.err.println(serverResponse.getMessage());
@@ -68,8 +92,7 @@ public class ClientMain {
         while (serverResponse.getType() == Auth_Challenge) {
             System.out.println(serverResponse.getMessage());
             clientMessage = reader.nextLine();
-            clientResponse = getAuthRequestByteArray(Auth_Phase, Auth_Request, clientMessage.length(), clientMessage);
-            serverResponse = commandConnection.sendRequest(clientResponse);
+            serverResponse = commandConnection.sendRequest(Auth_Phase, Auth_Request, clientMessage);
         }
         // Checks if an Auth_Fail was sent after entering the password.
         if (serverResponse.getType() == Auth_Fail) {
@@ -81,147 +104,323 @@ public class ClientMain {
             System.out.println("Authentication complete!");
             accessToken = serverResponse.getMessage();
             System.out.println("Access Token Generated | Your access token is: " + accessToken);
-            return true;
+            saveAccessToken(accessToken);
+            return OpenFileConnection();
         }
         return false;
     }
 
     /**
-     * Initializes the querying phase.
+     * Opens the file connection and binds it to the session with the access token. On a single port the images are
+     * received on the command connection instead.
+     * @return true if the file connection is bound and false otherwise.
+     */
+    private static boolean OpenFileConnection() {
+        if (singlePort) {
+            fileConnection = commandConnection;
+            return true;
+        }
+        fileConnection =
+                new ServerConnection(DEFAULT_SERVER_ADDRESS, FILE_PORT);
+        fileConnection.EstablishConnection();
+        if (!fileConnection.bind(accessToken)) {
+            interrupt();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Initializes the querying phase. Several queries may be entered on a single line, separated by spaces, in which
+     * case they are pipelined on the command connection and their replies are handled in the order they arrive.
      */
     private static void InitializeQuerying() {
-        TCPPayload serverCommandResponse = null;
-        byte[] clientResponse = null;
         String clientMessage = null;
-        byte query = 0;
 
         System.out.println(commandConnection.readFromServer().getMessage());
 
-        Scanner reader = new Scanner(System.in);
-        clientMessage = reader.nextLine();
-        query = getQuery(clientMessage);
+        // Resumes the downloads of the images that were interrupted on an earlier connection.
+        List<String> interrupted = ImageDownload.findInterrupted();
+        if (!interrupted.isEmpty()) {
+            System.out.println("Resuming the download of the images of " + String.join(", ", interrupted) + "...");
+            if (!runQueries(interrupted.toArray(new String[0])))
+                return;
+            System.out.println("Enter a request:");
+        }
 
+        Scanner reader = new Scanner(System.in);
         while (true) {
-            while (query == 0) {
+            clientMessage = reader.nextLine();
+            String[] queries = clientMessage.trim().split("\\s+");
+            while (!isValidQueryLine(queries)) {
                 System.err.println("Invalid query, try again");
 
                 clientMessage = reader.nextLine();
-                query = getQuery(clientMessage);
+                queries = clientMessage.trim().split("\\s+");
             }
-            if (query == Query_Image) {
-                clientResponse = getQueryRequestByteArray(Query_Phase, query, clientMessage.length(),
-                        accessToken.length(), clientMessage, accessToken);
-
-                System.out.println("Fetching image...");
-                serverCommandResponse = commandConnection.sendRequest(clientResponse);
-                // Checks if a Query_Fail was sent from the server, if so disconnect the client.
-                if (serverCommandResponse.getType() == Query_Exit) {
-                    System.err.println(serverCommandResponse.getMessage());
-                    commandConnection.TerminateConnection();
-                    return;
-                }
-                // Get the hashcode of the image from the server.
-                String imageHash = serverCommandResponse.getMessage();
+            if (!runQueries(queries))
+                return;
+            System.out.println("Enter a request:");
+        }
+    }
 
-                serverCommandResponse = fileConnection.sendImageRequest(clientResponse);
+    /**
+     * @param queries   the queries entered on a line.
+     * @return          true if every query of the line is a valid query.
+     */
+    private static boolean isValidQueryLine(String[] queries) {
+        for (String query : queries)
+            if (getQuery(query) == 0)
+                return false;
+        return true;
+    }
 
-                boolean imageIsValid = verifyImage(imageHash, serverCommandResponse.getByteMessage());
+    /**
+     * Sends the given queries at once and handles their replies as they arrive. The images are downloaded
+     * concurrently on the file connection once their digests have arrived, and are reported to the server once every
+     * download is complete, the images of a batch in a single report. An image query is sent with the digest of the
+     * cached copy of its image, in which case the server answers with a Query_Not_Modified if the copy is up to date
+     * and the cached copy is shown. A disconnect is sent last, after every other query has been served.
+     * @param queries   the queries to be sent.
+     * @return          true if the querying phase goes on and false if the client has been disconnected.
+     */
+    private static boolean runQueries(String[] queries) {
+        TCPPayload serverCommandResponse;
+        // The messages of the requests that expect a reply, keyed by the ids of the requests. The images of a batch
+        // are keyed by their own ids, which follow the id of their batch.
+        Map<Integer, String> requests = new LinkedHashMap<>();
+        Map<Integer, String> batches = new LinkedHashMap<>();
+        Map<Integer, Integer> batchOf = new HashMap<>();
+        List<Path> images = new ArrayList<>();
+        boolean exit = false;
+
+        for (String clientMessage : queries) {
+            byte query = getQuery(clientMessage);
+            if (query == Query_Exit) {
+                exit = true;
+                continue;
+            }
+            if (query == Query_Image_Batch) {
+                List<String> dates = expandDates(clientMessage);
+                System.out.println("Fetching " + dates.size() + " images of " + clientMessage + "...");
+                int requestId = commandConnection.sendQuery(Query_Phase, query, clientMessage, accessToken,
+                        dates.size());
+                if (requestId == NO_REQUEST_ID)
+                    return interrupt();
+                batches.put(requestId, clientMessage);
+                for (int i = 0; i < dates.size(); i++) {
+                    requests.put(requestId + 1 + i, dates.get(i));
+                    batchOf.put(requestId + 1 + i, requestId);
+                }
+                continue;
+            }
+            System.out.println(query == Query_Image ? "Fetching image of " + clientMessage + "..."
+                    : "Fetching weather state...");
+            int requestId = commandConnection.sendQuery(Query_Phase, query,
+                    query == Query_Image ? imageCache.conditionalQuery(clientMessage) : clientMessage, accessToken);
+            if (requestId == NO_REQUEST_ID)
+                return interrupt();
+            requests.put(requestId, clientMessage);
+        }
 
-                if (imageIsValid) {
-                    clientResponse = getQueryRequestByteArray(Query_Phase, Query_Image_Valid, clientMessage.length(),
-                            accessToken.length(), clientMessage, accessToken);
-                    createImage(serverCommandResponse.getByteMessage());
-                    showImage(serverCommandResponse.getByteMessage());
-                    System.out.println("Image downloaded!");
-                } else {
-                    clientResponse = getQueryRequestByteArray(Query_Phase, Query_Image_Invalid, clientMessage.length(),
-                            accessToken.length(), clientMessage, accessToken);
+        // The replies of the queries come back in the order the server completes them.
+        Map<Integer, ImageDownload> downloads = new LinkedHashMap<>();
+        fileConnection.expectImages(downloads, commandConnection, accessToken);
+        for (int i = 0; i < requests.size(); i++) {
+            serverCommandResponse = commandConnection.readFromServer();
+            if (serverCommandResponse == null)
+                return interrupt();
+            // Checks if a Query_Fail was sent from the server, if so disconnect the client.
+            if (serverCommandResponse.getType() == Query_Exit) {
+                System.err.println(serverCommandResponse.getMessage());
+                disconnect(serverCommandResponse);
+                return false;
+            }
+            int requestId = serverCommandResponse.getRequestId();
+            String clientMessage = requests.get(requestId);
+            if (serverCommandResponse.getType() == Query_Image_Missing) {
+                System.err.println(clientMessage + ": " + serverCommandResponse.getMessage());
+            } else if (serverCommandResponse.getType() == Query_Not_Modified) {
+                System.out.println(clientMessage + ": Image not modified | Showing the cached image");
+                images.add(ImageDownload.getImagePath(clientMessage));
+            } else if (getQuery(clientMessage) == Query_Image) {
+                // Get the digest of the image from the server, then request the bytes the client does not hold.
+                ImageDownload download = new ImageDownload(requestId, clientMessage,
+                        serverCommandResponse.getMessage());
+                long offset;
+                try {
+                    offset = download.open();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    return interrupt();
                 }
-                serverCommandResponse = commandConnection.sendRequest(clientResponse);
+                downloads.put(requestId, download);
+                // The server sends the images of a batch right away, from their first byte.
+                if (batchOf.containsKey(requestId))
+                    continue;
+                if (offset > 0)
+                    System.out.println("Resuming the download of " + clientMessage + " from byte " + offset);
+                if (!commandConnection.sendQuery(requestId, Query_Phase, Query_Image_Range,
+                        clientMessage + RANGE_SEPARATOR + offset, accessToken))
+                    return interrupt();
+            } else {
                 System.out.println(serverCommandResponse.getMessage());
+            }
+        }
 
-
-            } else if (query == Query_Weather) {
-                System.out.println("Fetching weather state...");
-
-                clientResponse = getQueryRequestByteArray(Query_Phase, query, clientMessage.length(),
-                        accessToken.length(), clientMessage, accessToken);
-                serverCommandResponse = commandConnection.sendRequest(clientResponse);
-
-                if (serverCommandResponse.getType() == Query_Exit) {
-                    System.err.println(serverCommandResponse.getMessage());
-                    commandConnection.TerminateConnection();
-                    return;
+        if (!downloads.isEmpty() || !batches.isEmpty()) {
+            boolean downloaded = fileConnection.receiveImages();
+            int reports = 0;
+            Map<Integer, List<String>> corrupted = new HashMap<>();
+            for (int batchId : batches.keySet())
+                corrupted.put(batchId, new ArrayList<>());
+            for (ImageDownload download : downloads.values()) {
+                boolean imageIsValid = download.finish();
+                if (imageIsValid) {
+                    images.add(ImageDownload.getImagePath(download.getDate()));
+                    imageCache.put(download.getDate(), download.getDigest());
                 }
+                Integer batchId = batchOf.get(download.getRequestId());
+                if (batchId != null) {
+                    if (!imageIsValid)
+                        corrupted.get(batchId).add(download.getDate());
+                } else if (downloaded) {
+                    byte imageReport = imageIsValid ? Query_Image_Valid : Query_Image_Invalid;
+                    commandConnection.sendQuery(download.getRequestId(), Query_Phase, imageReport,
+                            download.getDate(), accessToken);
+                    reports++;
+                }
+            }
+            if (!downloaded)
+                return interrupt();
+            // The images of a batch are reported at once, an invalid report holds the dates of the corrupted images.
+            for (Map.Entry<Integer, String> batch : batches.entrySet()) {
+                List<String> dates = corrupted.get(batch.getKey());
+                byte imageReport = dates.isEmpty() ? Query_Image_Valid : Query_Image_Invalid;
+                commandConnection.sendQuery(batch.getKey(), Query_Phase, imageReport,
+                        dates.isEmpty() ? batch.getValue() : String.join(DATE_LIST_SEPARATOR, dates), accessToken);
+                reports++;
+            }
 
-                System.out.println(serverCommandResponse.getMessage());
-            } else if (query == Query_Exit) {
-                clientResponse = getQueryRequestByteArray(Query_Phase, query, clientMessage.length(),
-                        accessToken.length(), clientMessage, accessToken);
-                serverCommandResponse = commandConnection.sendRequest(clientResponse);
-
-                System.err.println(serverCommandResponse.getMessage());
-                commandConnection.TerminateConnection();
-                return;
+            for (int i = 0; i < reports; i++) {
+                serverCommandResponse = commandConnection.readFromServer();
+                if (serverCommandResponse == null)
+                    return interrupt();
+                int requestId = serverCommandResponse.getRequestId();
+                String clientMessage = batches.containsKey(requestId) ? batches.get(requestId)
+                        : requests.get(requestId);
+                System.out.println(clientMessage + ": " + serverCommandResponse.getMessage());
             }
-            System.out.println("Enter a request:");
-            clientMessage = reader.nextLine();
-            query = getQuery(clientMessage);
         }
+        for (Path image : images) {
+            showImage(image);
+            System.out.println("Image downloaded!");
+        }
+
+        if (exit) {
+            serverCommandResponse = commandConnection.sendQueryRequest(Query_Phase, Query_Exit, "disconnect",
+                    accessToken);
+
+            System.err.println(serverCommandResponse.getMessage());
+            // The server ends the session when the client disconnects, so the token cannot be resumed.
+            deleteAccessToken();
+            commandConnection.TerminateConnection();
+            return false;
+        }
+        return true;
     }
 
     /**
-     * Given a String message, returns the corresponding query type.
-     * @param message   the given message.
-     * @return          returns the corresponding query type.
+     * Terminates both connections after one of them was interrupted. The saved token and the partial images are kept,
+     * so that the next connection resumes the session and the downloads.
+     * @return  false, as the client has been disconnected.
      */
-    private static byte getQuery(String message) {
-        if (Pattern.compile(dateRegex).matcher(message).matches())
-            return Query_Image;
-        else if (message.toLowerCase().equals("weather"))
-            return Query_Weather;
-        else if (message.toLowerCase().equals("disconnect"))
-            return Query_Exit;
-        return 0;
+    private static boolean interrupt() {
+        System.err.println("Connection interrupted | The downloads are going to be resumed on the next connection");
+        if (fileConnection != null && fileConnection != commandConnection)
+            fileConnection.TerminateConnection();
+        commandConnection.TerminateConnection();
+        return false;
     }
 
     /**
-     * Creates an image from a byte array and places it the programs file.
-     * @param byteArray the byte array to create the image from.
+     * Terminates the connection after the server has sent a Query_Exit. The saved token is kept only if the session
+     * can still be resumed, that is if the server disconnected the client because of a query timeout.
+     * @param serverResponse    the Query_Exit sent from the server.
      */
-    private static void createImage(byte[] byteArray) {
+    private static void disconnect(TCPPayload serverResponse) {
+        if (!serverResponse.getMessage().equals("Query timeout"))
+            deleteAccessToken();
+        commandConnection.TerminateConnection();
+    }
+
+    /**
+     * Saves the access token so that the next connection can resume the session.
+     * @param token the access token given by the server.
+     */
+    private static void saveAccessToken(String token) {
         try {
-            ByteArrayInputStream inputStream = new ByteArrayInputStream(byteArray);
-            BufferedImage byteImage = ImageIO.read(inputStream);
+            Files.write(Paths.get(ACCESS_TOKEN_PATH), token.getBytes(StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
 
-            ImageIO.write(byteImage, IMAGE_FORMAT, new File(DEFAULT_IMAGE_PATH + IMAGE_FORMAT));
+    /**
+     * Reads the access token saved by an earlier connection.
+     * @return  the saved access token, or null if there is none.
+     */
+    private static String readAccessToken() {
+        Path path = Paths.get(ACCESS_TOKEN_PATH);
+        if (!Files.exists(path))
+            return null;
+        try {
+            String token = new String(Files.readAllBytes(path), StandardCharsets.UTF_8).trim();
+            return token.isEmpty() ? null : token;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
 
-        } catch (NullPointerException | IOException e) {
+    /**
+     * Deletes the saved access token.
+     */
+    private static void deleteAccessToken() {
+        try {
+            Files.deleteIfExists(Paths.get(ACCESS_TOKEN_PATH));
+        } catch (IOException e) {
             e.printStackTrace();
         }
     }
 
     /**
-     * Verifies the image given according to its hashcode.
-     * @param receivedImageHashcode the hashcode sent from the server.
-     * @param serverImage           the byte array sent from the server.
-     * @return                      true if the hashcode provided from the server matches the hashcode of the
-     *                              byte array
+     * Given a String message, returns the corresponding query type.
+     * @param message   the given message.
+     * @return          returns the corresponding query type.
      */
-    private static boolean verifyImage(String receivedImageHashcode, byte[] serverImage) {
-        int imageHashcode = Integer.parseInt(receivedImageHashcode);
-        return imageHashcode == Arrays.hashCode(serverImage);
+    private static byte getQuery(String message) {
+        if (Pattern.compile(imageQueryRegex).matcher(message).matches())
+            return Query_Image;
+        else if ((message.contains(DATE_RANGE_SEPARATOR) || message.contains(DATE_LIST_SEPARATOR))
+                && expandDates(message) != null)
+            return Query_Image_Batch;
+        else if (message.toLowerCase().equals("weather"))
+            return Query_Weather;
+        else if (message.toLowerCase().equals("disconnect"))
+            return Query_Exit;
+        return 0;
     }
 
     /**
-     * Displays an image that is constructed from a byte array.
-     * @param imageByteArray    the byte array to construct the image from.
+     * Displays an image that is read from a file.
+     * @param imagePath the file to read the image from.
      */
-    private static void showImage(byte[] imageByteArray) {
+    private static void showImage(Path imagePath) {
         JFrame frame = new JFrame("Image of the Day");
         frame.setDefaultCloseOperation(WindowConstants.DISPOSE_ON_CLOSE);
 
-        ImageIcon image = new ImageIcon(imageByteArray);
+        ImageIcon image = new ImageIcon(imagePath.toString());
         JLabel label = new JLabel();
         label.setIcon(image);
 
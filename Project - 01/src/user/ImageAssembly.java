@@ -0,0 +1,117 @@
+package user;
+
+import utils.ChunkTCPPayload;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.zip.CRC32C;
+
+import static utils.Utilities.*;
+
+/**
+ * An image being received in memory by AsyncStratoNetClient, the in-memory counterpart of ImageDownload. Each chunk is
+ * written at its own offset and verified against its checksum as soon as it is received, a corrupted chunk is
+ * requested again on its own, and the whole image is verified against the digest sent from the server once every
+ * chunk is received.
+ */
+class ImageAssembly {
+
+    private final String query;
+    private final String imageHash;
+    private final CRC32C chunkChecksum;
+    private final SortedMap<Long, Integer> holes;
+    private byte[] bytes;
+    private long outstanding;
+    private ChunkTCPPayload chunk;
+    private int chunkPosition;
+    private int retries;
+
+    /**
+     * @param query     the message of the image query, which the range requests and the report are sent with.
+     * @param imageHash the digest of the image sent from the server.
+     */
+    ImageAssembly(String query, String imageHash) {
+        this.query = query;
+        this.imageHash = imageHash;
+        this.chunkChecksum = new CRC32C();
+        this.holes = new TreeMap<>();
+    }
+
+    /**
+     * Checks the header of a chunk of the image before its bytes are written.
+     *
+     * @param header the header of the chunk.
+     * @throws IOException if the image is too large to be held in memory, or the chunk does not belong to the image.
+     */
+    void beginChunk(ChunkTCPPayload header) throws IOException {
+        if (bytes == null) {
+            if (header.getTotal() > Integer.MAX_VALUE - 8)
+                throw new IOException("Image of " + query + " is too large: " + header.getTotal() + " bytes");
+            bytes = new byte[(int) header.getTotal()];
+            outstanding = header.getTotal() - header.getOffset();
+        } else if (header.getTotal() != bytes.length) {
+            throw new IOException("Expected a chunk of an image of " + bytes.length + " bytes, received one of "
+                    + header.getTotal());
+        }
+        chunk = header;
+        chunkPosition = (int) header.getOffset();
+        chunkChecksum.reset();
+    }
+
+    /**
+     * Copies bytes of the current chunk out of the given buffer.
+     *
+     * @param buffer the buffer holding the bytes, its position is moved past them.
+     * @param length the number of bytes to be copied.
+     */
+    void write(ByteBuffer buffer, int length) {
+        buffer.get(bytes, chunkPosition, length);
+        chunkChecksum.update(bytes, chunkPosition, length);
+        chunkPosition += length;
+    }
+
+    /**
+     * Verifies the current chunk against its checksum once its bytes are written. A corrupted chunk is requested again
+     * at most MAX_CHUNK_RETRIES times for the whole image.
+     *
+     * @return the message of a range request that asks for the corrupted chunk again, or null if the chunk is intact
+     * or is not going to be requested anymore.
+     */
+    String endChunk() {
+        outstanding -= chunk.getSize();
+        if ((int) chunkChecksum.getValue() == chunk.getChecksum()) {
+            holes.remove(chunk.getOffset());
+            return null;
+        }
+        holes.put(chunk.getOffset(), chunk.getSize());
+        if (++retries > MAX_CHUNK_RETRIES)
+            return null;
+        outstanding += chunk.getSize();
+        return query + RANGE_SEPARATOR + chunk.getOffset() + RANGE_SEPARATOR + chunk.getSize();
+    }
+
+    /**
+     * @return true if every byte that was requested from the server has been received, whether intact or not.
+     */
+    boolean isDone() {
+        return bytes != null && outstanding <= 0;
+    }
+
+    /**
+     * @return true if every chunk of the image has been received intact and the image matches the digest sent from
+     * the server.
+     */
+    boolean isValid() {
+        if (!isDone() || !holes.isEmpty())
+            return false;
+        CRC32C digest = new CRC32C();
+        digest.update(bytes, 0, bytes.length);
+        return imageHash.equals(toDigest(digest.getValue()));
+    }
+
+    byte[] getBytes() {
+        return bytes;
+    }
+}
@@ -0,0 +1,109 @@
+package user;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static utils.Utilities.*;
+
+/**
+ * The images the client has downloaded, keyed by their query, along with their digests. The index is kept in
+ * IMAGE_CACHE_INDEX, each line holding the query, the digest, the size and the modification time of an image, so that
+ * an image that was changed or deleted since it was downloaded is not taken for an up to date copy. The digest of a
+ * cached image is sent along with its query, and the server answers with a Query_Not_Modified instead of the image if
+ * the image has not changed.
+ */
+public class ImageCache {
+
+    private final Path indexPath;
+    private final Map<String, String[]> entries;
+
+    public ImageCache() {
+        this.indexPath = Paths.get(IMAGE_CACHE_INDEX);
+        this.entries = new LinkedHashMap<>();
+        load();
+    }
+
+    /**
+     * Reads the index saved by an earlier connection, the malformed lines are dropped.
+     */
+    private void load() {
+        if (!Files.exists(indexPath))
+            return;
+        try {
+            for (String line : Files.readAllLines(indexPath, StandardCharsets.UTF_8)) {
+                String[] entry = line.split(DIGEST_SEPARATOR);
+                if (entry.length == 4)
+                    entries.put(entry[0], entry);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Given an image query, returns the message it is sent with: the query followed by the digest of the cached copy
+     * of the image if there is one.
+     * @param query the image query.
+     * @return      the message of the image query.
+     */
+    public String conditionalQuery(String query) {
+        String digest = getDigest(query);
+        return digest == null ? query : query + DIGEST_SEPARATOR + digest;
+    }
+
+    /**
+     * @param query the image query.
+     * @return      the digest of the cached copy of the image, or null if there is none or it has changed since it was
+     *              downloaded.
+     */
+    public String getDigest(String query) {
+        String[] entry = entries.get(query);
+        if (entry == null)
+            return null;
+        Path image = ImageDownload.getImagePath(query);
+        try {
+            if (Files.exists(image) && Files.size(image) == Long.parseLong(entry[2])
+                    && Files.getLastModifiedTime(image).toMillis() == Long.parseLong(entry[3]))
+                return entry[1];
+        } catch (IOException | NumberFormatException e) {
+            e.printStackTrace();
+        }
+        entries.remove(query);
+        save();
+        return null;
+    }
+
+    /**
+     * Adds a downloaded image to the cache, or replaces the earlier copy of the image.
+     * @param query     the image query.
+     * @param digest    the digest of the image.
+     */
+    public void put(String query, String digest) {
+        Path image = ImageDownload.getImagePath(query);
+        try {
+            entries.put(query, new String[]{query, digest, Long.toString(Files.size(image)),
+                    Long.toString(Files.getLastModifiedTime(image).toMillis())});
+            save();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void save() {
+        List<String> lines = new ArrayList<>();
+        for (String[] entry : entries.values())
+            lines.add(String.join(DIGEST_SEPARATOR, entry));
+        try {
+            Files.write(indexPath, lines, StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,272 @@
+package user;
+
+import utils.ChunkTCPPayload;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.zip.CRC32C;
+
+import static utils.Utilities.*;
+
+/**
+ * An image being downloaded on the file connection in reply to a single query. The image is written to a partial file
+ * next to a meta file that holds the date and the digest of the image, so that an interrupted download is resumed by a
+ * later connection from the end of the partial file, as long as the server still has the same image. The digest of
+ * the image, the CRC32C checksum of the whole image, is computed chunk by chunk as the image arrives.
+ * <p>
+ * Each chunk is verified against its own checksum as soon as it is received. A corrupted chunk is left as a hole in
+ * the partial file and is requested again on its own, while the chunks that follow it keep being written, so that
+ * only the corrupted chunk is sent twice. The download keeps count of the bytes it requested and has not received
+ * yet, so that every chunk the server sends is read off the file connection before the download is over.
+ */
+public class ImageDownload {
+
+    private final int requestId;
+    private final String date;
+    private final String imageHash;
+    private final Path partialPath;
+    private final Path metaPath;
+    private FileChannel file;
+    private long position;
+    private long total;
+    private long outstanding;
+    private final CRC32C digest;
+    private final CRC32C chunkChecksum;
+    private ChunkTCPPayload chunk;
+    private long chunkPosition;
+    private boolean isResent;
+    private boolean isDigestStale;
+    private int retries;
+    private final SortedMap<Long, Integer> holes;
+
+    /**
+     * @param requestId the id of the query of the image.
+     * @param date      the date of the image.
+     * @param imageHash the digest of the image sent from the server.
+     */
+    public ImageDownload(int requestId, String date, String imageHash) {
+        this.requestId = requestId;
+        this.date = date;
+        this.imageHash = imageHash;
+        this.partialPath = Paths.get(getImagePath(date) + PARTIAL_IMAGE_SUFFIX);
+        this.metaPath = Paths.get(getImagePath(date) + PARTIAL_IMAGE_SUFFIX + PARTIAL_IMAGE_META_SUFFIX);
+        this.total = -1;
+        this.digest = new CRC32C();
+        this.chunkChecksum = new CRC32C();
+        this.holes = new TreeMap<>();
+    }
+
+    /**
+     * @param date  the date of an image.
+     * @return      the file the image of the given date is placed in once it is downloaded.
+     */
+    public static Path getImagePath(String date) {
+        return Paths.get(DEFAULT_IMAGE_PATH + date + "." + IMAGE_FORMAT);
+    }
+
+    /**
+     * Opens the partial file of the image. The download is resumed from the end of the partial file if it holds the
+     * beginning of the same image, and starts over otherwise.
+     * @return  the offset the image is to be requested from.
+     * @throws IOException  if the partial file could not be opened or read.
+     */
+    public long open() throws IOException {
+        file = FileChannel.open(partialPath, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        String[] saved = readMeta(metaPath);
+        if (saved != null && saved[0].equals(date) && saved[1].equals(imageHash)) {
+            position = file.size();
+        } else {
+            Files.write(metaPath, (date + "\n" + imageHash).getBytes(StandardCharsets.UTF_8));
+            position = 0;
+            file.truncate(0);
+        }
+        computeDigest();
+        return position;
+    }
+
+    /**
+     * Computes the digest over the bytes the partial file holds, up to the current position.
+     */
+    private void computeDigest() throws IOException {
+        digest.reset();
+        ByteBuffer buffer = ByteBuffer.allocate(IMAGE_CHUNK_SIZE);
+        for (long read = 0; read < position; ) {
+            buffer.clear().limit((int) Math.min(buffer.capacity(), position - read));
+            int n = file.read(buffer, read);
+            if (n < 0)
+                break;
+            buffer.flip();
+            digest.update(buffer);
+            read += n;
+        }
+        isDigestStale = false;
+    }
+
+    /**
+     * Checks the header of a chunk of the image before its bytes are written. The server sends the image from its first
+     * byte if it could not serve the requested range, in which case the download starts over.
+     * @param header    the header of the chunk.
+     * @throws IOException  if the chunk neither follows the bytes received so far nor fills a hole.
+     */
+    public void beginChunk(ChunkTCPPayload header) throws IOException {
+        if (total < 0) {
+            if (header.getOffset() == 0 && position != 0) {
+                file.truncate(0);
+                position = 0;
+                digest.reset();
+            }
+            total = header.getTotal();
+            outstanding = total - header.getOffset();
+        }
+        isResent = header.getOffset() != position;
+        if (isResent && !holes.containsKey(header.getOffset()))
+            throw new IOException("Expected a chunk of " + date + " at " + position + ", received one at "
+                    + header.getOffset());
+        chunk = header;
+        chunkPosition = header.getOffset();
+        chunkChecksum.reset();
+    }
+
+    /**
+     * Writes bytes of the current chunk into the partial file.
+     * @param bytes     the array holding the bytes.
+     * @param length    the number of bytes to be written from the start of the array.
+     * @throws IOException  if the partial file could not be written.
+     */
+    public void write(byte[] bytes, int length) throws IOException {
+        chunkChecksum.update(bytes, 0, length);
+        if (!isResent)
+            digest.update(bytes, 0, length);
+        ByteBuffer buffer = ByteBuffer.wrap(bytes, 0, length);
+        while (buffer.hasRemaining())
+            chunkPosition += file.write(buffer, chunkPosition);
+        if (!isResent)
+            position = chunkPosition;
+    }
+
+    /**
+     * Verifies the current chunk against its checksum once its bytes are written. A corrupted chunk is left as a hole
+     * to be requested again, at most MAX_CHUNK_RETRIES times for the whole image.
+     * @return  the message of a range request that asks for the corrupted chunk again, or null if the chunk is intact
+     *          or is not going to be requested anymore.
+     */
+    public String endChunk() {
+        outstanding -= chunk.getSize();
+        if ((int) chunkChecksum.getValue() == chunk.getChecksum()) {
+            holes.remove(chunk.getOffset());
+            return null;
+        }
+        // The digest has been computed over the corrupted bytes, so it is computed again once the hole is filled.
+        isDigestStale = true;
+        holes.put(chunk.getOffset(), chunk.getSize());
+        if (++retries > MAX_CHUNK_RETRIES)
+            return null;
+        outstanding += chunk.getSize();
+        return date + RANGE_SEPARATOR + chunk.getOffset() + RANGE_SEPARATOR + chunk.getSize();
+    }
+
+    /**
+     * @return  true if every byte of the image has been received intact.
+     */
+    public boolean isComplete() {
+        return total >= 0 && position >= total && holes.isEmpty();
+    }
+
+    /**
+     * @return  true if every byte that was requested from the server has been received, whether intact or not.
+     */
+    public boolean isDone() {
+        return total >= 0 && outstanding <= 0;
+    }
+
+    /**
+     * Closes the partial file. A complete image replaces the previous image of its date if its digest matches the
+     * digest sent from the server and is deleted otherwise. The partial file of an incomplete image is kept up to its
+     * first corrupted chunk, so that its download is resumed by the next connection.
+     * @return  true if the image is complete and valid.
+     */
+    public boolean finish() {
+        boolean isValid = false;
+        try {
+            if (file != null) {
+                if (isComplete() && isDigestStale)
+                    computeDigest();
+                else if (!holes.isEmpty())
+                    file.truncate(holes.firstKey());
+                file.close();
+            }
+            if (!isComplete())
+                return false;
+            isValid = imageHash.equals(toDigest(digest.getValue()));
+            if (isValid)
+                Files.move(partialPath, getImagePath(date), StandardCopyOption.REPLACE_EXISTING);
+            else
+                Files.deleteIfExists(partialPath);
+            Files.deleteIfExists(metaPath);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        return isValid;
+    }
+
+    /**
+     * Finds the images whose download was interrupted on an earlier connection.
+     * @return  the dates of the images whose partial file is kept.
+     */
+    public static List<String> findInterrupted() {
+        List<String> dates = new ArrayList<>();
+        String suffix = "." + IMAGE_FORMAT + PARTIAL_IMAGE_SUFFIX + PARTIAL_IMAGE_META_SUFFIX;
+        try (DirectoryStream<Path> metaFiles = Files.newDirectoryStream(Paths.get("."),
+                DEFAULT_IMAGE_PATH + "*" + suffix)) {
+            for (Path metaFile : metaFiles) {
+                String[] saved = readMeta(metaFile);
+                if (saved != null)
+                    dates.add(saved[0]);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        return dates;
+    }
+
+    /**
+     * Reads the date and the digest of an image from its meta file.
+     * @return  an array holding the date and the digest of the image, or null if there is no valid meta file.
+     */
+    private static String[] readMeta(Path metaPath) {
+        if (!Files.exists(metaPath))
+            return null;
+        try {
+            String[] saved = new String(Files.readAllBytes(metaPath), StandardCharsets.UTF_8).trim().split("\n");
+            return saved.length == 2 ? saved : null;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    public int getRequestId() {
+        return requestId;
+    }
+
+    public String getDate() {
+        return date;
+    }
+
+    public String getDigest() {
+        return imageHash;
+    }
+}
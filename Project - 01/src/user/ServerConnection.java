@@ -1,11 +1,13 @@
 package user;
 
-import utils.QueryTCPPayload;
+import utils.ChunkTCPPayload;
+import utils.FrameCodec;
 import utils.TCPPayload;
 
 import java.io.*;
 import java.net.Socket;
 import java.util.Arrays;
+import java.util.Map;
 
 import static utils.Utilities.*;
 
@@ -13,13 +15,21 @@ public class ServerConnection {
 
     private final String serverAddress;
     private final int serverPort;
+    private final FrameCodec codec;
+    private final byte[] chunk;
+    private int nextRequestId;
     private Socket socket;
     private DataInputStream reader;
     private DataOutputStream writer;
+    private Map<Integer, ImageDownload> downloads;
+    private ServerConnection rangeConnection;
+    private String token;
 
     public ServerConnection(String serverAddress, int serverPort) {
         this.serverAddress = serverAddress;
         this.serverPort = serverPort;
+        this.codec = new FrameCodec();
+        this.chunk = new byte[IMAGE_CHUNK_SIZE];
     }
 
     /**
@@ -38,118 +48,199 @@ public class ServerConnection {
     }
 
     /**
-     * Writes the given message into an output stream and then reads from an input stream and finally, returns an
-     * object containing the data read from the input stream.
-     * @param message   the given message to be written into the output stream.
-     * @return          returns an object containing the data read from the input stream.
+     * Writes a message frame into the output stream, then reads the response of the server from the input stream and
+     * returns it.
+     * @param phase     the phase of the request.
+     * @param type      the type of the request.
+     * @param message   the message of the request.
+     * @return          returns an object containing the response read from the input stream.
      */
-    public TCPPayload sendRequest(byte[] message) {
-        TCPPayload response = null;
-        byte phase;
-        byte type;
-        int size;
-        String msg;
+    public TCPPayload sendRequest(byte phase, byte type, String message) {
+        try {
+            codec.writeMessage(writer, phase, type, message);
+            return codec.readMessage(reader);
+        } catch (IOException | NullPointerException e) {
+            e.printStackTrace();
+        }
+        return null;
+    }
 
+    /**
+     * Writes a query frame into the output stream, then reads the response of the server from the input stream and
+     * returns it. Only used when no other query is waiting for its reply.
+     * @param phase     the phase of the request.
+     * @param type      the type of the request.
+     * @param message   the message of the request.
+     * @param token     the access token of the client.
+     * @return          returns an object containing the response read from the input stream.
+     */
+    public TCPPayload sendQueryRequest(byte phase, byte type, String message, String token) {
         try {
-            writer.write(message);
+            codec.writeQuery(writer, phase, type, ++nextRequestId, message, token);
+            return codec.readMessage(reader);
+        } catch (IOException | NullPointerException e) {
+            e.printStackTrace();
+        }
+        return null;
+    }
 
-            phase = reader.readByte();
-            type = reader.readByte();
-            size = reader.readInt();
-            msg = new String(reader.readNBytes(size));
+    /**
+     * Writes a query frame of a new request into the output stream without waiting for its reply, so that several
+     * queries may be pipelined. The reply carries the returned request id.
+     * @param phase     the phase of the request.
+     * @param type      the type of the request.
+     * @param message   the message of the request.
+     * @param token     the access token of the client.
+     * @return          the id of the request, or NO_REQUEST_ID if the frame could not be written.
+     */
+    public int sendQuery(byte phase, byte type, String message, String token) {
+        return sendQuery(phase, type, message, token, 0);
+    }
 
-            response = new TCPPayload(phase, type, size, msg);
+    /**
+     * Writes a query frame of a new request into the output stream without waiting for its reply, reserving the
+     * given number of request ids after the id of the request. A batch query reserves an id for each of its images,
+     * which the server sends with the ids that follow the id of the batch.
+     * @param phase         the phase of the request.
+     * @param type          the type of the request.
+     * @param message       the message of the request.
+     * @param token         the access token of the client.
+     * @param reservedIds   the number of request ids to be reserved after the id of the request.
+     * @return              the id of the request, or NO_REQUEST_ID if the frame could not be written.
+     */
+    public int sendQuery(byte phase, byte type, String message, String token, int reservedIds) {
+        int requestId = ++nextRequestId;
+        nextRequestId += reservedIds;
+        return sendQuery(requestId, phase, type, message, token) ? requestId : NO_REQUEST_ID;
+    }
 
+    /**
+     * Writes a query frame that belongs to an earlier request into the output stream, such as the range request or
+     * the report of an image.
+     * @param requestId the id of the request.
+     * @param phase     the phase of the request.
+     * @param type      the type of the request.
+     * @param message   the message of the request.
+     * @param token     the access token of the client.
+     * @return          true if the frame is written and false otherwise.
+     */
+    public boolean sendQuery(int requestId, byte phase, byte type, String message, String token) {
+        try {
+            codec.writeQuery(writer, phase, type, requestId, message, token);
+            return true;
         } catch (IOException | NullPointerException e) {
             e.printStackTrace();
         }
-        return response;
+        return false;
     }
 
     /**
-     * Writes the given message into an output stream and then reads from an input stream and finally, returns an
-     * object containing the data read from the input stream.
-     * @param message   the given message to be written into the output stream.
-     * @return          returns an object containing the data read from the input stream.
+     * Writes the token of the session as the first frame of the file connection, which binds the connection to the
+     * session on the server.
+     * @param token the access token of the client.
+     * @return      true if the frame is written and false otherwise.
      */
-    public QueryTCPPayload sendQueryRequest(byte[] message) {
-        QueryTCPPayload response = null;
-        byte phase;
-        byte type;
-        int mSize;
-        int tSize;
-        String token;
-        String msg;
-
+    public boolean bind(String token) {
         try {
-            writer.write(message);
-
-            phase = reader.readByte();
-            type = reader.readByte();
-            mSize = reader.readInt();
-            tSize = reader.readInt();
-            msg = new String(reader.readNBytes(mSize));
-            token = new String(reader.readNBytes(tSize));
-
-            response = new QueryTCPPayload(phase, type, mSize, tSize, msg, token);
-
+            codec.writeMessage(writer, Auth_Phase, Auth_Bind, token);
+            return true;
         } catch (IOException | NullPointerException e) {
             e.printStackTrace();
         }
-        return response;
+        return false;
     }
 
     /**
-     * Writes the given message into an output stream and then reads from an input stream and finally, returns an
-     * object containing the data read from the input stream.
-     * @param message   the given message to be written into the output stream.
-     * @return          returns an object containing the data read from the input stream.
+     * Sets the downloads the chunks received on this connection are handed to. On a single port the chunks are
+     * interleaved with the replies on the command connection, so they are received while the replies are read.
+     * @param downloads         the downloads, keyed by the ids of their requests. The map is filled as the digests of
+     *                          the images arrive.
+     * @param rangeConnection   the connection the corrupted chunks are requested again on.
+     * @param token             the token of the session.
      */
-    public TCPPayload sendImageRequest(byte[] message) {
-        TCPPayload response = null;
-        byte phase;
-        byte type;
-        int size;
-        byte[] msg;
+    public void expectImages(Map<Integer, ImageDownload> downloads, ServerConnection rangeConnection, String token) {
+        this.downloads = downloads;
+        this.rangeConnection = rangeConnection;
+        this.token = token;
+    }
 
+    /**
+     * Receives the chunks of the expected downloads from the input stream until every download is done. The chunks of
+     * the images are interleaved on the connection, so each chunk is handed to the download of its request id. The
+     * chunks go straight to the partial files, so the images are never held in memory as a whole. A chunk that does
+     * not match its checksum is requested again on the range connection.
+     * @return  true if every download is done and false if a connection was interrupted.
+     */
+    public boolean receiveImages() {
         try {
-            writer.write(message);
+            while (!isEveryImageDone()) {
+                TCPPayload frame = codec.readFrame(reader);
+                if (!(frame instanceof ChunkTCPPayload))
+                    throw new IOException("Received a message of request " + frame.getRequestId()
+                            + " while receiving images");
+                receiveChunk((ChunkTCPPayload) frame);
+            }
+            return true;
+        } catch (IOException | NullPointerException e) {
+            e.printStackTrace();
+        }
+        return false;
+    }
 
-            phase = reader.readByte();
-            type = reader.readByte();
-            size = reader.readInt();
-            msg = reader.readNBytes(size);
+    private boolean isEveryImageDone() {
+        for (ImageDownload download : downloads.values())
+            if (!download.isDone())
+                return false;
+        return true;
+    }
 
-            response = new TCPPayload(phase, type, size, msg);
+    /**
+     * Hands the chunk whose header has been read to the download of its request id, and requests the chunk again if it
+     * does not match its checksum.
+     * @param header    the header of the chunk.
+     * @throws IOException  if the chunk could not be read or written, or could not be requested again.
+     */
+    private void receiveChunk(ChunkTCPPayload header) throws IOException {
+        ImageDownload download = downloads == null ? null : downloads.get(header.getRequestId());
+        if (download == null)
+            throw new IOException("Received a chunk of an unknown request: " + header.getRequestId());
+        download.beginChunk(header);
 
-        } catch (IOException | NullPointerException e) {
-            e.printStackTrace();
+        long left = header.getSize();
+        while (left > 0) {
+            int n = reader.read(chunk, 0, (int) Math.min(chunk.length, left));
+            if (n < 0)
+                throw new EOFException("Image of " + download.getDate() + " ended in the middle of a chunk");
+            download.write(chunk, n);
+            left -= n;
+        }
+        String range = download.endChunk();
+        if (range != null) {
+            System.err.println("Chunk of " + download.getDate() + " at byte " + header.getOffset()
+                    + " is corrupted | Requesting it again");
+            if (!rangeConnection.sendQuery(download.getRequestId(), Query_Phase, Query_Image_Range, range, token))
+                throw new IOException("Chunk of " + download.getDate() + " could not be requested again");
         }
-        return response;
     }
 
     /**
-     * Reads the input written into the input stream and returns an object containing the data read from the input
-     * stream.
+     * Reads the next message from the input stream and returns an object containing the data read from the input
+     * stream. The chunks that arrive before the message are handed to their downloads.
      * @return  an object containing the data read from the input stream.
      *
      */
     public TCPPayload readFromServer() {
-        TCPPayload response = null;
-        byte phase;
-        byte type;
-        int size;
-        String msg;
         try {
-            phase = reader.readByte();
-            type = reader.readByte();
-            size = reader.readInt();
-            msg = new String(reader.readNBytes(size));
-            response = new TCPPayload(phase, type, size, msg);
+            TCPPayload frame = codec.readFrame(reader);
+            while (frame instanceof ChunkTCPPayload) {
+                receiveChunk((ChunkTCPPayload) frame);
+                frame = codec.readFrame(reader);
+            }
+            return frame;
         } catch (IOException e) {
             e.printStackTrace();
         }
-        return response;
+        return null;
     }
 
     /**
@@ -0,0 +1,49 @@
+package utils;
+
+/**
+ * An object to hold the header of a chunk of an image, which is a range of the bytes of the image.
+ */
+public class ChunkTCPPayload extends TCPPayload {
+
+    private long offset;
+    private long total;
+    private int checksum;
+
+    public ChunkTCPPayload(byte phase, byte type, int requestId, int size, long offset, long total, int checksum) {
+        super(phase, type, requestId, size, (String) null);
+        this.offset = offset;
+        this.total = total;
+        this.checksum = checksum;
+    }
+
+    /**
+     * @return the offset of the first byte of the chunk in the image.
+     */
+    public long getOffset() {
+        return this.offset;
+    }
+
+    /**
+     * @return the size of the whole image in bytes.
+     */
+    public long getTotal() {
+        return this.total;
+    }
+
+    /**
+     * @return the CRC32C checksum of the bytes of the chunk.
+     */
+    public int getChecksum() {
+        return this.checksum;
+    }
+
+    @Override
+    public String toString() {
+        return super.toString() +
+                " ChunkTCPPayload{" +
+                "offset=" + offset +
+                ", total=" + total +
+                ", checksum=" + checksum +
+                '}';
+    }
+}
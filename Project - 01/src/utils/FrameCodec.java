@@ -0,0 +1,514 @@
+package utils;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import static utils.Utilities.*;
+
+/**
+ * Encodes and decodes the frames of the StratoNet protocol, for both the client and the server. There are three kinds
+ * of frames:
+ * <p>
+ * A message frame: channel (1 byte), phase (1 byte), type (1 byte), request id (4 bytes), size of the message
+ * (4 bytes), message.
+ * <p>
+ * A query frame: channel (1 byte), phase (1 byte), type (1 byte), request id (4 bytes), size of the message (4 bytes),
+ * size of the token (4 bytes), message, token.
+ * <p>
+ * A chunk frame: channel (1 byte), phase (1 byte), type (1 byte), request id (4 bytes), size of the chunk (4 bytes),
+ * offset of the chunk in the image (8 bytes), size of the whole image (8 bytes), CRC32C checksum of the chunk
+ * (4 bytes), chunk. An image is sent as a sequence of chunk frames, so that a client whose download was interrupted, or
+ * who received a chunk that does not match its checksum, is able to request the rest of the image only.
+ * <p>
+ * The channel tells the command frames, that is the message and the query frames, from the chunk frames of the file
+ * channel. Each channel has a connection of its own by default, while a single-port server sends the frames of both
+ * channels on the command connection, and the reader of that connection tells them apart by their first byte.
+ * <p>
+ * The request id is chosen by the client for each query and is copied into every frame the server sends in reply, so
+ * a client may pipeline several queries and match the replies, which may come back in any order, to its queries. The
+ * frames of the authentication phase, which is lock-step, carry NO_REQUEST_ID.
+ * <p>
+ * The sizes are the lengths of the messages once encoded in UTF-8, and add up to at most MAX_FRAME_SIZE per frame: a
+ * frame that declares a negative or a larger size is rejected as malformed before anything is sized by it. The
+ * static methods encode the frames into and decode them out of a given buffer, without any intermediate array. A
+ * FrameCodec object holds a buffer of its own that is reused by every frame it writes into or reads from a stream, so
+ * a connection that keeps one codec produces no garbage per frame apart from the decoded Strings.
+ */
+public final class FrameCodec {
+
+    public static final int MESSAGE_HEADER_SIZE = 1 + 1 + 1 + 4 + 4;
+    public static final int QUERY_HEADER_SIZE = 1 + 1 + 1 + 4 + 4 + 4;
+    public static final int CHUNK_HEADER_SIZE = 1 + 1 + 1 + 4 + 4 + 8 + 8 + 4;
+    // The largest body of a message or query frame, the sizes of its message and token added up.
+    public static final int MAX_FRAME_SIZE = 1024 * 1024;
+
+    private static final int PHASE_OFFSET = 1;
+    private static final int TYPE_OFFSET = PHASE_OFFSET + 1;
+    private static final int REQUEST_ID_OFFSET = TYPE_OFFSET + 1;
+    private static final int SIZE_OFFSET = REQUEST_ID_OFFSET + 4;
+    private static final int TOKEN_SIZE_OFFSET = SIZE_OFFSET + 4;
+
+    private ByteBuffer buffer;
+
+    public FrameCodec() {
+        this.buffer = ByteBuffer.allocate(FRAME_BUFFER_SIZE);
+    }
+
+    /**
+     * Given a String, returns the length of the String once encoded in UTF-8, without encoding it.
+     * @param string    the String to be measured.
+     * @return          the number of bytes of the String in UTF-8.
+     */
+    public static int utf8Length(String string) {
+        int length = 0;
+        for (int i = 0; i < string.length(); i++) {
+            char c = string.charAt(i);
+            if (c < 0x80) {
+                length++;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < string.length()
+                    && Character.isLowSurrogate(string.charAt(i + 1))) {
+                length += 4;
+                i++;
+            } else if (Character.isSurrogate(c)) {
+                // A lone surrogate is encoded as '?', like String.getBytes does.
+                length++;
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+
+    /**
+     * Given a buffer and a String, writes the String into the buffer in UTF-8.
+     * @param out       the buffer to write into, which must have room for utf8Length(string) bytes.
+     * @param string    the String to be written.
+     */
+    public static void putUtf8(ByteBuffer out, String string) {
+        for (int i = 0; i < string.length(); i++) {
+            char c = string.charAt(i);
+            if (c < 0x80) {
+                out.put((byte) c);
+            } else if (c < 0x800) {
+                out.put((byte) (0xC0 | (c >> 6)));
+                out.put((byte) (0x80 | (c & 0x3F)));
+            } else if (Character.isHighSurrogate(c) && i + 1 < string.length()
+                    && Character.isLowSurrogate(string.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, string.charAt(++i));
+                out.put((byte) (0xF0 | (codePoint >> 18)));
+                out.put((byte) (0x80 | ((codePoint >> 12) & 0x3F)));
+                out.put((byte) (0x80 | ((codePoint >> 6) & 0x3F)));
+                out.put((byte) (0x80 | (codePoint & 0x3F)));
+            } else if (Character.isSurrogate(c)) {
+                out.put((byte) '?');
+            } else {
+                out.put((byte) (0xE0 | (c >> 12)));
+                out.put((byte) (0x80 | ((c >> 6) & 0x3F)));
+                out.put((byte) (0x80 | (c & 0x3F)));
+            }
+        }
+    }
+
+    /**
+     * @param message   the message of a message frame.
+     * @return          the length in bytes of the message frame holding the message.
+     */
+    public static int messageFrameLength(String message) {
+        return MESSAGE_HEADER_SIZE + utf8Length(message);
+    }
+
+    /**
+     * @param message   the message of a query frame.
+     * @param token     the token of a query frame.
+     * @return          the length in bytes of the query frame holding the message and the token.
+     */
+    public static int queryFrameLength(String message, String token) {
+        return QUERY_HEADER_SIZE + utf8Length(message) + utf8Length(token);
+    }
+
+    /**
+     * Writes the header of a message frame whose message is written separately, such as an image.
+     * @param out   the buffer to write into.
+     * @param phase the phase of the frame.
+     * @param type      the type of the frame.
+     * @param requestId the id of the request the frame belongs to.
+     * @param size      the size of the message in bytes.
+     */
+    public static void putHeader(ByteBuffer out, byte phase, byte type, int requestId, int size) {
+        out.put(COMMAND_CHANNEL).put(phase).put(type).putInt(requestId).putInt(size);
+    }
+
+    /**
+     * Writes the header of a chunk frame, whose chunk is written separately.
+     * @param out       the buffer to write into.
+     * @param phase     the phase of the frame.
+     * @param type      the type of the frame.
+     * @param requestId the id of the request the frame belongs to.
+     * @param size      the size of the chunk in bytes.
+     * @param offset    the offset of the first byte of the chunk in the image.
+     * @param total     the size of the whole image in bytes.
+     * @param checksum  the CRC32C checksum of the chunk.
+     */
+    public static void putChunkHeader(ByteBuffer out, byte phase, byte type, int requestId, int size, long offset,
+                                      long total, int checksum) {
+        out.put(FILE_CHANNEL).put(phase).put(type).putInt(requestId).putInt(size).putLong(offset).putLong(total)
+                .putInt(checksum);
+    }
+
+    /**
+     * Writes a message frame.
+     * @param out       the buffer to write into, which must have room for messageFrameLength(message) bytes.
+     * @param phase     the phase of the frame.
+     * @param type      the type of the frame.
+     * @param requestId the id of the request the frame belongs to.
+     * @param message   the message of the frame.
+     */
+    public static void putMessage(ByteBuffer out, byte phase, byte type, int requestId, String message) {
+        putHeader(out, phase, type, requestId, utf8Length(message));
+        putUtf8(out, message);
+    }
+
+    /**
+     * Writes a query frame.
+     * @param out       the buffer to write into, which must have room for queryFrameLength(message, token) bytes.
+     * @param phase     the phase of the frame.
+     * @param type      the type of the frame.
+     * @param requestId the id of the request the frame belongs to.
+     * @param message   the message of the frame.
+     * @param token     the token of the frame.
+     */
+    public static void putQuery(ByteBuffer out, byte phase, byte type, int requestId, String message, String token) {
+        out.put(COMMAND_CHANNEL).put(phase).put(type).putInt(requestId).putInt(utf8Length(message))
+                .putInt(utf8Length(token));
+        putUtf8(out, message);
+        putUtf8(out, token);
+    }
+
+    /**
+     * Given a buffer, decodes a message frame from it.
+     * @param in    the buffer to decode the frame from, its position is moved past the frame.
+     * @return      a TCPPayload object holding the decoded frame, or null if the buffer does not hold a whole frame
+     *              yet, in which case the buffer is left as it is.
+     * @throws IOException  if the size of the frame is negative or larger than MAX_FRAME_SIZE.
+     */
+    public static TCPPayload decodeMessage(ByteBuffer in) throws IOException {
+        if (in.remaining() < MESSAGE_HEADER_SIZE)
+            return null;
+        int size = checkSize(in.getInt(in.position() + SIZE_OFFSET));
+        if (in.remaining() < MESSAGE_HEADER_SIZE + size)
+            return null;
+
+        in.get();
+        byte phase = in.get();
+        byte type = in.get();
+        int requestId = in.getInt();
+        in.getInt();
+        return new TCPPayload(phase, type, requestId, size, getUtf8(in, size));
+    }
+
+    /**
+     * Given a buffer, decodes a query frame from it.
+     * @param in    the buffer to decode the frame from, its position is moved past the frame.
+     * @return      a QueryTCPPayload object holding the decoded frame, or null if the buffer does not hold a whole
+     *              frame yet, in which case the buffer is left as it is.
+     * @throws IOException  if a size of the frame is negative or the sizes add up to more than MAX_FRAME_SIZE.
+     */
+    public static QueryTCPPayload decodeQuery(ByteBuffer in) throws IOException {
+        if (in.remaining() < QUERY_HEADER_SIZE)
+            return null;
+        int mSize = checkSize(in.getInt(in.position() + SIZE_OFFSET));
+        int tSize = checkSize(in.getInt(in.position() + TOKEN_SIZE_OFFSET));
+        checkSize((long) mSize + tSize);
+        if (in.remaining() < QUERY_HEADER_SIZE + mSize + tSize)
+            return null;
+
+        in.get();
+        byte phase = in.get();
+        byte type = in.get();
+        int requestId = in.getInt();
+        in.getInt();
+        in.getInt();
+        String message = getUtf8(in, mSize);
+        String token = getUtf8(in, tSize);
+        return new QueryTCPPayload(phase, type, requestId, mSize, tSize, message, token);
+    }
+
+    /**
+     * Given a buffer, decodes the next frame of a connection that may carry the frames of both channels. The chunk of
+     * a chunk frame is left in the buffer to be read separately.
+     * @param in    the buffer to decode the frame from, its position is moved past the frame, or past the header of a
+     *              chunk frame.
+     * @return      a ChunkTCPPayload object holding the header of a chunk frame, a TCPPayload object holding a message
+     *              frame, or null if the buffer does not hold a whole frame yet, in which case the buffer is left as
+     *              it is.
+     * @throws IOException  if the header of a chunk frame is malformed.
+     */
+    public static TCPPayload decodeFrame(ByteBuffer in) throws IOException {
+        if (!in.hasRemaining())
+            return null;
+        if (in.get(in.position()) == FILE_CHANNEL)
+            return decodeChunkHeader(in);
+        return decodeMessage(in);
+    }
+
+    /**
+     * Given a buffer, decodes the header of a chunk frame from it. The chunk is left in the buffer to be read
+     * separately.
+     * @param in    the buffer to decode the header from, its position is moved past the header.
+     * @return      a ChunkTCPPayload object holding the header, or null if the buffer does not hold a whole header
+     *              yet, in which case the buffer is left as it is.
+     * @throws IOException  if the header is malformed.
+     */
+    public static ChunkTCPPayload decodeChunkHeader(ByteBuffer in) throws IOException {
+        if (in.remaining() < CHUNK_HEADER_SIZE)
+            return null;
+        ChunkTCPPayload header = getChunkHeader(in, in.position());
+        in.position(in.position() + CHUNK_HEADER_SIZE);
+        return header;
+    }
+
+    /**
+     * Reads the header of a chunk frame that starts at the given index of a buffer, without moving its position.
+     */
+    private static ChunkTCPPayload getChunkHeader(ByteBuffer header, int start) throws IOException {
+        if (header.get(start) != FILE_CHANNEL)
+            throw new EOFException("Expected a chunk frame, received a frame of channel " + header.get(start));
+        int size = header.getInt(start + SIZE_OFFSET);
+        long offset = header.getLong(start + SIZE_OFFSET + 4);
+        long total = header.getLong(start + SIZE_OFFSET + 4 + 8);
+        if (size < 0 || offset < 0 || offset + size > total)
+            throw new EOFException("Malformed chunk: " + size + " bytes at " + offset + " of " + total);
+        int requestId = header.getInt(start + REQUEST_ID_OFFSET);
+        int checksum = header.getInt(start + SIZE_OFFSET + 4 + 8 + 8);
+        return new ChunkTCPPayload(header.get(start + PHASE_OFFSET), header.get(start + TYPE_OFFSET), requestId, size,
+                offset, total, checksum);
+    }
+
+    /**
+     * Checks a size read from the wire before any buffer is sized or read by it.
+     */
+    private static int checkSize(long size) throws IOException {
+        if (size < 0 || size > MAX_FRAME_SIZE)
+            throw new EOFException("Malformed frame size: " + size);
+        return (int) size;
+    }
+
+    /**
+     * Reads a String of the given length in UTF-8 from a heap buffer, without copying the bytes into a new array.
+     */
+    private static String getUtf8(ByteBuffer in, int length) {
+        String string = new String(in.array(), in.arrayOffset() + in.position(), length, StandardCharsets.UTF_8);
+        in.position(in.position() + length);
+        return string;
+    }
+
+    /**
+     * Writes a message frame of the authentication phase, which does not belong to any request, into a stream.
+     * @param out       the stream to write into.
+     * @param phase     the phase of the frame.
+     * @param type      the type of the frame.
+     * @param message   the message of the frame.
+     * @throws IOException  if the stream could not be written.
+     */
+    public void writeMessage(OutputStream out, byte phase, byte type, String message) throws IOException {
+        writeMessage(out, phase, type, NO_REQUEST_ID, message);
+    }
+
+    /**
+     * Writes a message frame into a stream through the buffer of this codec.
+     * @param out       the stream to write into.
+     * @param phase     the phase of the frame.
+     * @param type      the type of the frame.
+     * @param requestId the id of the request the frame belongs to.
+     * @param message   the message of the frame.
+     * @throws IOException  if the stream could not be written.
+     */
+    public void writeMessage(OutputStream out, byte phase, byte type, int requestId, String message)
+            throws IOException {
+        ByteBuffer frame = clear(messageFrameLength(message));
+        putMessage(frame, phase, type, requestId, message);
+        out.write(frame.array(), 0, frame.position());
+    }
+
+    /**
+     * Writes a query frame into a stream through the buffer of this codec.
+     * @param out       the stream to write into.
+     * @param phase     the phase of the frame.
+     * @param type      the type of the frame.
+     * @param requestId the id of the request the frame belongs to.
+     * @param message   the message of the frame.
+     * @param token     the token of the frame.
+     * @throws IOException  if the stream could not be written.
+     */
+    public void writeQuery(OutputStream out, byte phase, byte type, int requestId, String message, String token)
+            throws IOException {
+        ByteBuffer frame = clear(queryFrameLength(message, token));
+        putQuery(frame, phase, type, requestId, message, token);
+        out.write(frame.array(), 0, frame.position());
+    }
+
+    /**
+     * Writes the header of a message frame whose message is written separately into a stream.
+     * @param out   the stream to write into.
+     * @param phase the phase of the frame.
+     * @param type      the type of the frame.
+     * @param requestId the id of the request the frame belongs to.
+     * @param size      the size of the message in bytes.
+     * @throws IOException  if the stream could not be written.
+     */
+    public void writeHeader(OutputStream out, byte phase, byte type, int requestId, int size) throws IOException {
+        ByteBuffer frame = clear(MESSAGE_HEADER_SIZE);
+        putHeader(frame, phase, type, requestId, size);
+        out.write(frame.array(), 0, frame.position());
+    }
+
+    /**
+     * Writes the header of a chunk frame whose chunk is written separately into a stream.
+     * @param out       the stream to write into.
+     * @param phase     the phase of the frame.
+     * @param type      the type of the frame.
+     * @param requestId the id of the request the frame belongs to.
+     * @param size      the size of the chunk in bytes.
+     * @param offset    the offset of the first byte of the chunk in the image.
+     * @param total     the size of the whole image in bytes.
+     * @param checksum  the CRC32C checksum of the chunk.
+     * @throws IOException  if the stream could not be written.
+     */
+    public void writeChunkHeader(OutputStream out, byte phase, byte type, int requestId, int size, long offset,
+                                 long total, int checksum) throws IOException {
+        ByteBuffer frame = clear(CHUNK_HEADER_SIZE);
+        putChunkHeader(frame, phase, type, requestId, size, offset, total, checksum);
+        out.write(frame.array(), 0, frame.position());
+    }
+
+    /**
+     * Reads a message frame from a stream through the buffer of this codec.
+     * @param in    the stream to read from.
+     * @return      a TCPPayload object holding the frame.
+     * @throws IOException  if the stream could not be read or ended in the middle of the frame.
+     */
+    public TCPPayload readMessage(DataInputStream in) throws IOException {
+        ByteBuffer frame = read(in, MESSAGE_HEADER_SIZE, SIZE_OFFSET, -1);
+        return decodeMessage(frame);
+    }
+
+    /**
+     * Reads a query frame from a stream through the buffer of this codec.
+     * @param in    the stream to read from.
+     * @return      a QueryTCPPayload object holding the frame.
+     * @throws IOException  if the stream could not be read or ended in the middle of the frame.
+     */
+    public QueryTCPPayload readQuery(DataInputStream in) throws IOException {
+        ByteBuffer frame = read(in, QUERY_HEADER_SIZE, SIZE_OFFSET, TOKEN_SIZE_OFFSET);
+        return decodeQuery(frame);
+    }
+
+    /**
+     * Reads a message frame whose message is made of raw bytes, such as an image, from a stream.
+     * @param in    the stream to read from.
+     * @return      a TCPPayload object holding the frame and its bytes.
+     * @throws IOException  if the stream could not be read or ended in the middle of the frame.
+     */
+    public TCPPayload readBytes(DataInputStream in) throws IOException {
+        TCPPayload header = readHeader(in);
+        byte[] message = new byte[header.getSize()];
+        in.readFully(message);
+        return new TCPPayload(header.getPhase(), header.getType(), header.getRequestId(), header.getSize(), message);
+    }
+
+    /**
+     * Reads the header of a message frame from a stream, leaving its message in the stream to be read separately.
+     * @param in    the stream to read from.
+     * @return      a TCPPayload object holding the phase, the type and the size of the frame, without a message.
+     * @throws IOException  if the stream could not be read or ended in the middle of the header.
+     */
+    public TCPPayload readHeader(DataInputStream in) throws IOException {
+        ByteBuffer header = clear(MESSAGE_HEADER_SIZE);
+        in.readFully(header.array(), 0, MESSAGE_HEADER_SIZE);
+        int size = checkSize(header.getInt(SIZE_OFFSET));
+        int requestId = header.getInt(REQUEST_ID_OFFSET);
+        return new TCPPayload(header.get(PHASE_OFFSET), header.get(TYPE_OFFSET), requestId, size, (String) null);
+    }
+
+    /**
+     * Reads the header of a chunk frame from a stream, leaving its chunk in the stream to be read separately.
+     * @param in    the stream to read from.
+     * @return      a ChunkTCPPayload object holding the header of the frame.
+     * @throws IOException  if the stream could not be read, ended in the middle of the header or the header does not
+     *                      describe a range of the image.
+     */
+    public ChunkTCPPayload readChunkHeader(DataInputStream in) throws IOException {
+        return readChunkHeader(in, in.readByte());
+    }
+
+    /**
+     * Reads the next frame of a connection that may carry the frames of both channels, leaving the chunk of a chunk
+     * frame in the stream to be read separately.
+     * @param in    the stream to read from.
+     * @return      a ChunkTCPPayload object holding the header of a chunk frame, or a TCPPayload object holding a
+     *              message frame.
+     * @throws IOException  if the stream could not be read, ended in the middle of the frame or the frame is malformed.
+     */
+    public TCPPayload readFrame(DataInputStream in) throws IOException {
+        byte channel = in.readByte();
+        if (channel == FILE_CHANNEL)
+            return readChunkHeader(in, channel);
+        return decodeMessage(read(in, channel, MESSAGE_HEADER_SIZE, SIZE_OFFSET, -1));
+    }
+
+    private ChunkTCPPayload readChunkHeader(DataInputStream in, byte channel) throws IOException {
+        if (channel != FILE_CHANNEL)
+            throw new EOFException("Expected a chunk frame, received a frame of channel " + channel);
+        ByteBuffer header = clear(CHUNK_HEADER_SIZE);
+        header.put(0, channel);
+        in.readFully(header.array(), 1, CHUNK_HEADER_SIZE - 1);
+        return getChunkHeader(header, 0);
+    }
+
+    /**
+     * Reads the header of a frame, then the sizes its body is made of, into the buffer of this codec.
+     * @return  the buffer holding the whole frame, ready to be decoded.
+     */
+    private ByteBuffer read(DataInputStream in, int headerSize, int sizeOffset, int secondSizeOffset)
+            throws IOException {
+        return read(in, in.readByte(), headerSize, sizeOffset, secondSizeOffset);
+    }
+
+    /**
+     * Reads the rest of the header of a frame whose channel has already been read, then its body.
+     */
+    private ByteBuffer read(DataInputStream in, byte channel, int headerSize, int sizeOffset, int secondSizeOffset)
+            throws IOException {
+        ByteBuffer header = clear(headerSize);
+        header.put(0, channel);
+        in.readFully(header.array(), 1, headerSize - 1);
+        int bodySize = checkSize(header.getInt(sizeOffset));
+        if (secondSizeOffset >= 0)
+            bodySize = checkSize((long) bodySize + checkSize(header.getInt(secondSizeOffset)));
+
+        if (buffer.capacity() < headerSize + bodySize) {
+            ByteBuffer larger = ByteBuffer.allocate(headerSize + bodySize);
+            larger.put(buffer.array(), 0, headerSize);
+            buffer = larger;
+        }
+        in.readFully(buffer.array(), headerSize, bodySize);
+        buffer.position(0).limit(headerSize + bodySize);
+        return buffer;
+    }
+
+    /**
+     * Clears the buffer of this codec, growing it first if it cannot hold the given number of bytes.
+     */
+    private ByteBuffer clear(int length) {
+        if (buffer.capacity() < length)
+            buffer = ByteBuffer.allocate(Math.max(length, buffer.capacity() * 2));
+        buffer.clear();
+        return buffer;
+    }
+}
@@ -8,8 +8,8 @@ public class QueryTCPPayload extends TCPPayload {
     private int tSize;
     private String token;
 
-    public QueryTCPPayload(byte phase, byte type, int mSize, int tSize, String message, String token) {
-        super(phase, type, mSize, message);
+    public QueryTCPPayload(byte phase, byte type, int requestId, int mSize, int tSize, String message, String token) {
+        super(phase, type, requestId, mSize, message);
         this.tSize = tSize ;
         this.token = token;
     }
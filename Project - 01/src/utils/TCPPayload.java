@@ -1,24 +1,34 @@
 package utils;
+
+import static utils.Utilities.NO_REQUEST_ID;
+
 /**
  * An object to hold the query information,
  */
 public class TCPPayload {
 
     private byte phase, type;
+    private int requestId;
     private int size;
     private String message;
     private byte[] byteMessage;
 
     public TCPPayload(byte phase, byte type, int size, String message){
+        this(phase, type, NO_REQUEST_ID, size, message);
+    }
+
+    public TCPPayload(byte phase, byte type, int requestId, int size, String message){
         this.phase = phase;
         this. type = type;
+        this.requestId = requestId;
         this.size = size;
         this.message = message;
     }
 
-    public TCPPayload(byte phase, byte type, int size, byte[] byteMessage){
+    public TCPPayload(byte phase, byte type, int requestId, int size, byte[] byteMessage){
         this.phase = phase;
         this. type = type;
+        this.requestId = requestId;
         this.size = size;
         this.byteMessage = byteMessage;
     }
@@ -36,6 +46,13 @@ public class TCPPayload {
         return type;
     }
 
+    /**
+     * @return the id of the request the frame belongs to, which tags the replies of pipelined requests.
+     */
+    public int getRequestId() {
+        return requestId;
+    }
+
     public int getSize() {
         return size;
     }
@@ -49,6 +66,7 @@ public class TCPPayload {
         return "TCPPayload{" +
                 "phase=" + phase +
                 ", type=" + type +
+                ", requestId=" + requestId +
                 ", size=" + size +
                 ", message='" + message + '\'' +
                 '}';
@@ -1,7 +1,12 @@
 package utils;
 
-import java.nio.ByteBuffer;
-import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Pattern;
 
 public class Utilities {
 
@@ -14,9 +19,40 @@ public class Utilities {
 
     public static final int COMMAND_PORT = 9999;
     public static final int FILE_PORT = 9998;
+    public static final byte COMMAND_CHANNEL = 0;
+    public static final byte FILE_CHANNEL = 1;
+    public static final int FILE_BIND_TIMEOUT = 5000;
 
     public static final String DEFAULT_SERVER_ADDRESS = "localhost";
 
+    // Asynchronous client constants.
+    public static final long CLIENT_REQUEST_TIMEOUT = 30 * 1000;
+    public static final int CLIENT_MAX_IN_FLIGHT = 16;
+    public static final int CLIENT_MAX_QUEUED = 1024;
+    public static final int BULK_SESSIONS = 4;
+    public static final int BULK_IN_FLIGHT = 4;
+    public static final String BULK_PASSWORD_ENV = "STRATONET_PASSWORD";
+
+    // Server constants.
+    public static final int DEFAULT_WORKER_THREADS = 16;
+    public static final int READ_BUFFER_SIZE = 8 * 1024;
+    public static final int FRAME_BUFFER_SIZE = 4 * 1024;
+    public static final int FRAME_BUFFERS_PER_LOOP = 256;
+    public static final int MAX_GATHERED_WRITES = 16;
+    public static final String CLIENTS_FILE = "clients.txt";
+    public static final long SESSION_TIME_TO_LIVE = 30 * 60 * 1000;
+    public static final long SESSION_SWEEP_INTERVAL = 10 * 1000;
+    public static final long APOD_CACHE_BYTES = 256L * 1024 * 1024;
+    public static final long APOD_CACHE_TIME_TO_LIVE = 24 * 60 * 60 * 1000;
+    public static final long APOD_CACHE_TODAY_TIME_TO_LIVE = 10 * 60 * 1000;
+    public static final String IMAGE_STORE_DIRECTORY = "image_store";
+    public static final long IMAGE_STORE_BYTES = 4L * 1024 * 1024 * 1024;
+    public static final int STORE_SEGMENT_SIZE = 64 * 1024 * 1024;
+    public static final long UPSTREAM_CONNECT_TIMEOUT = 5 * 1000;
+    public static final long UPSTREAM_REQUEST_TIMEOUT = 30 * 1000;
+    public static final int UPSTREAM_BUFFER_SIZE = 256 * 1024;
+    public static final long WEATHER_REFRESH_INTERVAL = 60 * 60 * 1000;
+
     // Authentication constants.
     public static final byte Auth_Phase = 0;
 
@@ -24,9 +60,13 @@ public class Utilities {
     public static final byte Auth_Challenge = 1;
     public static final byte Auth_Fail = 2;
     public static final byte Auth_Success = 3;
+    public static final byte Auth_Resume = 4;
+    public static final byte Auth_Resume_Fail = 5;
+    public static final byte Auth_Bind = 6;
 
     public static final double AUTH_TOKEN_LENGTH = 0.5;
     public static final int PASSWORD_TIMEOUT = 7000;
+    public static final String ACCESS_TOKEN_PATH = "access_token.txt";
 
     // Query constants.
     public static final byte Query_Phase = 1;
@@ -37,124 +77,88 @@ public class Utilities {
     public static final byte Query_Request = 7;
     public static final byte Query_Image_Valid = 8;
     public static final byte Query_Image_Invalid = 9;
+    public static final byte Query_Image_Range = 10;
+    public static final byte Query_Image_Chunk = 11;
+    public static final byte Query_Image_Batch = 12;
+    public static final byte Query_Image_Missing = 13;
+    public static final byte Query_Not_Modified = 14;
 
     public static final int QUERY_TIMEOUT = 10000;
+    // How long an image whose digest has been sent is kept for its report, since the client last asked for its bytes.
+    public static final int IMAGE_REPORT_TIMEOUT = 60000;
+    public static final int NO_REQUEST_ID = 0;
+    public static final int MAX_BATCH_DATES = 64;
+    public static final int BATCH_FETCH_PARALLELISM = 4;
 
     public static final byte Query_Exit = -1;
 
     // Regular expressions.
     public static final String dateRegex = "[0-9]{4}-[0-1][0-9]-[0-3][0-9]";
-    public static final String urlRegex = "https://\\w+\\.\\w+\\.\\w+/apod/image/[0-9]+/\\w+\\.\\w+";
+    public static final String DATE_RANGE_SEPARATOR = "..";
+    public static final String DATE_LIST_SEPARATOR = ",";
+    public static final String VARIANT_SEPARATOR = "@";
+    public static final String imageQueryRegex = dateRegex + "(" + VARIANT_SEPARATOR + "[0-9]{1,4}(q[0-9]{1,3})?)?";
+    public static final String digestRegex = "[0-9a-f]{8}";
+    public static final String DIGEST_SEPARATOR = " ";
 
     private static final String TOKEN_SUFFIX = "87";
+    private static final Pattern DATE = Pattern.compile(dateRegex);
 
     // Image-related constants.
     public static final String DEFAULT_IMAGE_PATH = "image_of_the_day.";
     public static final String IMAGE_FORMAT = "jpg";
+    public static final String PARTIAL_IMAGE_SUFFIX = ".part";
+    public static final String PARTIAL_IMAGE_META_SUFFIX = ".meta";
+    public static final int IMAGE_CHUNK_SIZE = 64 * 1024;
+    public static final int IMAGE_RANGE_CHUNK_SIZE = 1024 * 1024;
+    public static final String RANGE_SEPARATOR = " ";
+    public static final int MAX_CHUNK_RETRIES = 3;
+    public static final int MIN_VARIANT_SIZE = 16;
+    public static final int DEFAULT_VARIANT_QUALITY = 80;
+    // The sizes and qualities a variant is made with, the requested ones are rounded to them.
+    public static final int[] VARIANT_SIZES = {32, 64, 128, 256, 512, 1024, 2048};
+    public static final int[] VARIANT_QUALITIES = {40, 60, 80, 95};
+    public static final String IMAGE_CACHE_INDEX = "image_cache.txt";
 
     // Fail tests.
     public static final String FAIL_TOKEN = "zz";
     public static final int FAIL_HASHCODE = 1000;
 
     /**
-     * Given certain parameters, creates a TCPPayload.
-     * @param phase     the phase of the request.
-     * @param type      the type of the request.
-     * @param size      the size of the message.
-     * @param payload   the message.
-     * @return          a byte array that contains the given parameters.
-     */
-    public static byte[] getAuthRequestByteArray(byte phase, byte type, int size, String payload) {
-
-        byte[] stringToByte = payload.getBytes(StandardCharsets.UTF_8);
-
-        int tcpPayloadSize = 1 + 1 + 4 + stringToByte.length;
-        byte[] tcpPayload = new byte[tcpPayloadSize];
-
-        tcpPayload[0] = phase;
-        tcpPayload[1] = type;
-
-        byte[] byteToInt = ByteBuffer.allocate(4).putInt(size).array();
-
-        for (int i = 0; i < byteToInt.length; i++) {
-            tcpPayload[i + 2] = byteToInt[i];
-        }
-
-        for (int i = 0; i < stringToByte.length; i++) {
-            tcpPayload[i + 6] = stringToByte[i];
-        }
-        return tcpPayload;
-    }
-
-    /**
-     * Given certain parameters, creates a TCPPayload.
-     * @param phase     the phase of the request.
-     * @param type      the type of the request.
-     * @param size      the size of the message.
-     * @param payload   the message.
-     * @return          a byte array that contains the given parameters.
-     */
-    public static byte[] queryMessage(byte phase, byte type, int size, byte[] payload) {
-
-        int tcpPayloadSize = 1 + 1 + 4 + payload.length;
-        byte[] tcpPayload = new byte[tcpPayloadSize];
-
-        tcpPayload[0] = phase;
-        tcpPayload[1] = type;
-
-        byte[] byteToInt = ByteBuffer.allocate(4).putInt(size).array();
-
-        for (int i = 0; i < byteToInt.length; i++) {
-            tcpPayload[i + 2] = byteToInt[i];
-        }
-
-        for (int i = 0; i < payload.length; i++) {
-            tcpPayload[i + 6] = payload[i];
-        }
-        return tcpPayload;
-    }
-
-    /**
-     * Given certain parameters, creates a TCPPayload.
-     * @param phase     the phase of the request.
-     * @param type      the type of the request.
-     * @param mSize     the size of the message.
-     * @param tSize     the size of the token.
-     * @param message   the message.
-     * @param token     the token.
-     * @return          a byte array that contains the given parameters.
+     * Given the message of a batch image query, returns the dates it covers. The message is either a range of dates,
+     * both ends included, as follows: yyyy-mm-dd..yyyy-mm-dd, or a list of dates as follows: yyyy-mm-dd,yyyy-mm-dd.
+     * The client and the server expand a batch the same way, the i-th image of a batch whose request id is R being
+     * sent with the request id R + 1 + i.
+     * @param message the message of the batch query.
+     * @return the dates of the batch without duplicates, in the order they are given, or null if the message is not a
+     *      valid batch or covers more than MAX_BATCH_DATES dates.
      */
-    public static byte[] getQueryRequestByteArray(byte phase, byte type, int mSize, int tSize, String message, String token) {
-
-        byte[] messageToByte = message.getBytes(StandardCharsets.UTF_8);
-        byte[] tokenToByte = token.getBytes(StandardCharsets.UTF_8);
-
-        int tcpPayloadSize = 1 + 1 + 4 + 4 + messageToByte.length + tokenToByte.length;
-        byte[] tcpPayload = new byte[tcpPayloadSize];
-
-        tcpPayload[0] = phase;
-        tcpPayload[1] = type;
-
-        byte[] messageSize = ByteBuffer.allocate(4).putInt(mSize).array();
-        byte[] tokenSize = ByteBuffer.allocate(4).putInt(tSize).array();
-
-        for (int i = 0; i < messageSize.length; i++) {
-            tcpPayload[i + 2] = messageSize[i];
-        }
-
-        for (int i = 0; i < tokenSize.length; i++) {
-            tcpPayload[i + 6] = tokenSize[i];
-        }
-
-        for (int i = 0; i < messageToByte.length; i++) {
-            tcpPayload[i + 10] = messageToByte[i];
-        }
-
-        for (int i = 0; i < tokenToByte.length; i++) {
-            tcpPayload[i + tcpPayloadSize - token.length()] = tokenToByte[i];
+    public static List<String> expandDates(String message) {
+        Set<String> dates = new LinkedHashSet<>();
+        try {
+            int range = message.indexOf(DATE_RANGE_SEPARATOR);
+            if (range >= 0) {
+                String first = message.substring(0, range);
+                String last = message.substring(range + DATE_RANGE_SEPARATOR.length());
+                if (!DATE.matcher(first).matches() || !DATE.matcher(last).matches())
+                    return null;
+                LocalDate end = LocalDate.parse(last);
+                for (LocalDate day = LocalDate.parse(first); !day.isAfter(end); day = day.plusDays(1)) {
+                    if (dates.size() == MAX_BATCH_DATES)
+                        return null;
+                    dates.add(day.toString());
+                }
+            } else {
+                for (String day : message.split(DATE_LIST_SEPARATOR)) {
+                    if (!DATE.matcher(day).matches())
+                        return null;
+                    dates.add(LocalDate.parse(day).toString());
+                }
+            }
+        } catch (DateTimeParseException e) {
+            return null;
         }
-
-        return tcpPayload;
+        return dates.isEmpty() || dates.size() > MAX_BATCH_DATES ? null : new ArrayList<>(dates);
     }
 
     /**
@@ -168,4 +172,14 @@ public class Utilities {
         String token = username.concat(TOKEN_SUFFIX);
         return token.substring(0, endIndex).replaceAll("\\s", "");
     }
+
+    /**
+     * Given the CRC32C checksum of a whole image, returns the digest the image is verified with. The client and the
+     * server format the digest the same way, so that the client compares it with the one sent from the server as is.
+     * @param checksum the checksum of the image, as returned by CRC32C.getValue().
+     * @return the checksum as 8 lowercase hexadecimal digits.
+     */
+    public static String toDigest(long checksum) {
+        return String.format("%08x", checksum);
+    }
 }